@@ -1,6 +1,7 @@
 package home;
 
 import java.io.FileInputStream;
+import java.nio.file.Paths;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
@@ -11,10 +12,19 @@ import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ServerValue;
 
+import home.cluster.PartitionManager;
 import home.common.Port;
 import home.common.Power;
 import home.controlunit.ControlUnitManager;
+import home.controlunit.SceneManager;
+import home.controlunit.ScheduleManager;
 import home.device.DeviceManager;
+import home.stats.TimeSeriesAggregator;
+import util.Config;
+import util.Firebase;
+import util.FirebaseWriter;
+import util.metrics.MetricsRegistry;
+import util.metrics.MetricsServer;
 
 /**
  * Hello world!
@@ -40,6 +50,27 @@ public final class App {
         LOG.info("Firebase service account file: " + serviceAccountFilename);
         LOG.info("Firebase database URL: " + firebaseDatabaseUrl);
 
+        // Replay of recorded traffic, for load tests and reproducing problems. Runs on
+        // its own, on an offline database and without a broker, so the replayed
+        // reports reach neither the real database nor any real device.
+        String replayJournal = Config.getString("replayJournal", "");
+        if (!replayJournal.isEmpty()) {
+            double speed = Double.parseDouble(Config.getString("replaySpeed", "1"));
+            DeviceManager replayManager = new DeviceManager();
+            replayManager.initiateReplay(Firebase.createOffline().getReference("/devices"));
+            try {
+                long messages = replayManager.replay(Paths.get(replayJournal), speed);
+                LOG.info("Replayed " + messages + " messages of journal " + replayJournal);
+            } finally {
+                replayManager.close();
+            }
+            return;
+        }
+
+        // Metrics
+        MetricsRegistry.getInstance().registerMBean();
+        MetricsServer metricsServer = MetricsServer.start(MetricsRegistry.getInstance());
+
         // Firebase
         FileInputStream serviceAccount = new FileInputStream(serviceAccountFilename);
 
@@ -59,15 +90,46 @@ public final class App {
         // Device controller
         DatabaseReference deviceRef = FirebaseDatabase.getInstance().getReference("/devices");
         DeviceManager deviceManager = DeviceManager.GetDeviceManager();
+        PartitionManager partitionManager = null;
+        if (Config.getInt("partitions", 1) > 1) {
+            // One of several instances, each handling the devices of its partitions
+            partitionManager = PartitionManager.create(controllerRef);
+            deviceManager.setPartitionManager(partitionManager);
+            partitionManager.start();
+        }
         deviceManager.initiate(deviceRef);
 
         // Control unit controller
-        ControlUnitManager controlUnitManager = new ControlUnitManager(FirebaseDatabase.getInstance().getReference("/controlUnits"));
+        ControlUnitManager controlUnitManager = new ControlUnitManager(FirebaseDatabase.getInstance().getReference("/controlUnits"), deviceManager);
+
+        // Timed and recurring power actions
+        ScheduleManager scheduleManager = new ScheduleManager(FirebaseDatabase.getInstance().getReference("/schedules"),
+                deviceManager, controlUnitManager);
+        controlUnitManager.setScheduleManager(scheduleManager);
+        controlUnitManager.start();
+        scheduleManager.start();
+
+        // Scenes and groups switched as a whole
+        SceneManager sceneManager = new SceneManager(FirebaseDatabase.getInstance().getReference("/scenes"), deviceManager);
+        sceneManager.start();
 
         System.out.println("Press enter to exit...");
         System.in.read();
         LOG.info("Terminating program");
+        sceneManager.close();
+        scheduleManager.close();
+        controlUnitManager.close();
+        if (partitionManager != null) {
+            partitionManager.close();
+        }
         deviceManager.close();
+        LOG.info("Write open stats buckets");
+        TimeSeriesAggregator.getInstance().close();
+        LOG.info("Flush pending firebase writes");
+        FirebaseWriter.getInstance().close();
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
         LOG.info("Notify firebase to go offline");
         FirebaseDatabase.getInstance().goOffline();
         LOG.fine("End of main");
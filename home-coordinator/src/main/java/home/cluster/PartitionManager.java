@@ -0,0 +1,333 @@
+package home.cluster;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.ValueEventListener;
+
+import util.Config;
+import util.Threads;
+import util.metrics.Counter;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Splits the devices over the coordinator instances that are online.
+ *
+ * Device topics hash into a fixed number of partitions. Every instance
+ * registers itself as
+ * <pre>
+ * /controller/instances/&lt;id&gt;: { connected: "ONLINE", heartbeat: &lt;millis&gt; }
+ * </pre>
+ * and Firebase sets connected to OFFLINE when the instance disconnects. An
+ * instance is live while it is ONLINE and its heartbeat is younger than the
+ * lease time. A partition belongs to the live instance with the highest
+ * rendezvous hash for it, so instances that see the same members agree on the
+ * owners and only the partitions of an instance that joins or leaves move.
+ *
+ * The owner holds a lease on /controller/leases/&lt;partition&gt; which it
+ * renews with its heartbeat and removes when it gives the partition up. A
+ * partition is only taken once its lease is free: removed, expired or held
+ * by an instance that is no longer live. Until then nobody handles it, so two
+ * instances never handle a device at the same time while members agree.
+ * Nothing is taken before the members and leases have been read.
+ */
+public class PartitionManager implements Closeable {
+    private static final Logger LOG = Logger.getLogger(PartitionManager.class.getName());
+
+    private static final Counter HANDOVERS = MetricsRegistry.getInstance().counter("partition_handovers_total");
+
+    @FunctionalInterface
+    public interface Listener {
+        void partitionsChanged(Set<Integer> owned);
+    }
+
+    private final DatabaseReference controller;
+    private final String instanceId;
+    private final int partitions;
+    private final long leaseMillis;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("partitions"));
+
+    // Null until the first snapshot arrived
+    private Map<String, Member> members;
+    private Map<Integer, Lease> leases;
+    private volatile Set<Integer> owned = Collections.emptySet();
+    private boolean active;
+
+    private final ValueEventListener membersListener = new ValueEventListener() {
+        @Override
+        public void onDataChange(final DataSnapshot snapshot) {
+            final Map<String, Member> next = new HashMap<>();
+            for (DataSnapshot instance : snapshot.getChildren()) {
+                next.put(instance.getKey(), new Member(String.valueOf(instance.child("connected").getValue()),
+                        number(instance.child("heartbeat").getValue())));
+            }
+            membersChanged(next);
+        }
+
+        @Override
+        public void onCancelled(final DatabaseError error) {
+            LOG.warning("Stopped following instances: " + error.getMessage());
+        }
+    };
+
+    private final ValueEventListener leasesListener = new ValueEventListener() {
+        @Override
+        public void onDataChange(final DataSnapshot snapshot) {
+            final Map<Integer, Lease> next = new HashMap<>();
+            for (DataSnapshot lease : snapshot.getChildren()) {
+                try {
+                    next.put(Integer.valueOf(lease.getKey()), new Lease(String.valueOf(lease.child("owner").getValue()),
+                            number(lease.child("expires").getValue())));
+                } catch (NumberFormatException e) {
+                    LOG.warning("Ignoring lease " + lease.getKey());
+                }
+            }
+            leasesChanged(next);
+        }
+
+        @Override
+        public void onCancelled(final DatabaseError error) {
+            LOG.warning("Stopped following leases: " + error.getMessage());
+        }
+    };
+
+    /**
+     * @param controller the /controller node
+     */
+    public PartitionManager(final DatabaseReference controller, final String instanceId, final int partitions,
+            final long leaseMillis) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be at least 1: " + partitions);
+        }
+        this.controller = controller;
+        this.instanceId = instanceId;
+        this.partitions = partitions;
+        this.leaseMillis = leaseMillis;
+        MetricsRegistry.getInstance().gauge("partitions_owned", () -> owned.size());
+    }
+
+    /**
+     * Creates a manager configured by instanceId (default random), partitions
+     * (default 1) and partitionLeaseMillis (default 15000).
+     */
+    public static PartitionManager create(final DatabaseReference controller) {
+        return new PartitionManager(controller, Config.getString("instanceId", UUID.randomUUID().toString()),
+                Config.getInt("partitions", 1), Config.getLong("partitionLeaseMillis", 15000));
+    }
+
+    /**
+     * Registers this instance and starts following the members and leases.
+     * The heartbeat is renewed three times per lease time.
+     */
+    public void start() {
+        final DatabaseReference self = controller.child("instances").child(instanceId);
+        self.child("connected").onDisconnect().setValueAsync("OFFLINE");
+        synchronized (this) {
+            active = true;
+        }
+        heartbeat();
+        controller.child("instances").addValueEventListener(membersListener);
+        controller.child("leases").addValueEventListener(leasesListener);
+        final long interval = Math.max(1, leaseMillis / 3);
+        scheduler.scheduleWithFixedDelay(() -> {
+            heartbeat();
+            rebalance();
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        LOG.info("Instance " + instanceId + " joined with " + partitions + " partitions");
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public int getPartitionCount() {
+        return partitions;
+    }
+
+    public Set<Integer> getOwnedPartitions() {
+        return owned;
+    }
+
+    /**
+     * The partition of a device topic, the same on every instance.
+     */
+    public int partitionOf(final String topic) {
+        return (int) Long.remainderUnsigned(mix(topic.toUpperCase(Locale.ROOT).hashCode()), partitions);
+    }
+
+    public boolean owns(final String topic) {
+        return owned.contains(partitionOf(topic));
+    }
+
+    private synchronized void membersChanged(final Map<String, Member> next) {
+        members = next;
+        rebalance();
+    }
+
+    private synchronized void leasesChanged(final Map<Integer, Lease> next) {
+        leases = next;
+        rebalance();
+    }
+
+    private synchronized void heartbeat() {
+        if (!active) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final Map<String, Object> self = new LinkedHashMap<>();
+        self.put("connected", "ONLINE");
+        self.put("heartbeat", now);
+        controller.child("instances").child(instanceId).setValueAsync(self);
+        for (int partition : owned) {
+            writeLease(partition, now);
+        }
+    }
+
+    /**
+     * Takes the free partitions this instance should own and gives up the
+     * ones another live instance should own.
+     */
+    synchronized void rebalance() {
+        if (!active || members == null || leases == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final Set<String> live = new TreeSet<>();
+        members.forEach((id, member) -> {
+            if (member.isLive(now, leaseMillis)) {
+                live.add(id);
+            }
+        });
+        live.add(instanceId);
+
+        final Set<Integer> next = new TreeSet<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            final Lease lease = leases.get(partition);
+            final boolean mine = lease != null && instanceId.equals(lease.owner);
+            if (instanceId.equals(ownerOf(partition, live))) {
+                if (mine || lease == null || lease.expires < now || !live.contains(lease.owner)) {
+                    if (!mine && lease != null) {
+                        HANDOVERS.increment();
+                        LOG.info("Taking over partition " + partition + " from " + lease.owner);
+                    }
+                    next.add(partition);
+                    if (!owned.contains(partition)) {
+                        writeLease(partition, now);
+                    }
+                }
+            } else if (mine) {
+                controller.child("leases").child(Integer.toString(partition)).removeValueAsync();
+            }
+        }
+        if (!next.equals(owned)) {
+            owned = Collections.unmodifiableSet(next);
+            LOG.info("Instance " + instanceId + " owns partitions " + next + " of " + partitions + ", live: " + live);
+            listeners.forEach(listener -> listener.partitionsChanged(owned));
+        }
+    }
+
+    private String ownerOf(final int partition, final Set<String> live) {
+        String owner = null;
+        long best = 0;
+        for (String id : live) {
+            final long weight = mix(id.hashCode() * 31L + partition);
+            if (owner == null || Long.compareUnsigned(weight, best) > 0) {
+                owner = id;
+                best = weight;
+            }
+        }
+        return owner;
+    }
+
+    private void writeLease(final int partition, final long now) {
+        final Map<String, Object> lease = new LinkedHashMap<>();
+        lease.put("owner", instanceId);
+        lease.put("expires", now + leaseMillis);
+        controller.child("leases").child(Integer.toString(partition)).setValueAsync(lease);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, so neighbouring inputs spread evenly.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long number(final Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * Leaves the cluster: gives up all partitions and marks this instance
+     * OFFLINE so the others take over at once.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        controller.child("instances").removeEventListener(membersListener);
+        controller.child("leases").removeEventListener(leasesListener);
+        final Set<Integer> released;
+        synchronized (this) {
+            active = false;
+            released = owned;
+            owned = Collections.emptySet();
+        }
+        released.forEach(partition -> controller.child("leases").child(Integer.toString(partition)).removeValueAsync());
+        controller.child("instances").child(instanceId).child("connected").setValueAsync("OFFLINE");
+        if (!released.isEmpty()) {
+            listeners.forEach(listener -> listener.partitionsChanged(Collections.emptySet()));
+        }
+        LOG.info("Instance " + instanceId + " left, released partitions " + released);
+    }
+
+    private static final class Member {
+        final String connected;
+        final long heartbeat;
+
+        Member(final String connected, final long heartbeat) {
+            this.connected = connected;
+            this.heartbeat = heartbeat;
+        }
+
+        boolean isLive(final long now, final long leaseMillis) {
+            return "ONLINE".equals(connected) && now - heartbeat < leaseMillis;
+        }
+    }
+
+    private static final class Lease {
+        final String owner;
+        final long expires;
+
+        Lease(final String owner, final long expires) {
+            this.owner = owner;
+            this.expires = expires;
+        }
+    }
+}
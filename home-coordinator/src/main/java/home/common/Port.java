@@ -1,10 +1,6 @@
 package home.common;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.logging.Logger;
 
 import com.google.firebase.database.DatabaseReference;
@@ -12,45 +8,42 @@ import com.google.firebase.database.DatabaseReference;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 
-public abstract class Port implements Comparable {
+import util.FirebaseWriter;
+
+public abstract class Port implements Comparable<Port> {
     public static final Logger LOG = Logger.getLogger(Port.class.getName());
 
     public State state = State.UNKNOWN;
     public DatabaseReference database = null;
     public String name = null;
 
-    private Set<Port> listeners = new java.util.concurrent.ConcurrentSkipListSet<>();
-    private Set<Port> sources = null;
+    private final int id = PortGraph.register(this);
 
     public void setPower(final String p) throws MqttPersistenceException, MqttException {
-        setPower(Power.valueOf(p), null);
+        setPower(Power.valueOf(p));
     }
 
-    public void setPower(final Power p, Set<Port> sources) throws MqttPersistenceException, MqttException {
-        // Update source list
-        if (sources == null) {
-            sources = new java.util.TreeSet<>();
-        } else {
-            sources = new java.util.TreeSet<>(sources);
-        }
-        if (sources.contains(this)){
-            // This port was updated already
-            return;
-        }
-        sources.add(this);
+    /**
+     * Sets the power of this port and of every port that listens to it.
+     */
+    public void setPower(final Power p) throws MqttPersistenceException, MqttException {
+        PortGraph.propagate(this, p, true);
+    }
 
+    /**
+     * Sets the power of the listeners of this port, but not of the port itself.
+     * Used when the port changed by itself.
+     */
+    protected void propagatePower(final Power p) throws MqttPersistenceException, MqttException {
+        PortGraph.propagate(this, p, false);
+    }
+
+    /**
+     * Applies a power change to this port only. Called at most once per port for
+     * every propagation.
+     */
+    protected void applyPower(final Power p) throws MqttPersistenceException, MqttException {
         LOG.finer("Set Port " + this.name + " power: " + p.toString());
-        LOG.finest("Sources: " + sources);
-
-        Iterator<Port> i = listeners.iterator();
-        while (i.hasNext()){
-            Port port = i.next();
-            if (port.hasSource(this)){
-                port.setPower(p, java.util.Collections.unmodifiableSet(sources));
-            } else {
-                i.remove();
-            }
-        }
     }
 
     public void setState(final String state) {
@@ -64,32 +57,51 @@ public abstract class Port implements Comparable {
         }
         if (previousState != this.state) {
             if (this.database != null) {
-                this.database.child("state").setValueAsync(this.state);
+                write(this.database.child("state"), this.state);
             }
         }
     }
 
-    public void addListener(Port p){
-        listeners.add(p);
+    /**
+     * Writes a value of this port to firebase.
+     */
+    protected void write(final DatabaseReference ref, final Object value) {
+        FirebaseWriter.getInstance().set(ref, value);
     }
 
     public boolean hasSource(Port p){
-        if (this.sources == null){
-            return false;
-        }
-        return this.sources.contains(p);
+        return PortGraph.hasSource(this, p);
     }
 
     public void setSources(Set<Port> sources){
-        this.sources = sources;
-        sources.forEach(port -> port.addListener(this));
+        PortGraph.setSources(this, sources);
     }
 
-    public int compareTo(Object o){
-        return this.toString().compareTo(o.toString());
+    /**
+     * Takes this port out of the port graph, for ports that are discarded.
+     * Nothing propagates to or from it afterwards.
+     */
+    public void unregister() {
+        PortGraph.unregister(this);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int compareTo(Port o){
+        return Integer.compare(this.id, o.id);
     }
 
     public boolean equals(Object o){
         return this == o;
     }
-}
\ No newline at end of file
+
+    public int hashCode() {
+        return id;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
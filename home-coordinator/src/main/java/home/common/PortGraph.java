@@ -0,0 +1,350 @@
+package home.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Compiled propagation graph of all ports.
+ *
+ * Every port gets a dense id when it is created, which is given out again once
+ * the port is unregistered. Wiring changes update the listener adjacency of
+ * the affected sources only, kept sorted by id so fan-out order is stable, and
+ * publish it atomically. Propagation walks the published graph with a
+ * per-thread epoch array instead of copying visited sets at every hop.
+ *
+ * Cycles are legal, control units link ports in both directions, and a
+ * propagation visits each port at most once. They are reported when they are
+ * wired if fine logging is on.
+ */
+public final class PortGraph {
+    private static final Logger LOG = Logger.getLogger(PortGraph.class.getName());
+
+    private static final int[] NONE = new int[0];
+
+    private static final Histogram PROPAGATION_TIME = MetricsRegistry.getInstance().histogram("port_propagation_nanos");
+    private static final Histogram PROPAGATION_PORTS = MetricsRegistry.getInstance().histogram("port_propagation_ports");
+    private static final Histogram PROPAGATION_DEPTH = MetricsRegistry.getInstance().histogram("port_propagation_depth");
+
+    private static final Object LOCK = new Object();
+    private static Port[] registered = new Port[64];
+    private static int registeredCount = 0;
+    private static int[] freeIds = new int[16];
+    private static int freeCount = 0;
+    private static final Map<Port, Port[]> wiring = new HashMap<>();
+    // Listener ids per port id, each array replaced on change and never modified
+    private static int[][] adjacency = newAdjacency(0, 64);
+
+    private static volatile PortGraph current = new PortGraph(new Port[0], new int[0][]);
+
+    private static final ThreadLocal<Walk> WALK = ThreadLocal.withInitial(Walk::new);
+
+    private final Port[] ports;
+    private final int[][] listeners;
+
+    private PortGraph(final Port[] ports, final int[][] listeners) {
+        this.ports = ports;
+        this.listeners = listeners;
+    }
+
+    private static int[][] newAdjacency(final int from, final int size) {
+        final int[][] result = Arrays.copyOf(adjacency == null ? new int[0][] : adjacency, size);
+        Arrays.fill(result, from, size, NONE);
+        return result;
+    }
+
+    static int register(final Port port) {
+        synchronized (LOCK) {
+            final int id;
+            if (freeCount > 0) {
+                id = freeIds[--freeCount];
+            } else {
+                if (registeredCount == registered.length) {
+                    registered = Arrays.copyOf(registered, registeredCount * 2);
+                    adjacency = newAdjacency(registeredCount, registeredCount * 2);
+                }
+                id = registeredCount++;
+            }
+            registered[id] = port;
+            return id;
+        }
+    }
+
+    /**
+     * Takes a port out of the graph: it no longer listens to its sources and
+     * its listeners no longer listen to it. Its id is given to a later port.
+     */
+    static void unregister(final Port port) {
+        synchronized (LOCK) {
+            final int id = port.getId();
+            if (registered[id] != port) {
+                return;
+            }
+            wire(port, Collections.<Port>emptySet());
+            for (int listener : adjacency[id]) {
+                final Port other = registered[listener];
+                final Port[] sources = wiring.get(other);
+                final List<Port> remaining = new ArrayList<>(sources.length);
+                for (Port source : sources) {
+                    if (source != port) {
+                        remaining.add(source);
+                    }
+                }
+                if (remaining.isEmpty()) {
+                    wiring.remove(other);
+                } else {
+                    wiring.put(other, remaining.toArray(new Port[0]));
+                }
+            }
+            adjacency[id] = NONE;
+            registered[id] = null;
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            }
+            freeIds[freeCount++] = id;
+            publish();
+        }
+    }
+
+    /**
+     * Replaces the sources of a port and publishes the updated graph.
+     */
+    public static void setSources(final Port port, final Collection<? extends Port> sources) {
+        synchronized (LOCK) {
+            wire(port, sources);
+            publish();
+        }
+    }
+
+    /**
+     * Replaces the sources of several ports in one step, so the published graph
+     * never contains half of the change.
+     */
+    public static void setSources(final Map<? extends Port, ? extends Collection<? extends Port>> sources) {
+        synchronized (LOCK) {
+            sources.forEach(PortGraph::wire);
+            publish();
+        }
+    }
+
+    private static void wire(final Port port, final Collection<? extends Port> sources) {
+        if (!isRegistered(port)) {
+            return;
+        }
+        final List<Port> kept = new ArrayList<>(sources.size());
+        for (Port source : sources) {
+            if (isRegistered(source)) {
+                kept.add(source);
+            }
+        }
+        final Port[] previous = kept.isEmpty() ? wiring.remove(port) : wiring.put(port, kept.toArray(new Port[0]));
+        if (previous != null) {
+            for (Port source : previous) {
+                adjacency[source.getId()] = without(adjacency[source.getId()], port.getId());
+            }
+        }
+        for (Port source : kept) {
+            adjacency[source.getId()] = with(adjacency[source.getId()], port.getId());
+        }
+        if (!kept.isEmpty() && LOG.isLoggable(Level.FINE) && reaches(port, kept)) {
+            LOG.fine("Port graph contains a cycle through " + port);
+        }
+    }
+
+    private static boolean isRegistered(final Port port) {
+        return registered[port.getId()] == port;
+    }
+
+    private static int[] with(final int[] ids, final int id) {
+        final int index = Arrays.binarySearch(ids, id);
+        if (index >= 0) {
+            return ids;
+        }
+        final int at = -index - 1;
+        final int[] result = new int[ids.length + 1];
+        System.arraycopy(ids, 0, result, 0, at);
+        result[at] = id;
+        System.arraycopy(ids, at, result, at + 1, ids.length - at);
+        return result;
+    }
+
+    private static int[] without(final int[] ids, final int id) {
+        final int index = Arrays.binarySearch(ids, id);
+        if (index < 0) {
+            return ids;
+        }
+        if (ids.length == 1) {
+            return NONE;
+        }
+        final int[] result = new int[ids.length - 1];
+        System.arraycopy(ids, 0, result, 0, index);
+        System.arraycopy(ids, index + 1, result, index, ids.length - index - 1);
+        return result;
+    }
+
+    private static void publish() {
+        current = new PortGraph(Arrays.copyOf(registered, registeredCount), Arrays.copyOf(adjacency, registeredCount));
+    }
+
+    static boolean hasSource(final Port port, final Port source) {
+        synchronized (LOCK) {
+            Port[] sources = wiring.get(port);
+            if (sources != null) {
+                for (Port s : sources) {
+                    if (s == source) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Whether power set on the port comes back to it through its listeners.
+     */
+    public static boolean isOnCycle(final Port port) {
+        synchronized (LOCK) {
+            final Port[] sources = wiring.get(port);
+            return sources != null && reaches(port, Arrays.asList(sources));
+        }
+    }
+
+    /**
+     * Whether any of the targets listens to the port, directly or not.
+     */
+    private static boolean reaches(final Port port, final Collection<? extends Port> targets) {
+        final Set<Integer> wanted = new HashSet<>();
+        targets.forEach(target -> wanted.add(target.getId()));
+        final BitSet visited = new BitSet(registeredCount);
+        final Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(port.getId());
+        visited.set(port.getId());
+        while (!stack.isEmpty()) {
+            for (int listener : adjacency[stack.pop()]) {
+                if (wanted.contains(listener)) {
+                    return true;
+                }
+                if (!visited.get(listener)) {
+                    visited.set(listener);
+                    stack.push(listener);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies power to every port reachable from the origin, each port once, in
+     * a stable order. The origin itself is only applied if includeOrigin is set.
+     * Errors of individual ports do not stop the propagation; the first one is
+     * rethrown once all ports were visited.
+     */
+    static void propagate(final Port origin, final Power power, final boolean includeOrigin) throws MqttException {
+        final PortGraph graph = current;
+        Walk walk = WALK.get();
+        if (walk.active) {
+            // Nested propagation from within a port, use a private walk
+            walk = new Walk();
+        }
+        final long start = System.nanoTime();
+        walk.begin(Math.max(graph.ports.length, origin.getId() + 1));
+        MqttException error = null;
+        int applied = 0;
+        int maxLevel = 0;
+        try {
+            int depth = 0;
+            walk.mark(origin.getId());
+            walk.push(depth++, origin.getId(), 0);
+            while (depth > 0) {
+                final int id = walk.stack[--depth];
+                final int level = walk.levels[depth];
+                maxLevel = Math.max(maxLevel, level);
+                // The origin may not be published yet, or may have been unregistered
+                final Port port = id == origin.getId() ? origin : graph.ports[id];
+                if (port != origin || includeOrigin) {
+                    applied++;
+                    try {
+                        port.applyPower(power);
+                    } catch (MqttException e) {
+                        LOG.warning("Could not set power of " + port + ": " + e.getMessage());
+                        if (error == null) {
+                            error = e;
+                        }
+                    } catch (RuntimeException e) {
+                        LOG.warning("Could not set power of " + port + ": " + e);
+                    }
+                }
+                if (id < graph.listeners.length && graph.ports[id] == port) {
+                    final int[] next = graph.listeners[id];
+                    // Push in reverse so listeners are visited in id order
+                    for (int i = next.length - 1; i >= 0; i--) {
+                        if (walk.mark(next[i])) {
+                            walk.push(depth++, next[i], level + 1);
+                        }
+                    }
+                }
+            }
+        } finally {
+            walk.active = false;
+        }
+        PROPAGATION_TIME.record(System.nanoTime() - start);
+        PROPAGATION_PORTS.record(applied);
+        PROPAGATION_DEPTH.record(maxLevel);
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static final class Walk {
+        int[] marks = new int[0];
+        int[] stack = new int[16];
+        int[] levels = new int[16];
+        int epoch;
+        boolean active;
+
+        void begin(final int size) {
+            active = true;
+            if (marks.length < size) {
+                marks = Arrays.copyOf(marks, Math.max(size, marks.length * 2));
+            }
+            if (++epoch == 0) {
+                Arrays.fill(marks, 0);
+                epoch = 1;
+            }
+        }
+
+        boolean mark(final int id) {
+            if (marks[id] == epoch) {
+                return false;
+            }
+            marks[id] = epoch;
+            return true;
+        }
+
+        void push(final int depth, final int id, final int level) {
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+                levels = Arrays.copyOf(levels, depth * 2);
+            }
+            stack[depth] = id;
+            levels[depth] = level;
+        }
+    }
+}
@@ -3,23 +3,59 @@ package home.controlunit;
 import com.google.firebase.database.DatabaseReference;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 
 import home.common.Port;
 import home.common.Power;
-import home.common.State;
 
 public class ControlUnit extends Port {
     protected DatabaseReference database;
 
     public enum Type {
         EVENT,
+        /**
+         * Switches off again durationSeconds after it was switched on.
+         */
+        TIMED,
     }
 
     public Type type;
+    public long durationSeconds;
+
+    private String key;
+    private ScheduleManager schedules;
 
     public ControlUnit() {
         this.database = null;
     }
 
-}
\ No newline at end of file
+    ControlUnit(final String name, final Type type, final DatabaseReference database) {
+        this.name = name;
+        this.type = type;
+        this.database = database;
+    }
+
+    void setSchedule(final String key, final ScheduleManager schedules) {
+        this.key = key;
+        this.schedules = schedules;
+    }
+
+    @Override
+    protected void applyPower(final Power p) throws MqttException {
+        super.applyPower(p);
+        if (type != Type.TIMED || schedules == null) {
+            return;
+        }
+        // Every switch on restarts the time, a switch off ends it early
+        if (p == Power.ON) {
+            schedules.schedule(timerKey(), "controlUnits/" + key, Power.OFF,
+                    System.currentTimeMillis() + durationSeconds * 1000, 0);
+        } else if (p == Power.OFF) {
+            schedules.cancel(timerKey());
+        }
+    }
+
+    private String timerKey() {
+        return "controlUnit-" + key;
+    }
+
+}
@@ -1,8 +1,16 @@
 package home.controlunit;
 
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 import com.google.firebase.database.DataSnapshot;
@@ -10,67 +18,239 @@ import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.ValueEventListener;
 
-import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
-
 import home.common.Port;
+import home.common.PortGraph;
 import home.device.DeviceManager;
-import util.Firebase;
+import util.Threads;
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
 
-public class ControlUnitManager {
+/**
+ * Loads the control units from /controlUnits and wires them into the port graph.
+ *
+ * A control unit is stored as
+ * <pre>
+ * /controlUnits/&lt;key&gt;: { name: "Wasgoedlyn", type: "EVENT",
+ *                           ports: ["front-door-light-switch/power3", "washing-line-relay/power"] }
+ * </pre>
+ * An EVENT unit listens to all its ports and all its ports listen to the unit,
+ * so switching one switches them all. A TIMED unit is wired the same way and
+ * also has a durationSeconds, after which it switches itself and its ports off
+ * again through the {@link ScheduleManager}.
+ *
+ * Every change under /controlUnits recompiles the wiring of all units and
+ * replaces it in the {@link PortGraph} in one step; units that were removed
+ * are taken out of the graph. Messages keep being handled
+ * with the previous graph until the new one is published. When devices move
+ * between coordinator instances the units are compiled again, so the ports of
+ * devices owned elsewhere are wired as remote ports.
+ */
+public class ControlUnitManager implements Closeable {
     private static final Logger LOG = Logger.getLogger(ControlUnitManager.class.getName());
 
-    private Map<String, ControlUnit> controlUnits = new ConcurrentHashMap<>(32);
+    private static final Histogram COMPILE_TIME = MetricsRegistry.getInstance().histogram("control_unit_compile_nanos");
+
+    private final DatabaseReference database;
+    private final Function<String, Port> ports;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(Threads.daemonFactory("control-units"));
+
+    private volatile Map<String, ControlUnit> controlUnits = Collections.emptyMap();
+    private Set<Port> wired = Collections.emptySet();
+    private Map<?, ?> definitions = Collections.emptyMap();
+    private ScheduleManager schedules;
+    // Topics of referenced devices that are not known yet, wired once they are
+    private volatile Set<String> unresolved = Collections.emptySet();
 
-    final DatabaseReference database;
+    private final ValueEventListener listener = new ValueEventListener() {
+        @Override
+        public void onDataChange(final DataSnapshot snapshot) {
+            final Object value = snapshot.getValue();
+            // Resolving ports may wait for Firebase, so not on its event thread
+            executor.execute(() -> load(value instanceof Map ? (Map<?, ?>) value : Collections.emptyMap()));
+        }
+
+        @Override
+        public void onCancelled(final DatabaseError error) {
+            LOG.warning("Could not read control units: " + error.getMessage());
+        }
+    };
 
     public ControlUnitManager(final DatabaseReference database) {
+        this(database, DeviceManager.GetDeviceManager());
+    }
+
+    public ControlUnitManager(final DatabaseReference database, final DeviceManager devices) {
+        this(database, reference -> findDevicePort(devices, reference));
+        devices.addOwnershipListener(() -> executor.execute(this::reload));
+        devices.addDeviceListener(topic -> {
+            if (unresolved.contains(topic.toUpperCase())) {
+                executor.execute(this::reload);
+            }
+        });
+    }
+
+    /**
+     * @param ports resolves a port reference "&lt;device topic&gt;/&lt;port&gt;"
+     */
+    ControlUnitManager(final DatabaseReference database, final Function<String, Port> ports) {
         this.database = database;
+        this.ports = ports;
+        MetricsRegistry.getInstance().gauge("control_units", () -> controlUnits.size());
+    }
+
+    /**
+     * Loads the control units and reloads them whenever they change.
+     */
+    public void start() {
+        database.addValueEventListener(listener);
+    }
+
+    /**
+     * Sets the schedules TIMED units switch off through. Call before start.
+     */
+    public synchronized void setScheduleManager(final ScheduleManager schedules) {
+        this.schedules = schedules;
+    }
+
+    public ControlUnit getControlUnit(final String key) {
+        return controlUnits.get(key);
+    }
+
+    public Map<String, ControlUnit> getControlUnits() {
+        return controlUnits;
+    }
+
+    /**
+     * Compiles the definitions and replaces the wiring of the previous ones.
+     * Units that are still defined keep their port.
+     */
+    synchronized void load(final Map<?, ?> definitions) {
+        final long start = System.nanoTime();
+        this.definitions = definitions;
+        final Map<String, ControlUnit> units = new HashMap<>();
+        final Map<Port, Set<Port>> sources = new HashMap<>();
+        final Set<String> missing = new HashSet<>();
+
+        definitions.forEach((key, value) -> {
+            if (!(value instanceof Map)) {
+                LOG.warning("Ignoring control unit " + key + ": not an object");
+                return;
+            }
+            final Map<?, ?> definition = (Map<?, ?>) value;
+            final ControlUnit.Type type;
+            try {
+                type = ControlUnit.Type.valueOf(field(definition, "type", "EVENT").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                LOG.warning("Ignoring control unit " + key + ": unknown type " + definition.get("type"));
+                return;
+            }
+            final String name = field(definition, "name", key.toString());
+
+            ControlUnit unit = controlUnits.get(key.toString());
+            if (unit == null) {
+                unit = new ControlUnit(name, type, database == null ? null : database.child(key.toString()));
+            }
+            unit.name = name;
+            unit.type = type;
+            unit.durationSeconds = number(definition, "durationSeconds");
+            unit.setSchedule(key.toString(), schedules);
+            if (type == ControlUnit.Type.TIMED && unit.durationSeconds <= 0) {
+                LOG.warning("Control unit " + key + ": TIMED without a durationSeconds");
+            }
+            units.put(key.toString(), unit);
 
-        // loadDeviceMapFromFirebase();
-
-        ControlUnit cu = new ControlUnit();
-        cu.database = this.database.child("controlsUnits");
-
-        cu.name = "Wasgoedlyn";
-        cu.setSources(new java.util.HashSet<Port>(){{
-            add(DeviceManager.GetDeviceManager().getDeviceByTopic("front-door-light-switch").getPort("power3"));
-            add(DeviceManager.GetDeviceManager().getDeviceByTopic("washing-line-relay").getPort("power"));
-        }});
-
-        DeviceManager.GetDeviceManager().getDeviceByTopic("front-door-light-switch").getPort("power3").setSources(new java.util.HashSet<Port>(){{
-            add(cu);
-        }});
-        DeviceManager.GetDeviceManager().getDeviceByTopic("washing-line-relay").getPort("power").setSources(new java.util.HashSet<Port>(){{
-            add(cu);
-        }});
-    }
-
-    // public ControlUnit getControlUnit(final String key) {
-    //     ControlUnit device = controlUnitMap.computeIfAbsent(name.toUpperCase(), n -> {
-    //         try {
-    //             return new ControlUnit();
-    //         } catch (Exception e) {
-    //             LOG.severe("Could not create a device");
-    //             return null;
-    //         }
-    //     });
-    //     controlUnit.setName(name);
-    //     return device;
-    // }
-
-    // private void loadDeviceMapFromFirebase() {
-    //     try {
-    //         Map<String, Object> map = (Map<String, Object>) Firebase.readObject(database.child("lookup"));
-    //         map.forEach((k, v) -> {
-    //             deviceMap.computeIfAbsent(k, kk -> {
-    //                 try {
-    //                     return new Device(client, database, v.toString());
-    //                 } catch (Exception e) {
-    //                     return null;
-    //                 }
-    //             });
-    //         });
-    //     } catch (Exception e) {
-    //     }
-    // }
-}
\ No newline at end of file
+            final Set<Port> unitSources = sources.computeIfAbsent(unit, u -> new LinkedHashSet<>());
+            for (Object reference : references(definition.get("ports"))) {
+                final Port port = resolve(key.toString(), String.valueOf(reference));
+                if (port != null) {
+                    unitSources.add(port);
+                    sources.computeIfAbsent(port, p -> new LinkedHashSet<>()).add(unit);
+                } else {
+                    missing.add(topicOf(String.valueOf(reference)).toUpperCase());
+                }
+            }
+        });
+
+        for (Port port : wired) {
+            sources.putIfAbsent(port, Collections.emptySet());
+        }
+        PortGraph.setSources(sources);
+        for (Map.Entry<String, ControlUnit> previous : controlUnits.entrySet()) {
+            if (units.get(previous.getKey()) != previous.getValue()) {
+                previous.getValue().unregister();
+            }
+        }
+        final Set<Port> next = new LinkedHashSet<>(sources.keySet());
+        next.removeIf(port -> sources.get(port).isEmpty());
+        wired = next;
+        controlUnits = Collections.unmodifiableMap(units);
+        unresolved = missing;
+
+        COMPILE_TIME.record(System.nanoTime() - start);
+        LOG.info("Loaded " + units.size() + " control units wiring " + wired.size() + " ports");
+    }
+
+    /**
+     * Compiles the last definitions again, resolving their ports anew.
+     */
+    synchronized void reload() {
+        load(definitions);
+    }
+
+    private static String field(final Map<?, ?> definition, final String field, final String defaultValue) {
+        final Object value = definition.get(field);
+        return value == null ? defaultValue : value.toString();
+    }
+
+    private static long number(final Map<?, ?> definition, final String field) {
+        final Object value = definition.get(field);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static Collection<?> references(final Object ports) {
+        if (ports instanceof Collection) {
+            return (Collection<?>) ports;
+        }
+        if (ports instanceof Map) {
+            return ((Map<?, ?>) ports).values();
+        }
+        return Collections.emptyList();
+    }
+
+    private Port resolve(final String unit, final String reference) {
+        try {
+            final Port port = ports.apply(reference);
+            if (port == null) {
+                LOG.warning("Control unit " + unit + ": unknown port " + reference
+                        + ", wired once its device is known");
+            }
+            return port;
+        } catch (RuntimeException e) {
+            LOG.warning("Control unit " + unit + ": could not resolve port " + reference + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The port of a reference, or null if its device is not known. Unknown
+     * devices are not created.
+     */
+    static Port findDevicePort(final DeviceManager devices, final String reference) {
+        final int slash = reference.lastIndexOf('/');
+        if (slash <= 0 || slash == reference.length() - 1) {
+            throw new IllegalArgumentException("expected <device topic>/<port>");
+        }
+        return devices.getPort(reference.substring(0, slash), reference.substring(slash + 1));
+    }
+
+    private static String topicOf(final String reference) {
+        final int slash = reference.lastIndexOf('/');
+        return slash <= 0 ? reference : reference.substring(0, slash);
+    }
+
+    @Override
+    public void close() {
+        database.removeEventListener(listener);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,181 @@
+package home.controlunit;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.ValueEventListener;
+
+import home.common.Power;
+import home.device.DeviceManager;
+import home.device.Scene;
+import util.Config;
+import util.FirebaseWriter;
+import util.Threads;
+
+/**
+ * Loads scenes and groups from /scenes and switches them on request.
+ *
+ * A scene is stored as
+ * <pre>
+ * /scenes/&lt;key&gt;: { name: "All off", power: "OFF",
+ *                    ports: ["kitchen-light/power1", "porch-light/power", "tv-socket/power ON"] }
+ * </pre>
+ * where every port is switched to the power of the scene unless it names its
+ * own. Setting activate of a scene to true switches it; the manager clears
+ * the flag and stores how it went in lastResult once every device confirmed
+ * or sceneTimeoutMillis (default 5000) passed. With several coordinator
+ * instances the one that owns the scene switches it, passing the ports of
+ * devices it does not own on to their instances.
+ */
+public class SceneManager implements Closeable {
+    private static final Logger LOG = Logger.getLogger(SceneManager.class.getName());
+
+    private final DatabaseReference database;
+    private final DeviceManager devices;
+    private final long timeoutMillis = Config.getLong("sceneTimeoutMillis", 5000);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(Threads.daemonFactory("scenes"));
+
+    private volatile Map<String, Scene> scenes = Collections.emptyMap();
+
+    private final ValueEventListener listener = new ValueEventListener() {
+        @Override
+        public void onDataChange(final DataSnapshot snapshot) {
+            final Object value = snapshot.getValue();
+            // Switching may publish and create ports, so not on the Firebase event thread
+            executor.execute(() -> load(value instanceof Map ? (Map<?, ?>) value : Collections.emptyMap()));
+        }
+
+        @Override
+        public void onCancelled(final DatabaseError error) {
+            LOG.warning("Could not read scenes: " + error.getMessage());
+        }
+    };
+
+    public SceneManager(final DatabaseReference database, final DeviceManager devices) {
+        this.database = database;
+        this.devices = devices;
+    }
+
+    /**
+     * Loads the scenes, keeps them loaded and switches them when requested.
+     */
+    public void start() {
+        database.addValueEventListener(listener);
+    }
+
+    public Scene getScene(final String key) {
+        return scenes.get(key);
+    }
+
+    public Map<String, Scene> getScenes() {
+        return scenes;
+    }
+
+    /**
+     * Switches a scene and stores the result with it.
+     *
+     * @return the result, or null if there is no such scene
+     */
+    public CompletableFuture<Scene.Result> activate(final String key) {
+        final Scene scene = scenes.get(key);
+        if (scene == null) {
+            return null;
+        }
+        LOG.info("Switching scene " + key + ": " + scene.getMembers().size() + " ports");
+        return devices.activate(scene, timeoutMillis).whenComplete((result, error) -> {
+            if (error != null) {
+                LOG.warning("Scene " + key + " could not be switched: " + error);
+                return;
+            }
+            LOG.info("Scene " + key + ": " + result);
+            FirebaseWriter.getInstance().set(database.child(key).child("lastResult"), toMap(result));
+        });
+    }
+
+    void load(final Map<?, ?> definitions) {
+        final Map<String, Scene> loaded = new HashMap<>();
+        final List<String> requested = new ArrayList<>();
+        definitions.forEach((key, value) -> {
+            final Scene scene = parse(key.toString(), value);
+            if (scene == null) {
+                return;
+            }
+            loaded.put(key.toString(), scene);
+            if (Boolean.TRUE.equals(((Map<?, ?>) value).get("activate")) && devices.owns("scenes/" + key)) {
+                requested.add(key.toString());
+            }
+        });
+        scenes = Collections.unmodifiableMap(loaded);
+        for (String key : requested) {
+            database.child(key).child("activate").removeValueAsync();
+            activate(key);
+        }
+    }
+
+    private static Scene parse(final String key, final Object value) {
+        if (!(value instanceof Map)) {
+            LOG.warning("Ignoring scene " + key + ": not an object");
+            return null;
+        }
+        final Map<?, ?> definition = (Map<?, ?>) value;
+        final Object name = definition.get("name");
+        final Object ports = definition.get("ports");
+        final Collection<?> references = ports instanceof Collection ? (Collection<?>) ports
+                : ports instanceof Map ? ((Map<?, ?>) ports).values() : Collections.emptyList();
+        try {
+            final Object scenePower = definition.get("power");
+            final Power power = scenePower == null ? null : Power.valueOf(scenePower.toString().toUpperCase());
+            final Map<String, Power> members = new LinkedHashMap<>();
+            for (Object reference : references) {
+                final String[] parts = reference.toString().trim().split("\\s+");
+                if (parts.length > 1) {
+                    members.put(parts[0], Power.valueOf(parts[1].toUpperCase()));
+                } else if (power != null) {
+                    members.put(parts[0], power);
+                } else {
+                    LOG.warning("Scene " + key + ": no power for " + reference);
+                }
+            }
+            return new Scene(name == null ? key : name.toString(), members);
+        } catch (IllegalArgumentException e) {
+            LOG.warning("Ignoring scene " + key + ": unknown power: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Map<String, Object> toMap(final Scene.Result result) {
+        final Map<String, Object> value = new HashMap<>();
+        value.put("confirmed", result.confirmedNanos.size());
+        value.put("failed", result.failures.size());
+        value.put("forwarded", result.forwarded.size());
+        value.put("millis", TimeUnit.NANOSECONDS.toMillis(result.elapsedNanos));
+        value.put("slowestMillis", TimeUnit.NANOSECONDS.toMillis(
+                result.confirmedNanos.values().stream().mapToLong(Long::longValue).max().orElse(0)));
+        // Port references are no valid keys
+        final List<String> failures = new ArrayList<>();
+        result.failures.forEach((member, reason) -> failures.add(member + ": " + reason));
+        value.put("failures", failures);
+        value.put("time", System.currentTimeMillis());
+        return value;
+    }
+
+    @Override
+    public void close() {
+        database.removeEventListener(listener);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,380 @@
+package home.controlunit;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.ValueEventListener;
+
+import home.common.Port;
+import home.common.Power;
+import home.device.DeviceManager;
+import util.Config;
+import util.Threads;
+import util.TimingWheel;
+import util.metrics.Counter;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Switches ports and control units at set times, from /schedules.
+ *
+ * A schedule is stored as
+ * <pre>
+ * /schedules/&lt;key&gt;: { target: "washing-line-relay/power", power: "OFF", at: 1589112000000,
+ *                       everySeconds: 86400 }
+ * </pre>
+ * where at is the next time in epoch millis and everySeconds is left out for
+ * a schedule that runs once. A target is either a device port or a control
+ * unit, "controlUnits/&lt;key&gt;". The power is set through
+ * {@link Port#setPower(Power)}, so the listeners of the target follow.
+ *
+ * Pending schedules are kept on a {@link TimingWheel}. A schedule that runs
+ * once is removed after it ran; a recurring one stores its next time. After a
+ * restart a missed single run happens right away, while a recurring schedule
+ * skips to its next time in the future. With several coordinator instances a
+ * schedule runs on the instance that owns its target.
+ */
+public class ScheduleManager implements Closeable {
+    private static final Logger LOG = Logger.getLogger(ScheduleManager.class.getName());
+
+    private static final Counter FIRED = MetricsRegistry.getInstance().counter("schedules_fired_total");
+    private static final Counter UNRESOLVED = MetricsRegistry.getInstance().counter("schedules_unresolved_total");
+
+    private static final String CONTROL_UNITS = "controlUnits/";
+    private static final long RETRY_MILLIS = 1000;
+    private static final long WRITE_MILLIS = 5000;
+    private static final int RETRIES = 5;
+
+    static final class Schedule {
+        final String target;
+        final Power power;
+        final long at;
+        final long everyMillis;
+
+        Schedule(final String target, final Power power, final long at, final long everyMillis) {
+            this.target = target;
+            this.power = power;
+            this.at = at;
+            this.everyMillis = everyMillis;
+        }
+
+        Map<String, Object> toMap() {
+            final Map<String, Object> value = new HashMap<>();
+            value.put("target", target);
+            value.put("power", power.toString());
+            value.put("at", at);
+            if (everyMillis > 0) {
+                value.put("everySeconds", everyMillis / 1000);
+            }
+            return value;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Schedule)) {
+                return false;
+            }
+            final Schedule other = (Schedule) o;
+            return target.equals(other.target) && power == other.power && at == other.at
+                    && everyMillis == other.everyMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(target, power, at, everyMillis);
+        }
+    }
+
+    private static final class Armed {
+        final Schedule schedule;
+        final int attempt;
+        TimingWheel.Timeout timeout;
+
+        Armed(final Schedule schedule, final int attempt) {
+            this.schedule = schedule;
+            this.attempt = attempt;
+        }
+    }
+
+    private final DatabaseReference database;
+    private final Function<String, Port> targets;
+    private final Predicate<String> owns;
+    private final TimingWheel wheel;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(Threads.daemonFactory("schedules"));
+
+    private final Map<String, Armed> armed = new HashMap<>();
+    // Local changes, null for a removal, by the time they were made. Snapshots
+    // from before a change would undo it, so it wins until a snapshot shows it.
+    private final Map<String, Schedule> written = new HashMap<>();
+    private final Map<String, Long> writtenAt = new HashMap<>();
+    private Map<?, ?> definitions = Collections.emptyMap();
+
+    private final ValueEventListener listener = new ValueEventListener() {
+        @Override
+        public void onDataChange(final DataSnapshot snapshot) {
+            final Object value = snapshot.getValue();
+            executor.execute(() -> load(value instanceof Map ? (Map<?, ?>) value : Collections.emptyMap()));
+        }
+
+        @Override
+        public void onCancelled(final DatabaseError error) {
+            LOG.warning("Could not read schedules: " + error.getMessage());
+        }
+    };
+
+    public ScheduleManager(final DatabaseReference database, final DeviceManager devices,
+            final ControlUnitManager controlUnits) {
+        this(database, target -> resolve(devices, controlUnits, target), target -> devices.owns(ownerTopic(target)),
+                new TimingWheel(Config.getLong("scheduleTickMillis", 100), 64, System::currentTimeMillis,
+                        MetricsRegistry.getInstance().histogram("schedule_lag_nanos")));
+        devices.addOwnershipListener(() -> executor.execute(this::reload));
+    }
+
+    /**
+     * @param targets resolves the target of a schedule to its port
+     * @param owns    whether a target is switched by this instance
+     */
+    ScheduleManager(final DatabaseReference database, final Function<String, Port> targets,
+            final Predicate<String> owns, final TimingWheel wheel) {
+        this.database = database;
+        this.targets = targets;
+        this.owns = owns;
+        this.wheel = wheel;
+        MetricsRegistry.getInstance().gauge("schedules_pending", wheel::size);
+    }
+
+    /**
+     * Loads the schedules, keeps them loaded and starts running them.
+     */
+    public void start() {
+        wheel.start(Threads.daemonFactory("timing-wheel"));
+        database.addValueEventListener(listener);
+    }
+
+    /**
+     * Stores a schedule and arms it, replacing any schedule of the key.
+     *
+     * @param everyMillis the period of a recurring schedule, or 0 to run once
+     */
+    public void schedule(final String key, final String target, final Power power, final long at,
+            final long everyMillis) {
+        final Schedule schedule = new Schedule(target, power, at, everyMillis);
+        synchronized (this) {
+            write(key, schedule);
+            arm(key, schedule, 0);
+        }
+    }
+
+    /**
+     * Removes the schedule of the key.
+     */
+    public void cancel(final String key) {
+        synchronized (this) {
+            disarm(key);
+            write(key, null);
+        }
+    }
+
+    public synchronized boolean isPending(final String key) {
+        return armed.containsKey(key);
+    }
+
+    synchronized void load(final Map<?, ?> definitions) {
+        this.definitions = definitions;
+        final Map<String, Schedule> loaded = new HashMap<>();
+        definitions.forEach((key, value) -> {
+            final Schedule schedule = parse(key.toString(), value);
+            if (schedule != null) {
+                loaded.put(key.toString(), schedule);
+            }
+        });
+        final long now = System.currentTimeMillis();
+        writtenAt.entrySet().removeIf(entry -> {
+            final String key = entry.getKey();
+            final Schedule local = written.get(key);
+            if (Objects.equals(local, loaded.get(key)) || now - entry.getValue() > WRITE_MILLIS) {
+                written.remove(key);
+                return true;
+            }
+            if (local == null) {
+                loaded.remove(key);
+            } else {
+                loaded.put(key, local);
+            }
+            return false;
+        });
+
+        armed.keySet().removeIf(key -> {
+            if (loaded.containsKey(key)) {
+                return false;
+            }
+            armed.get(key).timeout.cancel();
+            return true;
+        });
+        loaded.forEach((key, schedule) -> {
+            final Armed current = armed.get(key);
+            if (current != null && current.schedule.equals(schedule)) {
+                return;
+            }
+            arm(key, schedule, 0);
+        });
+    }
+
+    /**
+     * Loads the last definitions again, for when targets moved between instances.
+     */
+    synchronized void reload() {
+        load(definitions);
+    }
+
+    private static Schedule parse(final String key, final Object value) {
+        if (!(value instanceof Map)) {
+            LOG.warning("Ignoring schedule " + key + ": not an object");
+            return null;
+        }
+        final Map<?, ?> definition = (Map<?, ?>) value;
+        final Object target = definition.get("target");
+        final Object at = definition.get("at");
+        final Object every = definition.get("everySeconds");
+        if (target == null || !(at instanceof Number) || every != null && !(every instanceof Number)) {
+            LOG.warning("Ignoring schedule " + key + ": expected target, at and optionally everySeconds");
+            return null;
+        }
+        try {
+            final Power power = Power.valueOf(String.valueOf(definition.get("power")).toUpperCase());
+            return new Schedule(target.toString(), power, ((Number) at).longValue(),
+                    every == null ? 0 : ((Number) every).longValue() * 1000);
+        } catch (IllegalArgumentException e) {
+            LOG.warning("Ignoring schedule " + key + ": unknown power " + definition.get("power"));
+            return null;
+        }
+    }
+
+    private void arm(final String key, final Schedule schedule, final int attempt) {
+        disarm(key);
+        if (!owns.test(schedule.target)) {
+            return;
+        }
+        long at = attempt == 0 ? schedule.at : System.currentTimeMillis() + RETRY_MILLIS;
+        if (schedule.everyMillis > 0 && attempt == 0) {
+            final long now = System.currentTimeMillis();
+            if (at < now) {
+                // Missed runs of a recurring schedule are skipped
+                at += ((now - at + schedule.everyMillis - 1) / schedule.everyMillis) * schedule.everyMillis;
+            }
+        }
+        final Armed entry = new Armed(schedule, attempt);
+        armed.put(key, entry);
+        entry.timeout = wheel.schedule(at, () -> executor.execute(() -> fire(key, entry)));
+    }
+
+    private void write(final String key, final Schedule schedule) {
+        written.put(key, schedule);
+        writtenAt.put(key, System.currentTimeMillis());
+        if (schedule == null) {
+            database.child(key).removeValueAsync();
+        } else {
+            database.child(key).setValueAsync(schedule.toMap());
+        }
+    }
+
+    private void disarm(final String key) {
+        final Armed previous = armed.remove(key);
+        if (previous != null) {
+            previous.timeout.cancel();
+        }
+    }
+
+    private void fire(final String key, final Armed entry) {
+        synchronized (this) {
+            if (armed.get(key) != entry) {
+                return;
+            }
+        }
+        // Not while holding the schedules, a lookup may take a while
+        final Port target = resolveTarget(entry.schedule.target);
+        synchronized (this) {
+            if (armed.get(key) != entry) {
+                // Cancelled or replaced meanwhile
+                return;
+            }
+            final Schedule schedule = entry.schedule;
+            if (target == null) {
+                UNRESOLVED.increment();
+                if (entry.attempt < RETRIES) {
+                    // Devices may not be known yet right after a start
+                    arm(key, schedule, entry.attempt + 1);
+                    return;
+                }
+                LOG.warning("Schedule " + key + ": unknown target " + schedule.target);
+            }
+            armed.remove(key);
+            if (schedule.everyMillis > 0) {
+                // The first time of the schedule after this run
+                final long now = Math.max(System.currentTimeMillis(), schedule.at);
+                final long next = schedule.at + ((now - schedule.at) / schedule.everyMillis + 1) * schedule.everyMillis;
+                final Schedule following = new Schedule(schedule.target, schedule.power, next, schedule.everyMillis);
+                write(key, following);
+                arm(key, following, 0);
+            } else {
+                write(key, null);
+            }
+        }
+        if (target == null) {
+            return;
+        }
+        try {
+            LOG.info("Schedule " + key + ": " + entry.schedule.target + " " + entry.schedule.power);
+            target.setPower(entry.schedule.power);
+            FIRED.increment();
+        } catch (Exception e) {
+            LOG.warning("Schedule " + key + " could not switch " + entry.schedule.target + ": " + e.getMessage());
+        }
+    }
+
+    private Port resolveTarget(final String target) {
+        try {
+            return targets.apply(target);
+        } catch (RuntimeException e) {
+            LOG.warning("Could not resolve schedule target " + target + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The port of a target, or null if it is not known. Unknown devices are
+     * not created, so a misspelled target is reported instead.
+     */
+    private static Port resolve(final DeviceManager devices, final ControlUnitManager controlUnits,
+            final String target) {
+        if (target.startsWith(CONTROL_UNITS)) {
+            return controlUnits.getControlUnit(target.substring(CONTROL_UNITS.length()));
+        }
+        return ControlUnitManager.findDevicePort(devices, target);
+    }
+
+    /**
+     * The topic whose partition decides which instance switches a target.
+     */
+    private static String ownerTopic(final String target) {
+        final int slash = target.lastIndexOf('/');
+        return target.startsWith(CONTROL_UNITS) || slash <= 0 ? target : target.substring(0, slash);
+    }
+
+    @Override
+    public void close() {
+        database.removeEventListener(listener);
+        wheel.close();
+        executor.shutdown();
+    }
+}
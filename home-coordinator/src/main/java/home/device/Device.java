@@ -1,23 +1,33 @@
 package home.device;
 
-import java.time.Instant;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
-import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.Exclude;
 import com.google.firebase.database.ServerValue;
-import com.google.gson.Gson;
-
-import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
-import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import home.common.Port;
-import util.Firebase;
+import home.common.Power;
+import home.common.State;
+import home.mqtt.CommandPublisher;
+import home.stats.TimeSeries;
+import home.stats.TimeSeriesAggregator;
+import util.Config;
+import util.metrics.Counter;
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
 
 public class Device {
 
@@ -29,93 +39,258 @@ public class Device {
 
     private static final Logger LOG = Logger.getLogger(Device.class.getName());
 
+    // Commands Tasmota takes in one Backlog
+    static final int BACKLOG_LIMIT = 30;
+
+    private static final Histogram PARSE_TIME = MetricsRegistry.getInstance().histogram("device_status_parse_nanos");
+    private static final Histogram TELEMETRY_PARSE_TIME =
+            MetricsRegistry.getInstance().histogram("device_telemetry_parse_nanos");
+    private static final Counter TELEMETRY_CHANGED = MetricsRegistry.getInstance().counter("device_telemetry_changed_total");
+    private static final Counter TELEMETRY_UNCHANGED =
+            MetricsRegistry.getInstance().counter("device_telemetry_unchanged_total");
+    private static final Counter LAST_ACCESS_THROTTLED =
+            MetricsRegistry.getInstance().counter("device_last_access_throttled_total");
+    private static final long LAST_ACCESS_INTERVAL_NANOS =
+            TimeUnit.SECONDS.toNanos(Config.getLong("lastAccessIntervalSeconds", 30));
+    private static final MetricsRegistry.CounterFamily MESSAGES =
+            MetricsRegistry.getInstance().counterFamily("device_messages_total", "device");
+
+    private static final StatusParser STATUS_PARSER = new StatusParser()
+            .register("POWER*", Device::readPower)
+            .register("Wifi.Signal", Device::readWifiSignal);
+
+    /**
+     * Periodic tele STATE. Only values that differ from the last report go
+     * downstream, so the same state every period costs no writes and does not
+     * travel through the port graph.
+     */
+    private static final StatusParser TELEMETRY_PARSER = new StatusParser()
+            .register("POWER*", Device::readReportedPower)
+            .register("Wifi.Signal", Device::readWifiSignal);
+
+    /**
+     * tele SENSOR, with a value object per sensor: {"AM2301":{"Temperature":21.3}}.
+     */
+    private static final StatusParser SENSOR_PARSER = new StatusParser()
+            .register("*", Device::readSensor);
+
+    static {
+        Provisioning.DESIRED.forEach(setting -> STATUS_PARSER.register(setting.command, Device::readSetting));
+    }
+
     @Exclude
-    private final IMqttAsyncClient client;
+    private final CommandPublisher commands;
     @Exclude
     private final DatabaseReference database;
     @Exclude
-    private final Map<String, IOPort> ports = new TreeMap<>();
+    private volatile IOPort[] ports = new IOPort[0];
     @Exclude
     private final String firebaseId;
     @Exclude
-    private Connected connected;
+    private final TimeSeries wifiSignal;
+    @Exclude
+    private final DeviceShadow shadow;
+    @Exclude
+    private final AtomicLong lastAccessWritten = new AtomicLong();
+    @Exclude
+    private final Counter messages;
+    @Exclude
+    private final Provisioning provisioning;
+    @Exclude
+    private final Map<String, Object> telemetry = new ConcurrentHashMap<>();
+    @Exclude
+    private volatile long lastMessageNanos = System.nanoTime();
+    @Exclude
+    private volatile Connected connected;
 
-    private String topic;
+    private volatile String topic;
 
     public Device() {
-        this.client = null;
+        this.commands = null;
         this.database = null;
         this.firebaseId = null;
+        this.wifiSignal = null;
+        this.shadow = null;
+        this.messages = null;
+        this.provisioning = null;
     }
 
-    protected Device(final String topic, final IMqttAsyncClient client, DatabaseReference database) {
-        this(topic, client, database, null);
-        try{
-            requestStatus();
-        } catch(Exception e){}
-    }
-
-    protected Device(final String topic, final IMqttAsyncClient client, final DatabaseReference database, final String firebaseId) {
+    protected Device(final String topic, final CommandPublisher commands, final DatabaseReference database, final String firebaseId) {
         LOG.fine("Constructing new device: " + topic);
-        this.client = client;
+        this.commands = commands;
         this.topic = topic;
-
-        if (firebaseId == null) {
-            this.firebaseId = getOrAllocateFirebaseId(database);
-        } else {
-            this.firebaseId = firebaseId;
-        }
+        this.firebaseId = firebaseId;
+        this.messages = MESSAGES.get(topic.toUpperCase());
 
         LOG.finer("Update device in firebase");
         this.database = database.child("list").child(this.firebaseId);
-        this.database.child("topic").setValueAsync(topic);
+        this.shadow = DeviceShadow.of(database);
+        this.wifiSignal = TimeSeriesAggregator.getInstance().series(database.getRoot().child("stats"), "wifiSignal",
+                firebaseId);
+        this.provisioning = new Provisioning(this, this.database.child("config"));
+        write(this.database.child("topic"), topic);
         setLastAccess();
     }
 
-    private String getOrAllocateFirebaseId(DatabaseReference database) {
-        DatabaseReference lookupPath = database.child("lookup").child(topic.toUpperCase());
+    /**
+     * Looks up the firebaseId of a device topic in the shadow of the devices
+     * tree, allocating a new one for unknown devices.
+     */
+    static CompletableFuture<String> allocateFirebaseId(final DatabaseReference database, final String topic) {
+        final DatabaseReference lookupPath = database.child("lookup").child(topic.toUpperCase());
         LOG.finer("Looking up firebaseId for device: " + lookupPath.getPath());
 
-        DataSnapshot firebaseIdSnapshot = Firebase.readObject(lookupPath);
-        String firebaseId;
-
-        if (firebaseIdSnapshot == null) {
+        final DeviceShadow shadow = DeviceShadow.of(database);
+        return shadow.loaded().thenApply(loaded -> {
+            final Object known = shadow.get(lookupPath);
+            if (known != null) {
+                return known.toString();
+            }
             // Generate new key
-            firebaseId = database.push().getKey();
+            final String firebaseId = database.push().getKey();
             LOG.finer("Creating new device in firebase with key: " + firebaseId);
-            lookupPath.setValueAsync(firebaseId);
-        } else {
-            firebaseId = firebaseIdSnapshot.getValue().toString();
-        }
+            shadow.set(lookupPath, firebaseId);
+            return firebaseId;
+        });
+    }
+
+    /**
+     * Writes a value below this device unless firebase already has it.
+     */
+    void write(final DatabaseReference ref, final Object value) {
+        shadow.set(ref, value);
+    }
 
-        return firebaseId.toString();
+    DeviceShadow getShadow() {
+        return shadow;
     }
 
-    public IOPort getPort(String name) {
-        name = name.toUpperCase();
-        IOPort port = ports.get(name);
+    /**
+     * Returns the port of the name in any case, creating it if needed.
+     */
+    public IOPort getPort(final String name) {
+        final IOPort port = findPort(name);
+        return port != null ? port : addPort(name, null);
+    }
+
+    /**
+     * The port of the name in any case, or null. Reads the ports without
+     * locking; a device has only a few.
+     */
+    IOPort findPort(final String name) {
+        for (IOPort port : ports) {
+            if (port.name.equalsIgnoreCase(name)) {
+                return port;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a port by publishing a copy of the ports, kept sorted by name.
+     *
+     * @param state the state to restore, or null for a new port
+     */
+    private synchronized IOPort addPort(final String name, final State state) {
+        IOPort port = findPort(name);
         if (port != null) {
             return port;
         }
-        LOG.finest(this + ": ports lock waiting...");
-        synchronized (ports) {
-            LOG.finest(this + ": ports lock took...");
-            port = ports.computeIfAbsent(name, n -> new IOPort(this, n, this.database.child("ports")));
+        final String upperCase = name.toUpperCase();
+        port = state == null ? new IOPort(this, upperCase, this.database.child("ports"))
+                : new IOPort(this, upperCase, this.database.child("ports"), state);
+        final IOPort[] current = ports;
+        final IOPort[] next = new IOPort[current.length + 1];
+        int i = 0;
+        for (; i < current.length && current[i].name.compareTo(upperCase) < 0; i++) {
+            next[i] = current[i];
         }
-        LOG.finest(this + ": port lock released");
+        next[i] = port;
+        System.arraycopy(current, i, next, i + 1, current.length - i);
+        ports = next;
         return port;
     }
 
-    protected void send(final String postfix, final String message) throws MqttPersistenceException, MqttException {
-        if (!client.isConnected()) {
+    /**
+     * Takes the ports out of the port graph, for a device that is let go.
+     */
+    void release() {
+        for (IOPort port : ports) {
+            port.unregister();
+        }
+    }
+
+    /**
+     * Queues the command cmnd/&lt;topic&gt;/&lt;postfix&gt;, see {@link CommandPublisher}.
+     *
+     * @return false if the command was dropped
+     */
+    protected boolean send(final String postfix, final String message) {
+        return send(postfix, message, CommandPublisher.Priority.HIGH);
+    }
+
+    boolean send(final String postfix, final String message, final CommandPublisher.Priority priority) {
+        return send(postfix, message, priority, null);
+    }
+
+    boolean send(final String postfix, final String message, final CommandPublisher.Priority priority,
+            final CommandPublisher.Listener listener) {
+        return commands.send(this.topic, postfix, message, priority, listener);
+    }
+
+    /**
+     * Switches several ports with as few commands as Tasmota allows: a Backlog
+     * of up to {@value #BACKLOG_LIMIT} POWER commands, or a plain POWER command
+     * for a single port. The listeners of the ports do not follow.
+     *
+     * @return per port a future of the time until the device confirmed it
+     */
+    Map<IOPort, CompletableFuture<Long>> switchPorts(final Map<IOPort, Power> powers) {
+        final Map<IOPort, CompletableFuture<Long>> confirmed = new LinkedHashMap<>(powers.size() * 2);
+        final List<IOPort> batch = new ArrayList<>(BACKLOG_LIMIT);
+        final List<IOPort.Command> batchCommands = new ArrayList<>(BACKLOG_LIMIT);
+        final Iterator<Map.Entry<IOPort, Power>> entries = powers.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<IOPort, Power> entry = entries.next();
+            final IOPort.Command command = entry.getKey().expect(entry.getValue());
+            confirmed.put(entry.getKey(), command.confirmed);
+            batch.add(entry.getKey());
+            batchCommands.add(command);
+            if (batch.size() < BACKLOG_LIMIT && entries.hasNext()) {
+                continue;
+            }
+            final CommandPublisher.Listener listener =
+                    IOPort.track(new ArrayList<>(batch), new ArrayList<>(batchCommands));
+            final boolean sent;
+            if (batch.size() == 1) {
+                sent = send(batch.get(0).name, batchCommands.get(0).power.toString(), CommandPublisher.Priority.HIGH,
+                        listener);
+            } else {
+                final StringBuilder backlog = new StringBuilder();
+                for (int i = 0; i < batch.size(); i++) {
+                    if (i > 0) {
+                        backlog.append("; ");
+                    }
+                    backlog.append(batch.get(i).name).append(' ').append(batchCommands.get(i).power);
+                }
+                sent = send("Backlog", backlog.toString(), CommandPublisher.Priority.HIGH, listener);
+            }
+            if (!sent) {
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).abandon(batchCommands.get(i), "dropped");
+                }
+            }
+            batch.clear();
+            batchCommands.clear();
         }
-        MqttMessage msg = new MqttMessage(message.getBytes());
-        msg.setQos(0);
-        msg.setRetained(true);
-        String fullTopic = String.format("cmnd/%s/%s", this.topic, postfix);
-        LOG.finer("Publish MQTT message: " + fullTopic + " " + message);
-        client.publish(fullTopic, msg);
-        LOG.finer("Publish MQTT message complete");
+        return confirmed;
+    }
+
+    /**
+     * The state of the last LWT message, or null before the first one.
+     */
+    Connected getConnected() {
+        return connected;
     }
 
     protected void setConnected(String value){
@@ -128,58 +303,218 @@ public class Device {
             this.connected = Connected.UNKNOWN;
         }
         if (previousConnected != this.connected){
-            this.database.child("connected").setValueAsync(this.connected);
+            write(this.database.child("connected"), this.connected);
         }
 }
 
-    protected void requestStatus() throws MqttPersistenceException, MqttException {
-        String fullTopic = String.format("cmnd/%s/STATE", this.topic);
-        MqttMessage msg = new MqttMessage("".getBytes());
-        msg.setQos(0);
-        msg.setRetained(true);
-        client.publish(fullTopic, msg);
+    protected void requestStatus() {
+        send("STATE", "", CommandPublisher.Priority.LOW);
+    }
+
+    protected void updateStatus(final byte[] statusMessage) throws IOException {
+        setLastAccess();
+        final long start = System.nanoTime();
+        STATUS_PARSER.parse(this, statusMessage);
+        PARSE_TIME.record(System.nanoTime() - start);
+        LOG.finest("Processing complete");
+    }
+
+    /**
+     * Handles a tele STATE report, passing on only what changed.
+     */
+    protected void updateTelemetry(final byte[] telemetryMessage) throws IOException {
+        setLastAccess();
+        final long start = System.nanoTime();
+        TELEMETRY_PARSER.parse(this, telemetryMessage);
+        TELEMETRY_PARSE_TIME.record(System.nanoTime() - start);
     }
 
-    protected void updateStatus(String statusMessage) {
+    /**
+     * Handles a tele SENSOR report, writing the sensor values that changed.
+     */
+    protected void updateSensors(final byte[] sensorMessage) throws IOException {
         setLastAccess();
-        Gson gson = new Gson();
-        @SuppressWarnings("unchecked")
-        Map<String, Object> map = (Map<String, Object>) gson.fromJson(statusMessage, Map.class);
-        LOG.finer("Status message parsed successfully");
-        map.forEach((k, v) -> {
-            if (k.toUpperCase().startsWith("POWER")) {
-                LOG.finest("Processing power status for " + k + " = " + v.toString());
-                Port p = this.getPort(k);
-                LOG.finest("Set state");
-                p.setState(v.toString());
+        final long start = System.nanoTime();
+        SENSOR_PARSER.parse(this, sensorMessage);
+        TELEMETRY_PARSE_TIME.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Remembers a reported value.
+     *
+     * @return false if it is the value reported last time
+     */
+    private boolean changed(final String key, final Object value) {
+        if (value.equals(telemetry.put(key, value))) {
+            TELEMETRY_UNCHANGED.increment();
+            return false;
+        }
+        TELEMETRY_CHANGED.increment();
+        return true;
+    }
+
+    /**
+     * Counts a message received from this device.
+     */
+    void countMessage() {
+        messages.increment();
+        lastMessageNanos = System.nanoTime();
+    }
+
+    /**
+     * When the last message of this device was handled, or when it was created.
+     */
+    long getLastMessageNanos() {
+        return lastMessageNanos;
+    }
+
+    public static StatusParser getStatusParser() {
+        return STATUS_PARSER;
+    }
+
+    private static void readPower(final Device device, final String name, final JsonReader reader) throws IOException {
+        if (!isPort(name) || reader.peek() != JsonToken.STRING) {
+            reader.skipValue();
+            return;
+        }
+        final String value = reader.nextString();
+        LOG.finest("Processing power status for " + name + " = " + value);
+        device.getPort(name).setState(value);
+    }
+
+    /**
+     * Only POWER and POWER&lt;n&gt; are ports, other keys such as PowerOnState
+     * share the prefix.
+     */
+    private static boolean isPort(final String name) {
+        for (int i = "POWER".length(); i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
             }
-            if (k.toUpperCase().equals("WIFI")) {
-                LOG.finest("Process wifi status: " + v.toString());
-                @SuppressWarnings("unchecked")
-                Map<String, Object> wifiMap = (Map<String, Object>) v;
-                LOG.finest("Wifi map: " + wifiMap);
-                Object signal = wifiMap.get("Signal");
-                if (signal != null) {
-                    try {
-                        database.child("wifi").child("signal").setValueAsync(signal);
-                        long now = Instant.now().getEpochSecond();
-                        // truncate
-                        now = now - (now % (15 * 60));
-                        // convert to millis
-                        now = now * 1000;
-                        database.getRoot().child("stats").child("wifiSignal").child(firebaseId).child(String.valueOf(now))
-                                .setValueAsync(signal);
-                    } catch (Exception e) {
-                        LOG.warning("Could not publish signal strength: " + e.getMessage());
-                    }
-                }
+        }
+        return true;
+    }
+
+    /**
+     * A relay state from telemetry. Results of commands are reported on stat
+     * RESULT, so a state the port already has is not passed on.
+     */
+    private static void readReportedPower(final Device device, final String name, final JsonReader reader)
+            throws IOException {
+        if (!isPort(name) || reader.peek() != JsonToken.STRING) {
+            reader.skipValue();
+            return;
+        }
+        final String value = reader.nextString();
+        final IOPort port = device.findPort(name);
+        if (port != null && port.getState().name().equalsIgnoreCase(value)) {
+            TELEMETRY_UNCHANGED.increment();
+            return;
+        }
+        TELEMETRY_CHANGED.increment();
+        LOG.finest("Processing reported power for " + name + " = " + value);
+        device.getPort(name).setState(value);
+    }
+
+    private static void readWifiSignal(final Device device, final String name, final JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.NUMBER) {
+            reader.skipValue();
+            return;
+        }
+        device.updateWifiSignal(reader.nextInt());
+    }
+
+    private static void readSensor(final Device device, final String name, final JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String field = reader.nextName();
+            final JsonToken token = reader.peek();
+            if (token == JsonToken.NUMBER) {
+                device.updateSensor(name, field, reader.nextDouble());
+            } else if (token == JsonToken.STRING) {
+                device.updateSensor(name, field, reader.nextString());
+            } else {
+                reader.skipValue();
             }
-            LOG.finest("Processing complete");
-        });
+        }
+        reader.endObject();
+    }
+
+    private static void readSetting(final Device device, final String name, final JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.STRING && reader.peek() != JsonToken.NUMBER) {
+            reader.skipValue();
+            return;
+        }
+        device.provisioning.reported(name, reader.nextString());
+    }
+
+    /**
+     * Sends the desired settings the device has not confirmed yet.
+     */
+    CompletableFuture<Void> provision() {
+        return provisioning.start();
+    }
+
+    boolean isProvisioned() {
+        return provisioning.isApplied();
+    }
+
+    protected void updateWifiSignal(final int signal) {
+        LOG.finest("Process wifi signal: " + signal);
+        try {
+            wifiSignal.record(signal);
+            if (changed("Wifi.Signal", signal)) {
+                write(database.child("wifi").child("signal"), signal);
+            }
+        } catch (Exception e) {
+            LOG.warning("Could not publish signal strength: " + e.getMessage());
+        }
+    }
+
+    protected void updateSensor(final String sensor, final String field, final Object value) {
+        if (!changed(sensor + "." + field, value)) {
+            return;
+        }
+        try {
+            write(database.child("sensors").child(sensor).child(field), value);
+        } catch (Exception e) {
+            LOG.warning("Could not publish sensor " + sensor + "." + field + ": " + e.getMessage());
+        }
     }
 
+    /**
+     * Writes the server time as lastAccess, at most once per
+     * lastAccessIntervalSeconds (default 30).
+     */
     protected void setLastAccess(){
-        this.database.child("lastAccess").setValueAsync(ServerValue.TIMESTAMP);
+        final long now = System.nanoTime();
+        final long written = lastAccessWritten.get();
+        if (written != 0 && now - written < LAST_ACCESS_INTERVAL_NANOS
+                || !lastAccessWritten.compareAndSet(written, now == 0 ? 1 : now)) {
+            LAST_ACCESS_THROTTLED.increment();
+            return;
+        }
+        write(this.database.child("lastAccess"), ServerValue.TIMESTAMP);
+    }
+
+    DeviceSnapshot.Entry toSnapshotEntry() {
+        final Map<String, State> portStates = new LinkedHashMap<>();
+        for (IOPort port : ports) {
+            portStates.put(port.name, port.getState());
+        }
+        return new DeviceSnapshot.Entry(firebaseId, topic, connected == null ? Connected.UNKNOWN : connected, portStates);
+    }
+
+    /**
+     * Restores the last known state from a snapshot without writing it to firebase again.
+     */
+    void restore(final DeviceSnapshot.Entry entry) {
+        this.connected = entry.connected;
+        entry.ports.forEach(this::addPort);
     }
 
     public String getTopic() {
@@ -1,17 +1,30 @@
 package home.device;
 
 import java.io.Closeable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.GenericTypeIndicator;
 
 import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
@@ -21,32 +34,214 @@ import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttSecurityException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
-import util.Firebase;
+import home.cluster.PartitionManager;
+import home.common.Port;
+import home.common.Power;
+import home.mqtt.CommandPublisher;
+import home.mqtt.ConnectionManager;
+import home.mqtt.JournalReplay;
+import home.mqtt.MessageDispatcher;
+import home.mqtt.MessageJournal;
+import home.mqtt.SubscriptionManager;
+import home.mqtt.TopicRouter;
+import util.Config;
+import util.Threads;
+import util.metrics.Counter;
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
 
 public class DeviceManager implements Closeable {
     private static final Logger LOG = Logger.getLogger(DeviceManager.class.getName());
     private static DeviceManager instance;
 
-    private Map<String, Device> deviceMapByTopic = new ConcurrentHashMap<>(32);
-    private Map<String, Device> deviceMapByKey = new ConcurrentHashMap<>(32);
+    private static final Counter DELIVERED = MetricsRegistry.getInstance().counter("mqtt_delivered_total");
+    private static final Histogram RESYNC_TIME = MetricsRegistry.getInstance().histogram("mqtt_resync_nanos");
+    private static final Counter FORWARDED = MetricsRegistry.getInstance().counter("partition_forwarded_total");
+    private static final Counter FOREIGN = MetricsRegistry.getInstance().counter("partition_messages_foreign_total");
+    private static final Counter STATUS_POLLS = MetricsRegistry.getInstance().counter("device_status_polls_total");
+
+    private final DeviceRegistry devices = new DeviceRegistry();
+    private Map<String, PendingDevice> pendingDevices = new ConcurrentHashMap<>(32);
 
     private DatabaseReference database;
     private IMqttAsyncClient client;
+    private volatile CommandPublisher commands;
+
+    private ConnectionManager connection;
+
+    private final TopicRouter router = new TopicRouter();
+    private final MessageDispatcher dispatcher = MessageDispatcher.create();
+    private SubscriptionManager subscriptions;
+    private volatile MessageJournal journal;
+    private boolean replaying;
 
-    private Thread clientMonitor;
-    private final AtomicBoolean isRunning = new AtomicBoolean(true);
+    private Path snapshotFile = Paths.get(Config.getString("stateSnapshotFile", "home-coordinator-state.bin"));
+    private volatile PartitionManager partitions;
+    private final Map<String, RemotePort> remotePorts = new ConcurrentHashMap<>();
+    private final List<Runnable> ownershipListeners = new CopyOnWriteArrayList<>();
+    private final List<Consumer<String>> deviceListeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("device-manager"));
+    private final Set<String> resyncPending = ConcurrentHashMap.newKeySet();
+    private volatile long resyncStartNanos;
+    private volatile long lastResyncNanos = -1;
+    private long startNanos = System.nanoTime();
+    private volatile long timeToFirstMessageNanos = -1;
+    private final AtomicBoolean firstMessageHandled = new AtomicBoolean();
+
+    /**
+     * A manager of its own, for running several coordinator instances in one
+     * process. The application uses {@link #GetDeviceManager()}.
+     */
+    public DeviceManager() {
+        final MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.gauge("devices", () -> devices.size());
+        metrics.gauge("devices_pending", () -> pendingDevices.size());
+        metrics.gauge("dispatch_queue_depth",
+                () -> dispatcher.getShardStats().stream().mapToLong(s -> s.depth).sum());
+        metrics.gauge("dispatch_processed_total",
+                () -> dispatcher.getShardStats().stream().mapToLong(s -> s.processed).sum());
+        metrics.gauge("dispatch_dropped_total",
+                () -> dispatcher.getShardStats().stream().mapToLong(s -> s.dropped).sum());
+        metrics.gauge("dispatch_latency_max_nanos",
+                () -> dispatcher.getShardStats().stream().mapToLong(s -> s.maxLatencyNanos).max().orElse(0));
+
+        // This state message is the result of a state request
+        router.register("stat", "RESULT", handler((topic, message) -> {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine(String.format("MQTT PROCESSED: Device state: %s %s", topic, new String(message.getPayload())));
+            }
+            withDevice(topic, d -> {
+                d.updateStatus(message.getPayload());
+                statusReceived(topic);
+            });
+        }));
+        router.register("tele", "LWT", handler((topic, message) -> {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine(String.format("MQTT PROCESSED: Device connected state: %s %s", topic,
+                        new String(message.getPayload())));
+            }
+            withDevice(topic, d -> d.setConnected(new String(message.getPayload())));
+        }));
+        // Periodic telemetry, which makes polling devices that send it unnecessary
+        router.register("tele", "STATE", handler((topic, message) -> withDevice(topic, d -> {
+            d.updateTelemetry(message.getPayload());
+            statusReceived(topic);
+        })));
+        router.register("tele", "SENSOR", handler((topic, message) -> withDevice(topic,
+                d -> d.updateSensors(message.getPayload()))));
+        // A port of ours switched by the instance that owns a port it listens to
+        router.register("forward", "POWER", handler((topic, message) -> {
+            final String[] command = new String(message.getPayload()).trim().split(" ");
+            if (command.length != 2) {
+                LOG.warning("Ignoring forwarded command for " + topic + ": " + new String(message.getPayload()));
+                return;
+            }
+            final Power power = Power.valueOf(command[1].toUpperCase());
+            withDevice(topic, d -> d.getPort(command[0]).applyPower(power));
+        }));
+    }
+
+    /**
+     * Runs this manager as one of several coordinator instances: it only
+     * handles the devices of the partitions the partition manager owns and
+     * subscribes per device. Must be called before {@link #initiate}.
+     */
+    public void setPartitionManager(final PartitionManager partitions) {
+        this.partitions = partitions;
+    }
+
+    /**
+     * Whether this instance handles the device of the topic.
+     */
+    public boolean owns(final String topic) {
+        final PartitionManager partitions = this.partitions;
+        return partitions == null || partitions.owns(topic);
+    }
+
+    /**
+     * Registers a task that runs after devices moved to or away from this instance.
+     */
+    public void addOwnershipListener(final Runnable listener) {
+        ownershipListeners.add(listener);
+    }
+
+    /**
+     * Registers a task that runs with the topic of every device that becomes
+     * known after the start.
+     */
+    public void addDeviceListener(final Consumer<String> listener) {
+        deviceListeners.add(listener);
+    }
 
     public void initiate (final DatabaseReference database) throws MqttSecurityException, MqttException{
+        initiate(database, createClient());
+    }
+
+    /**
+     * Starts the manager on the given client, which is connected in the
+     * background if it is not connected yet.
+     */
+    public void initiate(final DatabaseReference database, final IMqttAsyncClient client)
+            throws MqttSecurityException, MqttException {
+        start(database, client);
+        scheduleSnapshots();
+        connection.connect();
+    }
+
+    /**
+     * Starts the manager for {@link #replay}: on a client that is never
+     * connected, so commands stay in the offline buffer and never reach a
+     * device, without a journal and without the state snapshot. The
+     * database must not be the real one, see {@link util.Firebase#createOffline}.
+     */
+    public void initiateReplay(final DatabaseReference database) throws MqttException {
+        replaying = true;
+        start(database, new MqttAsyncClient("tcp://localhost:1883", "replay-" + UUID.randomUUID(),
+                new MemoryPersistence()));
+    }
+
+    private void start(final DatabaseReference database, final IMqttAsyncClient client) throws MqttException {
+        this.startNanos = System.nanoTime();
         this.database = database;
+        if (partitions != null) {
+            // Instances may share a host
+            snapshotFile = Paths.get(snapshotFile + "." + partitions.getInstanceId());
+            partitions.addListener(owned -> scheduler.execute(this::ownershipChanged));
+        }
 
-        this.client = configureClient();
+        this.client = client;
+        this.commands = CommandPublisher.create(client);
+        if (!replaying) {
+            this.journal = MessageJournal.create(partitions == null ? null : partitions.getInstanceId());
+            commands.setJournal(journal);
+        }
+        this.connection = ConnectionManager.create(client, connectOptions(), this::connected);
+        configureClient();
 
-        loadDeviceMapFromFirebase();
+        if (!replaying) {
+            restoreSnapshot();
+        }
 
         subscribeToTopics();
+
+        loadDeviceMapFromFirebase();
+        scheduleStalePolls();
+    }
+
+    /**
+     * Restores subscriptions and device state after every connect. Commands
+     * queued while disconnected are sent first, then all devices are asked
+     * for their status.
+     */
+    private void connected(final boolean reconnect) {
+        subscriptions.resubscribe();
+        commands.resume();
         requestDeviceStatus();
     }
+
     public static DeviceManager GetDeviceManager() {
         if (instance == null){
             instance = new DeviceManager();
@@ -54,102 +249,370 @@ public class DeviceManager implements Closeable {
         return instance;
     }
 
+    @FunctionalInterface
+    public interface DeviceAction {
+        void accept(Device device) throws Exception;
+    }
+
+    /**
+     * Runs the action with the device of the topic. Unknown devices are created
+     * in the background; actions for them are buffered and run in order on the
+     * dispatch shard of the device once it exists.
+     */
+    public void withDevice(final String topic, final DeviceAction action) throws Exception {
+        if (!owns(topic)) {
+            FOREIGN.increment();
+            return;
+        }
+        final Device device = devices.get(topic);
+        if (device != null) {
+            if (!device.getTopic().equals(topic)) {
+                // Commands go to the topic as the device spells it
+                device.setTopic(topic);
+            }
+            device.countMessage();
+            action.accept(device);
+            return;
+        }
+        final PendingDevice pending = getPendingDevice(topic, null);
+        synchronized (pending) {
+            if (pending.device == null) {
+                pending.actions.add(action);
+                return;
+            }
+        }
+        pending.device.countMessage();
+        action.accept(pending.device);
+    }
+
+    private PendingDevice getPendingDevice(final String topic, final CompletableFuture<String> firebaseId) {
+        final String key = topic.toUpperCase();
+        final PendingDevice pending = pendingDevices.computeIfAbsent(key, k -> {
+            // The device may have become ready since the caller looked it up
+            final Device device = devices.get(k);
+            return device != null ? new PendingDevice(device) : createDevice(topic,
+                    firebaseId != null ? firebaseId : Device.allocateFirebaseId(database, topic));
+        });
+        if (pending.device != null) {
+            pendingDevices.remove(key, pending);
+        }
+        return pending;
+    }
+
+    /**
+     * Returns the device of the topic, creating it if needed. Blocks until the
+     * device exists, so must not be used on the message path.
+     */
     public Device getDeviceByTopic(final String topic) {
-        Device device = deviceMapByTopic.computeIfAbsent(topic.toUpperCase(),
-                key -> new Device(topic, client, database, null));
-        deviceMapByKey.putIfAbsent(device.getFirebaseId(), device);
-        device.setTopic(topic);
-        return device;
+        final Device device = devices.get(topic);
+        if (device != null) {
+            return device;
+        }
+        try {
+            return getPendingDevice(topic, null).future.get();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not create device " + topic, e);
+        }
+    }
+
+    private PendingDevice createDevice(final String topic, final CompletableFuture<String> firebaseId) {
+        final PendingDevice pending = new PendingDevice(null);
+        LOG.fine("Creating device " + topic);
+        pending.future = firebaseId.thenApplyAsync(id -> new Device(topic, commands, database, id),
+                Threads.blockingExecutor());
+        pending.future.whenComplete((device, error) -> {
+            if (error != null) {
+                LOG.warning("Could not create device " + topic + ": " + error.getMessage());
+                synchronized (pending) {
+                    LOG.warning("Dropping " + pending.actions.size() + " messages for device " + topic);
+                    pending.actions.clear();
+                }
+                pendingDevices.remove(topic.toUpperCase(), pending);
+                return;
+            }
+            if (!dispatcher.execute(topic, () -> activate(topic, pending, device))) {
+                activate(topic, pending, device);
+            }
+        });
+        return pending;
+    }
+
+    private void activate(final String topic, final PendingDevice pending, final Device device) {
+        synchronized (pending) {
+            for (DeviceAction action : pending.actions) {
+                try {
+                    device.countMessage();
+                    action.accept(device);
+                } catch (Exception e) {
+                    LOG.warning("Buffered message for " + topic + " could not be processed: " + e);
+                }
+            }
+            pending.actions.clear();
+            pending.device = device;
+            devices.register(device);
+        }
+        pendingDevices.remove(topic.toUpperCase(), pending);
+        if (subscriptions != null) {
+            subscriptions.addDevice(topic);
+        }
+        device.provision();
+        deviceListeners.forEach(listener -> listener.accept(topic));
+        LOG.fine("Device " + topic + " is ready");
+    }
+
+    private static final class PendingDevice {
+        CompletableFuture<Device> future;
+        final List<DeviceAction> actions = new ArrayList<>();
+        Device device;
+
+        PendingDevice(final Device device) {
+            this.device = device;
+            this.future = CompletableFuture.completedFuture(device);
+        }
     }
 
     public Device getDeviceByKey(final String key) {
-        return deviceMapByKey.get(key);
+        return devices.getByKey(key);
     }
 
-    private void loadDeviceMapFromFirebase() {
-        LOG.fine("Load devices from firebase");
+    boolean hasDevice(final String topic) {
+        return devices.contains(topic);
+    }
+
+    /**
+     * Returns a port of a device, or null for a device this instance owns but
+     * does not know; unknown devices are not created. Ports of devices another
+     * instance owns are {@link RemotePort}s that forward power changes to that
+     * instance.
+     */
+    public Port getPort(final String topic, final String port) {
+        if (owns(topic)) {
+            final IOPort known = devices.getPort(topic, port);
+            if (known != null) {
+                return known;
+            }
+            // A known device may not have reported the port yet
+            final Device device = devices.get(topic);
+            return device == null ? null : device.getPort(port);
+        }
+        return remotePorts.computeIfAbsent(topic.toUpperCase() + "/" + port.toUpperCase(),
+                key -> new RemotePort(this, topic, port));
+    }
+
+    /**
+     * Queues forward/&lt;topic&gt;/POWER with "&lt;port&gt; &lt;power&gt;" for
+     * the instance that owns the device.
+     *
+     * @return false if there was no room for it and it was dropped
+     */
+    boolean forward(final String topic, final String port, final Power power) {
+        FORWARDED.increment();
+        // Buffered while disconnected and limited like the commands of the device
+        return commands.publish(topic, "forward/" + topic + "/POWER", port + " " + power);
+    }
+
+    /**
+     * Switches all members of a scene at once. The members of a device are
+     * sent as one Backlog, and the commands of all devices are queued before
+     * any is published, so they go out as one pipelined burst. Listeners of
+     * the members do not follow; a scene names every port it switches.
+     * Members of unknown devices or ports fail at once.
+     *
+     * @param timeoutMillis how long to wait for the devices to confirm
+     * @return completes once every member was confirmed or failed, or when the
+     *         timeout passed
+     */
+    public CompletableFuture<Scene.Result> activate(final Scene scene, final long timeoutMillis) {
+        final Scene.Activation activation = new Scene.Activation();
+        final Map<Device, Map<IOPort, Power>> byDevice = new LinkedHashMap<>();
+        final Map<IOPort, String> members = new HashMap<>();
+        scene.getMembers().forEach((member, power) -> {
+            final int slash = member.lastIndexOf('/');
+            if (slash <= 0 || slash == member.length() - 1) {
+                activation.fail(member, "expected <device topic>/<port>");
+                return;
+            }
+            final String topic = member.substring(0, slash);
+            final String port = member.substring(slash + 1);
+            if (!owns(topic)) {
+                if (forward(topic, port, power)) {
+                    activation.forwarded(member);
+                } else {
+                    activation.fail(member, "could not forward");
+                }
+                return;
+            }
+            final Device device = devices.get(topic);
+            if (device == null) {
+                activation.fail(member, "unknown device");
+                return;
+            }
+            // A mistyped member must not add a port to the device
+            final IOPort ioPort = device.findPort(port);
+            if (ioPort == null) {
+                activation.fail(member, "unknown port");
+                return;
+            }
+            byDevice.computeIfAbsent(device, d -> new LinkedHashMap<>()).put(ioPort, power);
+            members.put(ioPort, member);
+        });
+        byDevice.forEach((device, powers) -> device.switchPorts(powers)
+                .forEach((port, confirmed) -> activation.await(members.get(port), confirmed)));
+
+        final ScheduledFuture<?> deadline = scheduler.schedule(activation::expire, timeoutMillis,
+                TimeUnit.MILLISECONDS);
+        final CompletableFuture<Scene.Result> result = activation.seal();
+        result.whenComplete((r, e) -> deadline.cancel(false));
+        return result;
+    }
+
+    /**
+     * Lets go of the devices of partitions that moved away and takes on the
+     * devices of the partitions that were gained: the known ones from the
+     * device list, new ones from the retained LWT messages that subscribing
+     * again replays.
+     */
+    private void ownershipChanged() {
+        for (Device device : devices.getDevices()) {
+            if (!owns(device.getTopic())) {
+                devices.remove(device);
+                device.release();
+                if (subscriptions != null) {
+                    subscriptions.removeDevice(device.getTopic());
+                }
+                LOG.fine("Device " + device.getTopic() + " moved to another instance");
+            }
+        }
+        // Devices that moved here are switched directly again
+        remotePorts.values().removeIf(port -> {
+            if (owns(port.getTopic())) {
+                port.unregister();
+                return true;
+            }
+            return false;
+        });
+        if (subscriptions != null) {
+            subscriptions.resubscribe();
+        }
+        loadDeviceMapFromFirebase().thenRun(() -> ownershipListeners.forEach(Runnable::run));
+    }
+
+    private void restoreSnapshot() {
+        final List<DeviceSnapshot.Entry> entries = new ArrayList<>(DeviceSnapshot.read(snapshotFile));
+        entries.removeIf(entry -> !owns(entry.topic));
+        entries.forEach(entry -> {
+            Device device = new Device(entry.topic, commands, database, entry.firebaseId);
+            device.restore(entry);
+            devices.register(device);
+            device.provision();
+        });
+        LOG.info("Restored " + entries.size() + " devices from snapshot " + snapshotFile);
+    }
+
+    private void scheduleSnapshots() {
+        final long interval = Config.getLong("stateSnapshotIntervalSeconds", 60);
+        scheduler.scheduleWithFixedDelay(this::writeSnapshot, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void writeSnapshot() {
         try {
-            DataSnapshot snapshot = Firebase.readObject(database.child("list"));
-            LOG.finer("Convert data to device map");
-            Map<String, Device> map = snapshot.getValue(new GenericTypeIndicator<Map<String, Device>>(){});
-            LOG.finer("Build structures");
-            map.forEach((k, d) -> {
-                LOG.finer("Processing device: " + k + ": " + d);
-                LOG.finer("Add device to key map with key: " + k);
-                Device device = deviceMapByKey.computeIfAbsent(k, kk -> new Device(d.getTopic(), client, database, kk));
-                LOG.finer("Add device to topic map with key: " + device.getTopic().toUpperCase());
-                deviceMapByTopic.putIfAbsent(device.getTopic().toUpperCase(), device);
-            });
+            DeviceSnapshot.write(snapshotFile, devices.getDevices());
         } catch (Exception e) {
-            LOG.warning("Could not read devices from firebase: " + e.getMessage());
+            LOG.warning("Could not write snapshot " + snapshotFile + ": " + e);
         }
     }
 
-    private IMqttAsyncClient configureClient() throws MqttSecurityException, MqttException {
+    /**
+     * Reconciles the device registry with the device list in firebase in the
+     * background. Devices that are not known yet are created and asked for
+     * their status.
+     */
+    private CompletableFuture<Void> loadDeviceMapFromFirebase() {
+        LOG.fine("Load devices from firebase");
+        final DeviceShadow shadow = DeviceShadow.of(database);
+        return shadow.loaded().thenRunAsync(() -> {
+            final DatabaseReference list = database.child("list");
+            for (String key : shadow.getChildKeys(list)) {
+                final Object topic = shadow.get(list.child(key).child("topic"));
+                LOG.finer("Processing device: " + key + ": " + topic);
+                if (topic == null || devices.contains(topic.toString())
+                        || !owns(topic.toString())) {
+                    continue;
+                }
+                LOG.finer("Add device " + topic + " with key: " + key);
+                getPendingDevice(topic.toString(), CompletableFuture.completedFuture(key)).future.thenAccept(device -> {
+                    try {
+                        device.requestStatus();
+                    } catch (Exception e) {
+                        LOG.warning("Could not request device status: " + e.getMessage());
+                    }
+                });
+            }
+            LOG.info("Device list reconciled with firebase, " + devices.size() + " devices");
+        }, Threads.blockingExecutor()).exceptionally(e -> {
+            LOG.warning("Could not read devices from firebase: " + e.getMessage());
+            return null;
+        });
+    }
+
+    private TopicRouter.Handler handler(final TopicRouter.Handler handler) {
+        return dispatcher.ordered((topic, message) -> {
+            handler.handle(topic, message);
+            if (timeToFirstMessageNanos < 0 && firstMessageHandled.compareAndSet(false, true)) {
+                timeToFirstMessageNanos = System.nanoTime() - startNanos;
+                LOG.info("First MQTT message handled " + TimeUnit.NANOSECONDS.toMillis(timeToFirstMessageNanos)
+                        + "ms after start");
+            }
+        });
+    }
+
+    /**
+     * Time from {@link #initiate} until the first device message was handled, or -1.
+     */
+    public long getTimeToFirstMessageNanos() {
+        return timeToFirstMessageNanos;
+    }
+
+    private static IMqttAsyncClient createClient() throws MqttException {
         String mqttAddress = System.getenv("mqttAddress");
         String mqttPort = System.getenv("mqttPort");
         LOG.info("MQTT Server: " + mqttAddress + ":" + mqttPort);
 
         final String clientId = UUID.randomUUID().toString();
-        final IMqttAsyncClient client = new MqttAsyncClient("tcp://" + mqttAddress + ":" + mqttPort, clientId);
+        return new MqttAsyncClient("tcp://" + mqttAddress + ":" + mqttPort, clientId);
+    }
+
+    private static MqttConnectOptions connectOptions() {
         final MqttConnectOptions options = new MqttConnectOptions();
         options.setAutomaticReconnect(false);
         options.setCleanSession(false);
         options.setConnectionTimeout(10);
+        return options;
+    }
 
+    private void configureClient() {
         client.setCallback(new MqttCallback() {
 
             @Override
             public void messageArrived(final String fullTopic, final MqttMessage message) {
                 LOG.finest("MQTT message arrived, processing...");
-                String topicParts[] = fullTopic.split("/");
-                String prefix = topicParts[0];
-                String topic = topicParts[1];
-                String postfix = topicParts[2];
-                switch (prefix.toUpperCase()) {
-                case "STAT":
-                    if (postfix.toUpperCase().equals("RESULT")) {
-                        // This state message is the result of a state request
-                        LOG.fine(String.format("MQTT PROCESSED: Device state: %s %s", fullTopic,
-                                new String(message.getPayload())));
-                        Device d = getDeviceByTopic(topic);
-                        d.updateStatus(new String(message.getPayload()));
-                        // } else if (postfix.toUpperCase().startsWith("POWER")) {
-                    //     LOG.fine(String.format("MQTT PROCESSED: Port state: %s:%s", fullTopic,
-                    //             new String(message.getPayload())));
-                    //     d.getPort(postfix).setState(new String(message.getPayload()));
-                } else {
-                    LOG.finest(String.format("MQTT IGNORE MESSAGE: %s: %s", fullTopic, new String(message.getPayload())));
+                final MessageJournal journal = DeviceManager.this.journal;
+                if (journal != null) {
+                    journal.append(MessageJournal.Direction.IN, fullTopic, message.getPayload());
                 }
-                break;
-            case "TELE":
-                if (postfix.toUpperCase().equals("LWT")){
-                    LOG.fine(String.format("MQTT PROCESSED: Device connected state: %s %s", fullTopic,
-                            new String(message.getPayload())));
-                    Device d = getDeviceByTopic(topic);
-                    d.setConnected(new String(message.getPayload()));
-                } else if (postfix.toUpperCase().equals("STATE")) {
-                    // This state message is send by the devices on their accord
-                    LOG.finest(String.format("MQTT IGNORE MESSAGE: (DEVICE CONTROLLED STATE) %s: %s", fullTopic, new String(message.getPayload())));
-                    // LOG.fine(String.format("MQTT PROCESSED: Device state: %s %s", fullTopic,
-                    //         new String(message.getPayload())));
-                    // d.updateStatus(new String(message.getPayload()));
-                } else {
-                    LOG.finest(String.format("MQTT IGNORE MESSAGE: %s: %s", fullTopic, new String(message.getPayload())));
-                }
-                break;
-            case "CMND":
-                LOG.finest(String.format("MQTT IGNORE MESSAGE: %s: %s", fullTopic, new String(message.getPayload())));
-                break;
-            default:
-                LOG.warning(String.format("MQTT NOT PROCESSED: %s: %s", fullTopic, new String(message.getPayload())));
-                break;
+                try {
+                    if (!router.route(fullTopic, message) && LOG.isLoggable(Level.FINEST)) {
+                        LOG.finest(String.format("MQTT IGNORE MESSAGE: %s: %s", fullTopic, new String(message.getPayload())));
+                    }
+                } catch (Exception e) {
+                    LOG.warning("MQTT message " + fullTopic + " could not be processed: " + e);
                 }
                 LOG.finest("MQTT message processing complete");
             }
 
             @Override
             public void deliveryComplete(final IMqttDeliveryToken token) {
+                DELIVERED.increment();
                 try {
                     LOG.finer("MQTT message delivered: Topics = {"
                             + Stream.of(token.getTopics()).collect(Collectors.joining(", ")) + "} + message = "
@@ -160,66 +623,152 @@ public class DeviceManager implements Closeable {
 
             @Override
             public void connectionLost(final Throwable cause) {
-                LOG.severe("MQTT connection lost: " + cause.getMessage());
+                connection.connectionLost(cause);
             }
         });
+    }
 
-        client.connect(options);
+    private void subscribeToTopics() {
+        // Instances that share the devices only subscribe to their own
+        subscriptions = partitions == null ? SubscriptionManager.create(client, router)
+                : SubscriptionManager.create(client, router, SubscriptionManager.Mode.DEVICE);
+        final List<String> topics = new ArrayList<>();
+        devices.getDevices().forEach(device -> topics.add(device.getTopic()));
+        subscriptions.addDevices(topics);
+        subscriptions.start();
+        LOG.info("MQTT subscriptions: " + subscriptions.getSubscriptions());
+    }
 
-        clientMonitor = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                boolean connectedPrev = true;
-                while (isRunning.get()) {
-                    try {
-                        Thread.sleep(1000);
-                        if (!client.isConnected()) {
-                            connectedPrev = false;
-                            LOG.fine("Trying to reconnect to MQTT broker");
-                            client.reconnect();
-                        } else {
-                            if (!connectedPrev) {
-                                LOG.info("MQTT connection reconnected");
-                            }
-                            connectedPrev = true;
-                        }
-                    } catch (Exception e) {
-                    }
-                }
+    /**
+     * Asks all devices for their status, mqttResyncBatchSize (default 10)
+     * devices every mqttResyncIntervalMillis (default 100). The time until all
+     * of them answered is recorded as the resync time.
+     */
+    public void requestDeviceStatus() {
+        final List<Device> devices = this.devices.getDevices();
+        synchronized (resyncPending) {
+            if (!resyncPending.isEmpty()) {
+                LOG.warning("Status resync restarted, " + resyncPending.size() + " devices did not answer");
             }
-        }, "clientMonitor");
-
-        clientMonitor.start();
+            resyncPending.clear();
+            devices.forEach(device -> resyncPending.add(device.getTopic().toUpperCase()));
+            resyncStartNanos = System.nanoTime();
+        }
+        requestStatus(devices);
+    }
 
-        return client;
+    /**
+     * Asks the devices for their status in paced batches.
+     */
+    private void requestStatus(final List<Device> devices) {
+        STATUS_POLLS.add(devices.size());
+        final int batch = Math.max(1, Config.getInt("mqttResyncBatchSize", 10));
+        final long interval = Config.getLong("mqttResyncIntervalMillis", 100);
+        for (int i = 0; i < devices.size(); i += batch) {
+            final List<Device> slice = devices.subList(i, Math.min(i + batch, devices.size()));
+            scheduler.schedule(() -> slice.forEach(Device::requestStatus), i / batch * interval,
+                    TimeUnit.MILLISECONDS);
+        }
     }
 
-    private void subscribeToTopics() throws MqttSecurityException, MqttException {
-        client.subscribe(String.format("#"), 0);
-        // TODO: It looks like the following subscription can be used
-        //client.subscribe("stat/+/RESULT");
-        //client.subscribe("tele/+/LWT")
+    private void scheduleStalePolls() {
+        final long interval = Config.getLong("telemetryCheckIntervalSeconds", 60);
+        scheduler.scheduleWithFixedDelay(this::pollStaleDevices, interval, interval, TimeUnit.SECONDS);
+    }
 
+    /**
+     * Asks only the devices that have not reported anything for
+     * telemetryStaleSeconds (default 660, two Tasmota tele periods and a
+     * margin) for their status. Devices that send telemetry are never polled,
+     * and neither are devices whose LWT says they are offline; they announce
+     * themselves with an Online LWT when they are back.
+     */
+    void pollStaleDevices() {
+        if (!client.isConnected()) {
+            // Everything is resynced once connected
+            return;
+        }
+        final long staleNanos = TimeUnit.SECONDS.toNanos(Config.getLong("telemetryStaleSeconds", 660));
+        final long now = System.nanoTime();
+        final List<Device> stale = new ArrayList<>();
+        for (Device device : devices.getDevices()) {
+            if (now - device.getLastMessageNanos() > staleNanos
+                    && device.getConnected() != Device.Connected.OFFLINE) {
+                stale.add(device);
+            }
+        }
+        if (!stale.isEmpty()) {
+            LOG.fine("Polling " + stale.size() + " devices without recent telemetry");
+            requestStatus(stale);
+        }
     }
 
-    public void requestDeviceStatus() {
-        deviceMapByTopic.entrySet().iterator().forEachRemaining(e -> {
-            try {
-                e.getValue().requestStatus();
-            } catch (Exception ee) {
-                LOG.warning("Could not request device status: " + ee.getMessage());
+    private void statusReceived(final String topic) {
+        if (resyncPending.isEmpty()) {
+            return;
+        }
+        synchronized (resyncPending) {
+            if (resyncPending.remove(topic.toUpperCase()) && resyncPending.isEmpty()) {
+                lastResyncNanos = System.nanoTime() - resyncStartNanos;
+                RESYNC_TIME.record(lastResyncNanos);
+                LOG.info("Status of all devices resynced in " + TimeUnit.NANOSECONDS.toMillis(lastResyncNanos) + "ms");
             }
-        });
+        }
+    }
+
+    /**
+     * Time the last status resync took until every device answered, or -1.
+     */
+    public long getLastResyncNanos() {
+        return lastResyncNanos;
+    }
+
+    public ConnectionManager getConnection() {
+        return connection;
+    }
+
+    public TopicRouter getRouter() {
+        return router;
+    }
+
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Handles the messages received in a journal again, see {@link JournalReplay}.
+     * Only a manager started with {@link #initiateReplay} replays.
+     *
+     * @param speed how many times faster than recorded, 0 for as fast as possible
+     * @return the number of messages replayed
+     */
+    public long replay(final Path journalDirectory, final double speed) throws Exception {
+        if (!replaying || client.isConnected()) {
+            // Replayed reports would be written to the real database and switch real relays
+            throw new IllegalStateException("Journals are only replayed on a manager started with initiateReplay");
+        }
+        return new JournalReplay(router, dispatcher, speed).replay(journalDirectory);
     }
 
     public void close() {
         try {
-            isRunning.set(false);
-            clientMonitor.join();
-            LOG.info("Disconnecting MQTT client");
-            client.disconnect(0);
+            connection.close();
+            commands.close();
+            if (client.isConnected()) {
+                LOG.info("Disconnecting MQTT client");
+                client.disconnect(0);
+            }
         } catch (Exception e) {
             LOG.severe("Could not close MQTT connection");
         }
+        dispatcher.close();
+        if (journal != null) {
+            journal.close();
+        }
+        LOG.info("MQTT messages received: " + router.getReceivedCount() + ", handled: " + router.getHandledCount());
+        scheduler.shutdown();
+        if (!replaying) {
+            writeSnapshot();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package home.device;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The devices of a manager, indexed by topic and by firebaseId.
+ *
+ * Lookups read an immutable index without locking. Topics are hashed and
+ * compared case insensitively in place, so a lookup allocates nothing, not
+ * even an upper case copy of the topic. Changes copy the index and publish
+ * the copy; devices are added rarely compared to how often they are looked
+ * up. The ports of a device are indexed by the device the same way, see
+ * {@link Device#findPort}. Devices and ports stay the same objects for as long
+ * as they are registered, so callers may keep them.
+ */
+final class DeviceRegistry {
+
+    private static final class Index {
+        static final Index EMPTY = new Index(Collections.emptyList());
+
+        final List<Device> devices;
+        // Open addressing: the hash, topic and device of a slot side by side
+        final int[] hashes;
+        final String[] topics;
+        final Device[] byTopic;
+        final int shift;
+        final Map<String, Device> byKey;
+
+        Index(final List<Device> devices) {
+            this.devices = Collections.unmodifiableList(devices);
+            int bits = 4;
+            while (1 << bits < devices.size() * 2) {
+                bits++;
+            }
+            final int capacity = 1 << bits;
+            this.shift = 32 - bits;
+            this.hashes = new int[capacity];
+            this.topics = new String[capacity];
+            this.byTopic = new Device[capacity];
+            final Map<String, Device> byKey = new HashMap<>(devices.size() * 2);
+            for (Device device : devices) {
+                final String topic = device.getTopic();
+                final int hash = hash(topic);
+                int slot = hash >>> shift;
+                while (byTopic[slot] != null) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                hashes[slot] = hash;
+                topics[slot] = topic;
+                byTopic[slot] = device;
+                byKey.putIfAbsent(device.getFirebaseId(), device);
+            }
+            this.byKey = byKey;
+        }
+
+        Device get(final String topic) {
+            final int hash = hash(topic);
+            final int mask = byTopic.length - 1;
+            for (int slot = hash >>> shift;; slot = (slot + 1) & mask) {
+                final Device device = byTopic[slot];
+                if (device == null || hashes[slot] == hash && topics[slot].equalsIgnoreCase(topic)) {
+                    return device;
+                }
+            }
+        }
+    }
+
+    private volatile Index index = Index.EMPTY;
+
+    /**
+     * The device of the topic in any case, or null.
+     */
+    Device get(final String topic) {
+        return index.get(topic);
+    }
+
+    Device getByKey(final String firebaseId) {
+        return index.byKey.get(firebaseId);
+    }
+
+    /**
+     * The port of a device, or null if either is not known.
+     */
+    IOPort getPort(final String topic, final String port) {
+        final Device device = index.get(topic);
+        return device == null ? null : device.findPort(port);
+    }
+
+    boolean contains(final String topic) {
+        return index.get(topic) != null;
+    }
+
+    /**
+     * Registers the device unless one with its topic is known already.
+     *
+     * @return the registered device of the topic
+     */
+    synchronized Device register(final Device device) {
+        final Index current = index;
+        final Device known = current.get(device.getTopic());
+        if (known != null) {
+            return known;
+        }
+        final List<Device> devices = new ArrayList<>(current.devices.size() + 1);
+        devices.addAll(current.devices);
+        devices.add(device);
+        index = new Index(devices);
+        return device;
+    }
+
+    synchronized boolean remove(final Device device) {
+        final Index current = index;
+        final List<Device> devices = new ArrayList<>(current.devices);
+        if (!devices.remove(device)) {
+            return false;
+        }
+        index = new Index(devices);
+        return true;
+    }
+
+    /**
+     * The registered devices at the time of the call.
+     */
+    List<Device> getDevices() {
+        return index.devices;
+    }
+
+    int size() {
+        return index.devices.size();
+    }
+
+    /**
+     * A hash that is the same for topics that only differ in case, spread
+     * over the high bits the table is indexed by.
+     */
+    static int hash(final String topic) {
+        int h = 0;
+        for (int i = 0; i < topic.length(); i++) {
+            final char c = topic.charAt(i);
+            final int folded;
+            if (c < 0x80) {
+                folded = c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+            } else {
+                folded = Character.toLowerCase(Character.toUpperCase(c));
+            }
+            h = 31 * h + folded;
+        }
+        return h * 0x9E3779B9;
+    }
+}
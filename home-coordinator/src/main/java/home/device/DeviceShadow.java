@@ -0,0 +1,313 @@
+package home.device;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+
+import util.Firebase;
+import util.FirebaseWriter;
+import util.metrics.Counter;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Local copy of the /devices tree that device writes and reads go through.
+ *
+ * The leaves of list and lookup are kept by their path relative to /devices.
+ * A write that does not change the leaves is not sent, other writes update the
+ * shadow and go to the {@link FirebaseWriter}. Child listeners keep the shadow
+ * in line with changes made elsewhere. Until a local write has been echoed by
+ * Firebase, or for at most PENDING_NANOS, events do not overwrite it, so an
+ * event from before the write cannot bring back the old value. Reads are
+ * answered from the shadow once it has been loaded.
+ */
+final class DeviceShadow {
+    private static final Logger LOG = Logger.getLogger(DeviceShadow.class.getName());
+
+    private static final String[] COLLECTIONS = {"list", "lookup"};
+
+    private static final long PENDING_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final Object REMOVED = new Object();
+
+    private static final Map<FirebaseDatabase, DeviceShadow> SHADOWS = new IdentityHashMap<>();
+
+    private static final Counter WRITES = MetricsRegistry.getInstance().counter("device_shadow_writes_total");
+    private static final Counter SUPPRESSED =
+            MetricsRegistry.getInstance().counter("device_shadow_writes_suppressed_total");
+    private static final Counter LOCAL_READS = MetricsRegistry.getInstance().counter("device_shadow_reads_local_total");
+    private static final Counter REMOTE_READS =
+            MetricsRegistry.getInstance().counter("device_shadow_reads_remote_total");
+
+    private final DatabaseReference root;
+    private final int rootLength;
+    private final NavigableMap<String, Object> leaves = new ConcurrentSkipListMap<>();
+    private final Map<String, Pending> pending = new HashMap<>();
+    private CompletableFuture<Void> loaded;
+
+    private DeviceShadow(final DatabaseReference root) {
+        this.root = root;
+        this.rootLength = root.getPath().toString().length();
+        for (String collection : COLLECTIONS) {
+            root.child(collection).addChildEventListener(new ChildEventListener() {
+                @Override
+                public void onChildAdded(final DataSnapshot snapshot, final String previousChildName) {
+                    replace(collection + "/" + snapshot.getKey(), snapshot);
+                }
+
+                @Override
+                public void onChildChanged(final DataSnapshot snapshot, final String previousChildName) {
+                    replace(collection + "/" + snapshot.getKey(), snapshot);
+                }
+
+                @Override
+                public void onChildRemoved(final DataSnapshot snapshot) {
+                    replace(collection + "/" + snapshot.getKey(), null);
+                }
+
+                @Override
+                public void onChildMoved(final DataSnapshot snapshot, final String previousChildName) {
+                }
+
+                @Override
+                public void onCancelled(final DatabaseError error) {
+                    LOG.warning("Stopped following " + collection + ": " + error.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * The shadow of the devices tree at root, which is /devices.
+     */
+    static DeviceShadow of(final DatabaseReference root) {
+        synchronized (SHADOWS) {
+            return SHADOWS.computeIfAbsent(root.getDatabase(), database -> new DeviceShadow(root));
+        }
+    }
+
+    /**
+     * Completes once the shadow holds the tree as it was when it was created.
+     * Child events for existing data arrive before the value of a collection,
+     * so reading each collection once is enough. A failed load is tried again.
+     */
+    synchronized CompletableFuture<Void> loaded() {
+        if (loaded == null || loaded.isCompletedExceptionally()) {
+            final CompletableFuture<?>[] reads = new CompletableFuture<?>[COLLECTIONS.length];
+            for (int i = 0; i < COLLECTIONS.length; i++) {
+                REMOTE_READS.increment();
+                reads[i] = Firebase.readAsync(root.child(COLLECTIONS[i]));
+            }
+            loaded = CompletableFuture.allOf(reads);
+        }
+        return loaded;
+    }
+
+    /**
+     * Writes the value unless the shadow already holds it. Maps are compared
+     * leaf by leaf and replace everything below the reference.
+     *
+     * @return false if the write was suppressed
+     */
+    boolean set(final DatabaseReference ref, final Object value) {
+        final String path = path(ref);
+        final Map<String, Object> next = new LinkedHashMap<>();
+        flatten(path, value, next);
+        synchronized (this) {
+            if (sameLeaves(path, next)) {
+                SUPPRESSED.increment();
+                return false;
+            }
+            final long now = System.nanoTime();
+            for (String removed : current(path).keySet()) {
+                if (!next.containsKey(removed)) {
+                    pending.put(removed, new Pending(REMOVED, now));
+                }
+            }
+            next.forEach((leaf, leafValue) -> {
+                if (!(leafValue instanceof Map)) {
+                    pending.put(leaf, new Pending(leafValue, now));
+                }
+            });
+            below(path).clear();
+            leaves.remove(path);
+            leaves.putAll(next);
+        }
+        WRITES.increment();
+        FirebaseWriter.getInstance().set(ref, value);
+        return true;
+    }
+
+    /**
+     * The value of a leaf, or null.
+     */
+    Object get(final DatabaseReference ref) {
+        LOCAL_READS.increment();
+        return leaves.get(path(ref));
+    }
+
+    /**
+     * The leaves directly below the reference, by key.
+     */
+    Map<String, Object> getChildren(final DatabaseReference ref) {
+        LOCAL_READS.increment();
+        final String prefix = path(ref) + "/";
+        final Map<String, Object> children = new LinkedHashMap<>();
+        below(path(ref)).forEach((path, value) -> {
+            final String key = path.substring(prefix.length());
+            if (key.indexOf('/') < 0) {
+                children.put(key, value);
+            }
+        });
+        return children;
+    }
+
+    /**
+     * The keys of the children of the reference, leaves or not.
+     */
+    Set<String> getChildKeys(final DatabaseReference ref) {
+        LOCAL_READS.increment();
+        final String prefix = path(ref) + "/";
+        final Set<String> keys = new LinkedHashSet<>();
+        below(path(ref)).keySet().forEach(path -> {
+            final int end = path.indexOf('/', prefix.length());
+            keys.add(end < 0 ? path.substring(prefix.length()) : path.substring(prefix.length(), end));
+        });
+        return keys;
+    }
+
+    private synchronized void replace(final String path, final DataSnapshot snapshot) {
+        final Map<String, Object> remote = new HashMap<>();
+        if (snapshot != null) {
+            flatten(path, snapshot, remote);
+        }
+        final Set<String> paths = new HashSet<>(current(path).keySet());
+        paths.addAll(remote.keySet());
+        final long now = System.nanoTime();
+        for (String leaf : paths) {
+            final Object value = remote.get(leaf);
+            final Pending write = pending.get(leaf);
+            if (write != null) {
+                if (write.value == REMOVED ? value == null : sameValue(value, write.value)) {
+                    pending.remove(leaf);
+                } else if (now - write.nanos < PENDING_NANOS) {
+                    // Not flushed yet, the local value is newer
+                    continue;
+                } else {
+                    pending.remove(leaf);
+                }
+            }
+            if (value == null) {
+                leaves.remove(leaf);
+            } else {
+                leaves.put(leaf, value);
+            }
+        }
+    }
+
+    private NavigableMap<String, Object> below(final String path) {
+        // '/' + 1 is '0', so this range holds exactly the paths below
+        return leaves.subMap(path + "/", true, path + "0", false);
+    }
+
+    /**
+     * The leaf at the path, or the leaves below it.
+     */
+    private Map<String, Object> current(final String path) {
+        final Map<String, Object> current = new LinkedHashMap<>(below(path));
+        final Object leaf = leaves.get(path);
+        if (leaf != null) {
+            current.put(path, leaf);
+        }
+        return current;
+    }
+
+    private boolean sameLeaves(final String path, final Map<String, Object> next) {
+        final Map<String, Object> current = current(path);
+        if (current.size() != next.size()) {
+            return false;
+        }
+        for (Map.Entry<String, Object> entry : next.entrySet()) {
+            if (!sameValue(current.get(entry.getKey()), entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String path(final DatabaseReference ref) {
+        final String path = ref.getPath().toString();
+        if (path.length() <= rootLength + 1 || !path.startsWith(root.getPath().toString())) {
+            throw new IllegalArgumentException(path + " is not below " + root.getPath());
+        }
+        return path.substring(rootLength + 1);
+    }
+
+    private static void flatten(final String path, final DataSnapshot snapshot, final Map<String, Object> out) {
+        if (snapshot.hasChildren()) {
+            snapshot.getChildren().forEach(child -> flatten(path + "/" + child.getKey(), child, out));
+        } else if (snapshot.getValue() != null) {
+            out.put(path, normalize(snapshot.getValue()));
+        }
+    }
+
+    private static void flatten(final String path, final Object value, final Map<String, Object> out) {
+        if (value instanceof Map && !isServerValue(value)) {
+            ((Map<?, ?>) value).forEach((key, child) -> flatten(path + "/" + key, child, out));
+        } else if (value != null) {
+            out.put(path, normalize(value));
+        }
+    }
+
+    private static boolean isServerValue(final Object value) {
+        return ((Map<?, ?>) value).containsKey(".sv");
+    }
+
+    /**
+     * Brings a value into the form Firebase reports it in.
+     */
+    private static Object normalize(final Object value) {
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float) {
+            return ((Number) value).doubleValue();
+        }
+        return value;
+    }
+
+    private static boolean sameValue(final Object current, final Object next) {
+        if (current instanceof Number && next instanceof Number) {
+            return ((Number) current).doubleValue() == ((Number) next).doubleValue();
+        }
+        // Server values such as timestamps are never the same
+        return !(next instanceof Map) && Objects.equals(current, next);
+    }
+
+    private static final class Pending {
+        final Object value;
+        final long nanos;
+
+        Pending(final Object value, final long nanos) {
+            this.value = value;
+            this.nanos = nanos;
+        }
+    }
+}
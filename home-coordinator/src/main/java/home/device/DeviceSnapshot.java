@@ -0,0 +1,145 @@
+package home.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import home.common.State;
+
+/**
+ * Compact binary snapshot of the device registry, used to start routing
+ * messages before the device list has been read from Firebase.
+ *
+ * Layout: magic, version, device count, then per device the firebaseId,
+ * topic, connected state and its ports with their last known state.
+ */
+public final class DeviceSnapshot {
+    private static final Logger LOG = Logger.getLogger(DeviceSnapshot.class.getName());
+
+    private static final int MAGIC = 0x48435331; // HCS1
+    private static final int VERSION = 1;
+
+    public static final class Entry {
+        public final String firebaseId;
+        public final String topic;
+        public final Device.Connected connected;
+        public final Map<String, State> ports;
+
+        public Entry(final String firebaseId, final String topic, final Device.Connected connected,
+                final Map<String, State> ports) {
+            this.firebaseId = firebaseId;
+            this.topic = topic;
+            this.connected = connected;
+            this.ports = ports;
+        }
+    }
+
+    private DeviceSnapshot() {
+    }
+
+    public static void write(final Path file, final Collection<Device> devices) throws IOException {
+        List<Entry> entries = new ArrayList<>(devices.size());
+        devices.forEach(d -> entries.add(d.toSnapshotEntry()));
+        writeEntries(file, entries);
+    }
+
+    static void writeEntries(final Path file, final List<Entry> entries) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(entries.size());
+        for (Entry entry : entries) {
+            buffer = putString(buffer, entry.firebaseId);
+            buffer = putString(buffer, entry.topic);
+            buffer = ensure(buffer, 5);
+            buffer.put((byte) entry.connected.ordinal());
+            buffer.putInt(entry.ports.size());
+            for (Map.Entry<String, State> port : entry.ports.entrySet()) {
+                buffer = putString(buffer, port.getKey());
+                buffer = ensure(buffer, 1);
+                buffer.put((byte) port.getValue().ordinal());
+            }
+        }
+        buffer.flip();
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.fine("Wrote snapshot of " + entries.size() + " devices to " + file);
+    }
+
+    /**
+     * Reads a snapshot, returning an empty list if there is none or it cannot be used.
+     */
+    public static List<Entry> read(final Path file) {
+        if (!Files.isRegularFile(file)) {
+            return Collections.emptyList();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LOG.warning("Ignoring snapshot with unknown format: " + file);
+                return Collections.emptyList();
+            }
+            final int count = buffer.getInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String firebaseId = getString(buffer);
+                String topic = getString(buffer);
+                Device.Connected connected = Device.Connected.values()[buffer.get()];
+                int portCount = buffer.getInt();
+                Map<String, State> ports = new LinkedHashMap<>(portCount * 2);
+                for (int p = 0; p < portCount; p++) {
+                    String name = getString(buffer);
+                    ports.put(name, State.values()[buffer.get()]);
+                }
+                entries.add(new Entry(firebaseId, topic, connected, ports));
+            }
+            return entries;
+        } catch (IOException | RuntimeException e) {
+            LOG.warning("Could not read snapshot " + file + ": " + e);
+            return Collections.emptyList();
+        }
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer = ensure(buffer, 2 + bytes.length);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer ensure(final ByteBuffer buffer, final int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
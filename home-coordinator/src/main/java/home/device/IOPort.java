@@ -1,7 +1,12 @@
 package home.device;
 
-import java.util.Set;
-import java.util.TimeZone;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.firebase.database.DatabaseReference;
@@ -12,53 +17,208 @@ import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import home.common.Port;
 import home.common.Power;
 import home.common.State;
+import home.mqtt.CommandPublisher;
+import util.Config;
+import util.metrics.Counter;
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
 
+/**
+ * A relay of a device.
+ *
+ * Every command sent to the relay gets a sequence number and stays outstanding
+ * until a report of the device confirms it, or until portConfirmTimeoutMillis
+ * (default 5000) have passed since it was published. A command that waits in
+ * the offline buffer of the {@link CommandPublisher} stays outstanding. Only
+ * reports that are not explained by an outstanding command are propagated to
+ * the listeners of the port, so the echo of a command never travels back
+ * through the port graph. The time from command to confirmation is recorded
+ * per port, and completes the {@link Command#confirmed} future of the command.
+ */
 public class IOPort extends Port {
     private static final Logger LOG = Logger.getLogger(IOPort.class.getName());
 
+    private static final long CONFIRM_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Config.getLong("portConfirmTimeoutMillis", 5000));
+
+    private static final MetricsRegistry.HistogramFamily CONFIRM_TIME =
+            MetricsRegistry.getInstance().histogramFamily("port_confirm_nanos", "port");
+    private static final Counter CONFIRMED = MetricsRegistry.getInstance().counter("port_commands_confirmed_total");
+    private static final Counter UNCONFIRMED = MetricsRegistry.getInstance().counter("port_commands_unconfirmed_total");
+    private static final Counter STALE = MetricsRegistry.getInstance().counter("port_reports_stale_total");
+
     private final Device device;
 
-    private int setStateCount = 0;
-    private int setStateCountTarget = 0;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicReference<Command> outstanding = new AtomicReference<>();
+    private volatile Histogram confirmTime;
 
     protected IOPort(final Device device, final String name, final DatabaseReference database) {
+        this(device, name, database, State.UNKNOWN);
+        write(this.database.child("state"), this.state);
+    }
+
+    IOPort(final Device device, final String name, final DatabaseReference database, final State state) {
         LOG.finer("Construction IOPort " + device.getTopic() + ":" + name);
         this.device = device;
         this.name = name;
+        this.state = state;
         this.database = database.child(name.toUpperCase());
-        this.database.child("state").setValueAsync(this.state);
-
-        try{
-            this.device.send("SetOption13", "1");
-            int timezoneSeconds = TimeZone.getDefault().getRawOffset() / 1000;
-            int timezoneHours = Math.abs(timezoneSeconds) / 3600;
-            int timezoneMinutes = (Math.abs(timezoneSeconds) / 60) % 60;
-            String timezone = String.format("%s%02d:%02d", timezoneSeconds >= 0 ? "+" : "-", timezoneHours, timezoneMinutes);
-            this.device.send("Timezone", timezone);
-        } catch(Exception e) {
-            LOG.warning(e.toString());
-        }
     }
 
     @Override
-    public void setPower(final Power p, Set<Port> source) throws MqttPersistenceException, MqttException {
-        super.setPower(p, source);
-        setStateCountTarget = setStateCount + 1;
-        device.send(name, p.toString());
+    protected void applyPower(final Power p) throws MqttPersistenceException, MqttException {
+        super.applyPower(p);
+        final Command command = expect(p);
+        if (!device.send(name, p.toString(), CommandPublisher.Priority.HIGH,
+                track(Collections.singletonList(this), Collections.singletonList(command)))) {
+            abandon(command, "dropped");
+        }
+    }
+
+    /**
+     * Makes a command for the port outstanding, for the caller to send. A
+     * command that was still outstanding is superseded.
+     */
+    Command expect(final Power p) {
+        final Command command = new Command(sequence.incrementAndGet(), p);
+        final Command previous = outstanding.getAndSet(command);
+        if (previous != null) {
+            previous.confirmed.completeExceptionally(new IllegalStateException("superseded"));
+        }
+        return command;
+    }
+
+    /**
+     * A listener that starts the confirmation time of the commands when they
+     * are published and gives up on them when they are lost.
+     */
+    static CommandPublisher.Listener track(final List<IOPort> ports, final List<Command> commands) {
+        return new CommandPublisher.Listener() {
+            @Override
+            public void published() {
+                commands.forEach(Command::published);
+            }
+
+            @Override
+            public void failed(final String reason) {
+                for (int i = 0; i < ports.size(); i++) {
+                    ports.get(i).abandon(commands.get(i), reason);
+                }
+            }
+        };
+    }
+
+    /**
+     * Gives up on a command that could not be sent.
+     */
+    void abandon(final Command command, final String reason) {
+        outstanding.compareAndSet(command, null);
+        command.confirmed.completeExceptionally(new IllegalStateException(reason));
     }
 
     @Override
     public void setState(final String s){
-        setStateCount++;
-        if (setStateCount > setStateCountTarget) {
+        if (!answersCommand(s)) {
             try {
-                super.setPower(Power.valueOf(s), null);
+                propagatePower(Power.valueOf(s.toUpperCase()));
             } catch (Exception e) {}
         }
         super.setState(s);
     }
 
+    /**
+     * Matches a report of the device with the outstanding command.
+     *
+     * @return true if the report confirms the command, or was sent before the
+     *         device received it; false if the device changed by itself
+     */
+    private boolean answersCommand(final String s) {
+        while (true) {
+            final Command command = outstanding.get();
+            if (command == null) {
+                return false;
+            }
+            final long now = System.nanoTime();
+            if (command.published && now - command.publishedNanos > CONFIRM_TIMEOUT_NANOS) {
+                if (outstanding.compareAndSet(command, null)) {
+                    UNCONFIRMED.increment();
+                    command.confirmed.completeExceptionally(new IllegalStateException("not confirmed"));
+                    LOG.fine(this + ": command " + command.sequence + " " + command.power + " was not confirmed");
+                    return false;
+                }
+            } else if (!command.isConfirmedBy(s)) {
+                STALE.increment();
+                return true;
+            } else if (outstanding.compareAndSet(command, null)) {
+                CONFIRMED.increment();
+                final long elapsed = command.published ? now - command.publishedNanos : 0;
+                confirmTime().record(elapsed);
+                command.confirmed.complete(elapsed);
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest(this + ": command " + command.sequence + " confirmed");
+                }
+                return true;
+            }
+            // Another command was sent or matched meanwhile, try again with it
+        }
+    }
+
+    private Histogram confirmTime() {
+        Histogram histogram = confirmTime;
+        if (histogram == null) {
+            histogram = CONFIRM_TIME.get(toString());
+            confirmTime = histogram;
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the time from command to confirmation of this port.
+     */
+    public Histogram getConfirmTime() {
+        return confirmTime();
+    }
+
+    @Override
+    protected void write(final DatabaseReference ref, final Object value) {
+        device.write(ref, value);
+    }
+
+    boolean hasOutstandingCommand() {
+        return outstanding.get() != null;
+    }
+
     public State getState() {
         return state;
     }
+
+    @Override
+    public String toString() {
+        return device.getTopic() + ":" + name;
+    }
+
+    static final class Command {
+        final long sequence;
+        final Power power;
+        // Completes with the time from publish until the device confirmed the command
+        final CompletableFuture<Long> confirmed = new CompletableFuture<>();
+        private volatile long publishedNanos;
+        private volatile boolean published;
+
+        Command(final long sequence, final Power power) {
+            this.sequence = sequence;
+            this.power = power;
+        }
+
+        void published() {
+            publishedNanos = System.nanoTime();
+            published = true;
+        }
+
+        boolean isConfirmedBy(final String state) {
+            // The result of a toggle is not known up front
+            return power == Power.TOGGLE || power.name().equalsIgnoreCase(state);
+        }
+    }
 }
@@ -0,0 +1,151 @@
+package home.device;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import com.google.firebase.database.DatabaseReference;
+
+import home.mqtt.CommandPublisher;
+import util.metrics.Counter;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Brings the Tasmota settings of a device in line with the desired settings.
+ *
+ * The settings the device confirmed are stored under config in firebase. On
+ * start only the settings that are missing or differ are sent, all in one
+ * Backlog command. The device confirms each setting in a stat/RESULT message.
+ */
+class Provisioning {
+    private static final Logger LOG = Logger.getLogger(Provisioning.class.getName());
+
+    private static final Counter SENT = MetricsRegistry.getInstance().counter("device_provisioning_sent_total");
+    private static final Counter SKIPPED = MetricsRegistry.getInstance().counter("device_provisioning_skipped_total");
+    private static final Counter CONFIRMED =
+            MetricsRegistry.getInstance().counter("device_provisioning_confirmed_total");
+
+    static final class Setting {
+        final String command;
+        final String value;
+        final String reported;
+
+        /**
+         * @param reported the value the device reports once the setting is applied
+         */
+        Setting(final String command, final String value, final String reported) {
+            this.command = command;
+            this.value = value;
+            this.reported = reported;
+        }
+    }
+
+    /**
+     * Report power changes as stat/RESULT immediately (SetOption13) and use the
+     * timezone of the coordinator.
+     */
+    private static final String TIMEZONE = timezone();
+    static final List<Setting> DESIRED = Collections.unmodifiableList(Arrays.asList(
+            new Setting("SetOption13", "1", "ON"),
+            new Setting("Timezone", TIMEZONE, TIMEZONE)));
+
+    private final Device device;
+    private final DatabaseReference config;
+    private final Map<String, String> applied = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private boolean confirmed;
+
+    Provisioning(final Device device, final DatabaseReference config) {
+        this.device = device;
+        this.config = config;
+    }
+
+    /**
+     * Reads the stored config from the device shadow and sends the settings
+     * that are not applied yet.
+     */
+    CompletableFuture<Void> start() {
+        final DeviceShadow shadow = device.getShadow();
+        return shadow.loaded().handle((loaded, error) -> {
+            if (error != null) {
+                LOG.warning("Could not read config of " + device.getTopic() + ": " + error.getMessage());
+            } else {
+                shadow.getChildren(config).forEach((key, value) -> {
+                    synchronized (this) {
+                        applied.putIfAbsent(key, String.valueOf(value));
+                    }
+                });
+            }
+            sendMissing();
+            return null;
+        });
+    }
+
+    private void sendMissing() {
+        final List<String> commands = new ArrayList<>();
+        synchronized (this) {
+            for (Setting setting : DESIRED) {
+                if (!setting.reported.equalsIgnoreCase(applied.get(setting.command))) {
+                    commands.add(setting.command + " " + setting.value);
+                }
+            }
+            confirmed = commands.isEmpty();
+        }
+        if (commands.isEmpty()) {
+            LOG.fine("Device " + device.getTopic() + " is provisioned");
+            SKIPPED.increment();
+            return;
+        }
+        LOG.fine("Provision device " + device.getTopic() + ": " + commands);
+        SENT.increment();
+        if (commands.size() == 1) {
+            final String command = commands.get(0);
+            final int space = command.indexOf(' ');
+            device.send(command.substring(0, space), command.substring(space + 1), CommandPublisher.Priority.LOW);
+        } else {
+            device.send("Backlog", String.join("; ", commands), CommandPublisher.Priority.LOW);
+        }
+    }
+
+    /**
+     * Records a setting reported by the device and stores the changed config.
+     */
+    void reported(final String command, final String value) {
+        final Map<String, String> stored;
+        final boolean complete;
+        synchronized (this) {
+            if (value.equalsIgnoreCase(applied.put(command, value))) {
+                return;
+            }
+            stored = new TreeMap<>(applied);
+            complete = !confirmed && isApplied();
+            confirmed |= complete;
+        }
+        if (complete) {
+            LOG.fine("Device " + device.getTopic() + " confirmed its config " + stored);
+            CONFIRMED.increment();
+        }
+        device.write(config, stored);
+    }
+
+    synchronized boolean isApplied() {
+        for (Setting setting : DESIRED) {
+            if (!setting.reported.equalsIgnoreCase(applied.get(setting.command))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String timezone() {
+        int timezoneSeconds = TimeZone.getDefault().getRawOffset() / 1000;
+        int timezoneHours = Math.abs(timezoneSeconds) / 3600;
+        int timezoneMinutes = (Math.abs(timezoneSeconds) / 60) % 60;
+        return String.format("%s%02d:%02d", timezoneSeconds >= 0 ? "+" : "-", timezoneHours, timezoneMinutes);
+    }
+}
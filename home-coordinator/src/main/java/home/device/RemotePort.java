@@ -0,0 +1,41 @@
+package home.device;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import home.common.Port;
+import home.common.Power;
+
+/**
+ * A port of a device that another coordinator instance owns.
+ *
+ * Power applied to it is forwarded over MQTT to the owner, which switches
+ * only that relay. The instance that started the propagation has already
+ * visited every listener in its port graph, so the owner does not propagate
+ * the change again.
+ */
+final class RemotePort extends Port {
+    private final DeviceManager manager;
+    private final String topic;
+
+    RemotePort(final DeviceManager manager, final String topic, final String name) {
+        this.manager = manager;
+        this.topic = topic;
+        this.name = name.toUpperCase();
+    }
+
+    @Override
+    protected void applyPower(final Power p) throws MqttPersistenceException, MqttException {
+        super.applyPower(p);
+        manager.forward(topic, name, p);
+    }
+
+    String getTopic() {
+        return topic;
+    }
+
+    @Override
+    public String toString() {
+        return topic + ":" + name;
+    }
+}
@@ -0,0 +1,176 @@
+package home.device;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import home.common.Power;
+import util.metrics.Counter;
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Ports that are switched together, each to its own power. A group is a
+ * scene that switches all its ports the same way.
+ *
+ * Members are port references "&lt;device topic&gt;/&lt;port&gt;", in any
+ * case. A scene is switched by {@link DeviceManager#activate}, which sends the
+ * commands of all members in one go and reports when the devices confirmed
+ * them.
+ */
+public final class Scene {
+    private static final Histogram ACTIVATION_TIME = MetricsRegistry.getInstance().histogram("scene_activation_nanos");
+    private static final Counter CONFIRMED = MetricsRegistry.getInstance().counter("scene_members_confirmed_total");
+    private static final Counter FAILED = MetricsRegistry.getInstance().counter("scene_members_failed_total");
+
+    public final String name;
+    private final Map<String, Power> members;
+
+    public Scene(final String name, final Map<String, Power> members) {
+        this.name = name;
+        final Map<String, Power> sorted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        sorted.putAll(members);
+        this.members = Collections.unmodifiableMap(sorted);
+    }
+
+    public static Scene group(final String name, final Collection<String> ports, final Power power) {
+        final Map<String, Power> members = new LinkedHashMap<>();
+        ports.forEach(port -> members.put(port, power));
+        return new Scene(name, members);
+    }
+
+    public Map<String, Power> getMembers() {
+        return members;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + members;
+    }
+
+    /**
+     * The outcome of switching a scene.
+     */
+    public static final class Result {
+        /**
+         * Members the devices confirmed, with the time it took.
+         */
+        public final Map<String, Long> confirmedNanos;
+        /**
+         * Members that were not switched or not confirmed in time, with why.
+         */
+        public final Map<String, String> failures;
+        /**
+         * Members of devices another instance owns, which were passed on to it
+         * and are not awaited.
+         */
+        public final Set<String> forwarded;
+        public final long elapsedNanos;
+
+        Result(final Map<String, Long> confirmedNanos, final Map<String, String> failures,
+                final Set<String> forwarded, final long elapsedNanos) {
+            this.confirmedNanos = Collections.unmodifiableMap(confirmedNanos);
+            this.failures = Collections.unmodifiableMap(failures);
+            this.forwarded = Collections.unmodifiableSet(forwarded);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public boolean isComplete() {
+            return failures.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return confirmedNanos.size() + " confirmed, " + failures.size() + " failed, " + forwarded.size()
+                    + " forwarded in " + elapsedNanos / 1_000_000 + "ms";
+        }
+    }
+
+    /**
+     * Collects the confirmations of one activation until all members are
+     * settled or the deadline passed.
+     */
+    static final class Activation {
+        private final long startNanos = System.nanoTime();
+        private final Map<String, Long> confirmed = new LinkedHashMap<>();
+        private final Map<String, String> failures = new LinkedHashMap<>();
+        private final Set<String> forwarded = new LinkedHashSet<>();
+        private final Set<String> awaited = new LinkedHashSet<>();
+        private final CompletableFuture<Result> result = new CompletableFuture<>();
+        private boolean sealed;
+
+        synchronized void fail(final String member, final String reason) {
+            if (result.isDone()) {
+                return;
+            }
+            awaited.remove(member);
+            failures.put(member, reason);
+            FAILED.increment();
+            completeIfSettled();
+        }
+
+        synchronized void forwarded(final String member) {
+            forwarded.add(member);
+        }
+
+        void await(final String member, final CompletableFuture<Long> confirmation) {
+            synchronized (this) {
+                awaited.add(member);
+            }
+            confirmation.whenComplete((nanos, error) -> {
+                if (error != null) {
+                    final Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    fail(member, cause.getMessage());
+                    return;
+                }
+                synchronized (this) {
+                    if (result.isDone() || !awaited.remove(member)) {
+                        return;
+                    }
+                    confirmed.put(member, nanos);
+                    CONFIRMED.increment();
+                    completeIfSettled();
+                }
+            });
+        }
+
+        /**
+         * All commands were sent, the result may complete from now on.
+         */
+        synchronized CompletableFuture<Result> seal() {
+            sealed = true;
+            completeIfSettled();
+            return result;
+        }
+
+        /**
+         * The deadline passed: members that were not confirmed yet failed.
+         */
+        synchronized void expire() {
+            if (result.isDone()) {
+                return;
+            }
+            for (String member : awaited) {
+                failures.put(member, "timed out");
+                FAILED.increment();
+            }
+            awaited.clear();
+            completeIfSettled();
+        }
+
+        private void completeIfSettled() {
+            if (sealed && awaited.isEmpty() && !result.isDone()) {
+                final long elapsed = System.nanoTime() - startNanos;
+                ACTIVATION_TIME.record(elapsed);
+                result.complete(new Result(new LinkedHashMap<>(confirmed), new LinkedHashMap<>(failures),
+                        new LinkedHashSet<>(forwarded), elapsed));
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package home.device;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming extractor for Tasmota status payloads.
+ *
+ * Fields are registered by path, for example "Wifi.Signal". A path segment
+ * ending in '*' matches every key with that prefix. Keys are matched case
+ * insensitively and everything that is not registered is skipped without
+ * being materialised.
+ */
+public class StatusParser {
+
+    @FunctionalInterface
+    public interface Field {
+        /**
+         * Reads the value of the matched key. Implementations must consume the
+         * value, for example with {@link JsonReader#skipValue()}.
+         */
+        void read(Device device, String name, JsonReader reader) throws IOException;
+    }
+
+    private static final class Node {
+        final String segment;
+        final String name;
+        final boolean prefix;
+        Field field;
+        Node[] children = new Node[0];
+
+        Node(final String segment) {
+            this.segment = segment;
+            this.prefix = segment.endsWith("*");
+            this.name = prefix ? segment.substring(0, segment.length() - 1) : segment;
+        }
+
+        boolean matches(final String key) {
+            if (prefix) {
+                return key.length() >= name.length() && key.regionMatches(true, 0, name, 0, name.length());
+            }
+            return key.equalsIgnoreCase(name);
+        }
+
+        Node find(final String key) {
+            for (Node child : children) {
+                if (child.matches(key)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        Node copy() {
+            Node node = new Node(segment);
+            node.field = field;
+            node.children = new Node[children.length];
+            for (int i = 0; i < children.length; i++) {
+                node.children[i] = children[i].copy();
+            }
+            return node;
+        }
+    }
+
+    private volatile Node root = new Node("");
+
+    private final ThreadLocal<PayloadReader> readers = ThreadLocal.withInitial(PayloadReader::new);
+
+    public synchronized StatusParser register(final String path, final Field field) {
+        Node next = root.copy();
+        Node node = next;
+        for (String segment : path.split("\\.")) {
+            Node child = null;
+            for (Node c : node.children) {
+                if (c.segment.equalsIgnoreCase(segment)) {
+                    child = c;
+                }
+            }
+            if (child == null) {
+                child = new Node(segment);
+                node.children = Arrays.copyOf(node.children, node.children.length + 1);
+                node.children[node.children.length - 1] = child;
+            }
+            node = child;
+        }
+        node.field = field;
+        root = next;
+        return this;
+    }
+
+    public void parse(final Device device, final byte[] payload) throws IOException {
+        final Node tree = root;
+        final PayloadReader source = readers.get();
+        source.reset(payload);
+        final JsonReader reader = new JsonReader(source);
+        reader.setLenient(true);
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            return;
+        }
+        readObject(device, tree, reader);
+    }
+
+    private void readObject(final Device device, final Node node, final JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String key = reader.nextName();
+            final Node child = node.find(key);
+            if (child == null) {
+                reader.skipValue();
+            } else if (child.field != null) {
+                child.field.read(device, key, reader);
+            } else if (child.children.length > 0 && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readObject(device, child, reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Reusable reader over the payload bytes. ASCII payloads, which is what
+     * Tasmota sends, are widened in place; anything else is decoded as UTF-8.
+     */
+    private static final class PayloadReader extends Reader {
+        private char[] chars = new char[1024];
+        private int length;
+        private int position;
+
+        void reset(final byte[] payload) {
+            position = 0;
+            if (chars.length < payload.length) {
+                chars = new char[Math.max(payload.length, chars.length * 2)];
+            }
+            for (int i = 0; i < payload.length; i++) {
+                final byte b = payload[i];
+                if (b < 0) {
+                    final char[] decoded = new String(payload, StandardCharsets.UTF_8).toCharArray();
+                    System.arraycopy(decoded, 0, chars, 0, decoded.length);
+                    length = decoded.length;
+                    return;
+                }
+                chars[i] = (char) b;
+            }
+            length = payload.length;
+        }
+
+        @Override
+        public int read(final char[] buffer, final int offset, final int count) {
+            if (position >= length) {
+                return -1;
+            }
+            final int n = Math.min(count, length - position);
+            System.arraycopy(chars, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
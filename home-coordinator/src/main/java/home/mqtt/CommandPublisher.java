@@ -0,0 +1,440 @@
+package home.mqtt;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import util.Config;
+import util.Threads;
+import util.metrics.Counter;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Outbound command queue in front of the MQTT client.
+ *
+ * Commands are queued per device. A command to a cmnd/&lt;topic&gt;/&lt;postfix&gt;
+ * that is still queued is replaced by a newer one, which takes its place at
+ * the end of the queue, except for TOGGLE and Backlog, which do not commute.
+ * Each device is limited by a token bucket and all devices share a window of
+ * publishes in flight, released when the client reports the publish as
+ * complete.
+ *
+ * While the client is disconnected commands wait in a buffer of bounded size.
+ * When it is full, low priority commands such as status requests make room
+ * for high priority ones. Once connected, high priority commands are sent
+ * first, each device in the order its commands were queued.
+ */
+public class CommandPublisher implements Closeable {
+    private static final Logger LOG = Logger.getLogger(CommandPublisher.class.getName());
+
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public enum Priority {
+        HIGH,
+        LOW,
+    }
+
+    /**
+     * Learns what became of a queued command.
+     */
+    public interface Listener {
+        /**
+         * The command was handed to the client.
+         */
+        void published();
+
+        /**
+         * The command was replaced by a newer one, made room for another one or
+         * could not be published.
+         */
+        void failed(String reason);
+    }
+
+    private final IMqttAsyncClient client;
+    private final int maxInFlight;
+    private final double commandsPerNano;
+    private final int burst;
+    private final int queueLimit;
+    private final int bufferLimit;
+
+    private final Map<String, Outbox> outboxes = new HashMap<>();
+    private final ArrayDeque<Outbox> ready = new ArrayDeque<>();
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("mqtt-commands"));
+    private int inFlight;
+    private int pending;
+    private long drainAt = Long.MAX_VALUE;
+    private long sequence;
+    private volatile MessageJournal journal;
+
+    private final Counter queued = new Counter();
+    private final Counter coalesced = new Counter();
+    private final Counter dropped = new Counter();
+    private final Counter published = new Counter();
+    private final Counter failed = new Counter();
+
+    private final IMqttActionListener completion = new IMqttActionListener() {
+        @Override
+        public void onSuccess(final IMqttToken token) {
+            release();
+        }
+
+        @Override
+        public void onFailure(final IMqttToken token, final Throwable e) {
+            LOG.warning("MQTT publish failed: " + e);
+            failed.increment();
+            release();
+        }
+    };
+
+    /**
+     * @param maxInFlight publishes that may be in flight at once, for all devices
+     * @param commandsPerSecond sustained command rate per device
+     * @param burst commands a device may send at once
+     * @param queueLimit commands that may wait per device, further commands are dropped
+     * @param bufferLimit commands that may wait for all devices together
+     */
+    public CommandPublisher(final IMqttAsyncClient client, final int maxInFlight, final double commandsPerSecond,
+            final int burst, final int queueLimit, final int bufferLimit) {
+        this.client = client;
+        this.maxInFlight = maxInFlight;
+        this.commandsPerNano = commandsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.queueLimit = queueLimit;
+        this.bufferLimit = bufferLimit;
+
+        final MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.gauge("mqtt_commands_queued_total", queued::get);
+        metrics.gauge("mqtt_commands_coalesced_total", coalesced::get);
+        metrics.gauge("mqtt_commands_dropped_total", dropped::get);
+        metrics.gauge("mqtt_commands_failed_total", failed::get);
+        metrics.gauge("mqtt_published_total", published::get);
+        metrics.gauge("mqtt_commands_pending", this::getPending);
+        metrics.gauge("mqtt_inflight", this::getInFlight);
+    }
+
+    /**
+     * Creates a publisher configured by mqttMaxInflight (default 10, the Paho
+     * default), mqttDeviceCommandRate (commands per second, default 10),
+     * mqttDeviceCommandBurst (default 10), mqttDeviceQueueSize (default 32) and
+     * mqttOfflineBufferSize (default 1000).
+     */
+    public static CommandPublisher create(final IMqttAsyncClient client) {
+        return new CommandPublisher(client, Config.getInt("mqttMaxInflight", 10),
+                Double.parseDouble(Config.getString("mqttDeviceCommandRate", "10")),
+                Config.getInt("mqttDeviceCommandBurst", 10), Config.getInt("mqttDeviceQueueSize", 32),
+                Config.getInt("mqttOfflineBufferSize", 1000));
+    }
+
+    public boolean send(final String deviceTopic, final String postfix, final String payload) {
+        return send(deviceTopic, postfix, payload, Priority.HIGH);
+    }
+
+    /**
+     * Queues the command cmnd/&lt;deviceTopic&gt;/&lt;postfix&gt;. Never blocks.
+     *
+     * @return false if there was no room for the command and it was dropped.
+     */
+    public boolean send(final String deviceTopic, final String postfix, final String payload,
+            final Priority priority) {
+        return send(deviceTopic, postfix, payload, priority, null);
+    }
+
+    /**
+     * Queues the command cmnd/&lt;deviceTopic&gt;/&lt;postfix&gt; and tells the
+     * listener once it was published or lost. Never blocks.
+     *
+     * @return false if there was no room for the command and it was dropped,
+     *         in which case the listener is not called.
+     */
+    public synchronized boolean send(final String deviceTopic, final String postfix, final String payload,
+            final Priority priority, final Listener listener) {
+        final boolean commutes = !"TOGGLE".equalsIgnoreCase(payload) && !"Backlog".equalsIgnoreCase(postfix);
+        return queue(deviceTopic, new Command("cmnd/" + deviceTopic + "/" + postfix, payload, 0, true, listener),
+                commutes, priority);
+    }
+
+    /**
+     * Queues a message about a device that is not one of its commands, such as
+     * a power change forwarded to the instance that owns the device. It is
+     * limited and buffered with the commands of the device, is never replaced
+     * by a newer one and is published with QoS 1 and not retained.
+     *
+     * @return false if there was no room for the message and it was dropped.
+     */
+    public synchronized boolean publish(final String deviceTopic, final String topic, final String payload) {
+        return queue(deviceTopic, new Command(topic, payload, 1, false, null), false, Priority.HIGH);
+    }
+
+    private boolean queue(final String deviceTopic, final Command command, final boolean commutes,
+            final Priority priority) {
+        final Outbox outbox = outboxes.computeIfAbsent(deviceTopic.toUpperCase(), k -> new Outbox(burst));
+        final String key = commutes ? command.topic.toUpperCase() : command.topic + "#" + sequence++;
+        final Map<String, Command> commands = outbox.queue(priority);
+
+        // The replacement goes to the end, after a TOGGLE or Backlog queued since the one it replaces
+        final Command existing = commands.remove(key);
+        if (existing != null) {
+            commands.put(key, command);
+            coalesced.increment();
+            if (existing.listener != null) {
+                existing.listener.failed("superseded");
+            }
+            return true;
+        }
+        if (outbox.size() >= queueLimit || pending >= bufferLimit && (priority == Priority.LOW || !evictLow())) {
+            dropped.increment();
+            LOG.warning("No room for command, dropping " + command.topic + " " + command.payload);
+            return false;
+        }
+        commands.put(key, command);
+        pending++;
+        queued.increment();
+        if (!outbox.ready) {
+            outbox.ready = true;
+            ready.add(outbox);
+        }
+        scheduleDrain(0);
+        return true;
+    }
+
+    /**
+     * Drops the oldest low priority command of the first device that has one.
+     */
+    private boolean evictLow() {
+        for (Outbox outbox : ready) {
+            final Iterator<Command> commands = outbox.low.values().iterator();
+            if (commands.hasNext()) {
+                final Command command = commands.next();
+                commands.remove();
+                pending--;
+                dropped.increment();
+                LOG.warning("Command buffer is full, dropping " + command.topic + " " + command.payload);
+                if (command.listener != null) {
+                    command.listener.failed("dropped");
+                }
+                if (outbox.size() == 0) {
+                    outbox.ready = false;
+                    ready.remove(outbox);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * Records every published command in the journal.
+     */
+    public void setJournal(final MessageJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sends waiting commands now, for example once the client has reconnected.
+     */
+    public synchronized void resume() {
+        scheduleDrain(0);
+    }
+
+    private void scheduleDrain(final long delayNanos) {
+        final long at = System.nanoTime() + delayNanos;
+        if (at - drainAt >= 0 || scheduler.isShutdown()) {
+            return;
+        }
+        drainAt = at;
+        scheduler.schedule(this::drain, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void drain() {
+        while (true) {
+            final Command command;
+            synchronized (this) {
+                drainAt = Long.MAX_VALUE;
+                command = next();
+                if (command == null) {
+                    return;
+                }
+                inFlight++;
+                pending--;
+            }
+            publish(command);
+        }
+    }
+
+    /**
+     * Takes the next command that may be sent now, or schedules the next drain.
+     */
+    private Command next() {
+        if (ready.isEmpty() || inFlight >= maxInFlight) {
+            // A completed publish drains again
+            return null;
+        }
+        if (!client.isConnected()) {
+            scheduleDrain(RETRY_NANOS);
+            return null;
+        }
+        final long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        Outbox chosen = null;
+        for (int i = ready.size(); i > 0; i--) {
+            final Outbox outbox = ready.poll();
+            ready.add(outbox);
+            final long tokenIn = outbox.refill(now, commandsPerNano);
+            if (tokenIn > 0) {
+                wait = Math.min(wait, tokenIn);
+            } else if (!outbox.high.isEmpty()) {
+                chosen = outbox;
+                break;
+            } else if (chosen == null) {
+                chosen = outbox;
+            }
+        }
+        if (chosen == null) {
+            scheduleDrain(wait);
+            return null;
+        }
+        chosen.tokens -= 1;
+        final Iterator<Command> commands = (chosen.high.isEmpty() ? chosen.low : chosen.high).values().iterator();
+        final Command command = commands.next();
+        commands.remove();
+        if (chosen.size() == 0) {
+            chosen.ready = false;
+            ready.remove(chosen);
+        }
+        return command;
+    }
+
+    private void publish(final Command command) {
+        final MqttMessage message = new MqttMessage(command.payload.getBytes(StandardCharsets.UTF_8));
+        message.setQos(command.qos);
+        message.setRetained(command.retained);
+        if (LOG.isLoggable(Level.FINER)) {
+            LOG.finer("Publish MQTT message: " + command.topic + " " + command.payload);
+        }
+        try {
+            // Before the client has it, the device may answer right away
+            if (command.listener != null) {
+                command.listener.published();
+            }
+            client.publish(command.topic, message, null, completion);
+            published.increment();
+            final MessageJournal journal = this.journal;
+            if (journal != null) {
+                journal.append(MessageJournal.Direction.OUT, command.topic, message.getPayload());
+            }
+        } catch (MqttException | RuntimeException e) {
+            LOG.warning("Could not publish " + command.topic + ": " + e);
+            failed.increment();
+            release();
+            if (command.listener != null) {
+                command.listener.failed("not published: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        if (!ready.isEmpty()) {
+            scheduleDrain(0);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        LOG.info(String.format("MQTT commands: queued=%d coalesced=%d dropped=%d published=%d failed=%d pending=%d",
+                queued.get(), coalesced.get(), dropped.get(), published.get(), failed.get(), getPending()));
+    }
+
+    private static final class Command {
+        final String topic;
+        final String payload;
+        final int qos;
+        final boolean retained;
+        final Listener listener;
+
+        Command(final String topic, final String payload, final int qos, final boolean retained,
+                final Listener listener) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.listener = listener;
+        }
+    }
+
+    private static final class Outbox {
+        final Map<String, Command> high = new LinkedHashMap<>();
+        final Map<String, Command> low = new LinkedHashMap<>();
+        final int burst;
+        boolean ready;
+        double tokens;
+        long refilled = System.nanoTime();
+
+        Outbox(final int burst) {
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        Map<String, Command> queue(final Priority priority) {
+            return priority == Priority.HIGH ? high : low;
+        }
+
+        int size() {
+            return high.size() + low.size();
+        }
+
+        /**
+         * Adds the tokens earned since the last refill, returning 0 if a token is
+         * available or the nanos until one is.
+         */
+        long refill(final long now, final double perNano) {
+            tokens = Math.min(burst, tokens + (now - refilled) * perNano);
+            refilled = now;
+            if (tokens >= 1) {
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / perNano));
+        }
+    }
+}
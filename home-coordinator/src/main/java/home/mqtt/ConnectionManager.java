@@ -0,0 +1,186 @@
+package home.mqtt;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+
+import util.Config;
+import util.Threads;
+import util.metrics.Counter;
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Connects the MQTT client and reconnects it when the connection is lost.
+ *
+ * Attempts are spaced by an exponential backoff with jitter, so a broker
+ * outage is not met with a reconnect storm. The listener is told about every
+ * successful connect so it can restore subscriptions and state.
+ */
+public class ConnectionManager implements Closeable {
+    private static final Logger LOG = Logger.getLogger(ConnectionManager.class.getName());
+
+    private static final Histogram RECONNECT_TIME = MetricsRegistry.getInstance().histogram("mqtt_reconnect_nanos");
+    private static final Counter CONNECTION_LOST = MetricsRegistry.getInstance().counter("mqtt_connection_lost_total");
+    private static final Counter CONNECT_ATTEMPTS = MetricsRegistry.getInstance().counter("mqtt_connect_attempts_total");
+
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called on the connection thread after every successful connect.
+         *
+         * @param reconnect false for the first connect
+         */
+        void connected(boolean reconnect);
+    }
+
+    private final IMqttAsyncClient client;
+    private final MqttConnectOptions options;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Listener listener;
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("mqtt-connect"));
+
+    private int attempt;
+    private boolean connecting;
+    private boolean everConnected;
+    private long lostNanos;
+    private volatile long lastReconnectNanos = -1;
+    private volatile boolean closed;
+
+    public ConnectionManager(final IMqttAsyncClient client, final MqttConnectOptions options,
+            final long minBackoffMillis, final long maxBackoffMillis, final Listener listener) {
+        this.client = client;
+        this.options = options;
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Creates a manager configured by mqttReconnectMinMillis (default 100) and
+     * mqttReconnectMaxMillis (default 30000).
+     */
+    public static ConnectionManager create(final IMqttAsyncClient client, final MqttConnectOptions options,
+            final Listener listener) {
+        return new ConnectionManager(client, options, Config.getLong("mqttReconnectMinMillis", 100),
+                Config.getLong("mqttReconnectMaxMillis", 30000), listener);
+    }
+
+    /**
+     * Connects in the background, retrying until it succeeds.
+     */
+    public synchronized void connect() {
+        lostNanos = System.nanoTime();
+        schedule(0);
+    }
+
+    /**
+     * To be called from {@link org.eclipse.paho.client.mqttv3.MqttCallback#connectionLost}.
+     */
+    public synchronized void connectionLost(final Throwable cause) {
+        LOG.severe("MQTT connection lost: " + (cause == null ? "unknown cause" : cause.getMessage()));
+        CONNECTION_LOST.increment();
+        lostNanos = System.nanoTime();
+        attempt = 0;
+        schedule(0);
+    }
+
+    /**
+     * Time the last reconnect took from losing the connection, or -1.
+     */
+    public long getLastReconnectNanos() {
+        return lastReconnectNanos;
+    }
+
+    /**
+     * Delay before the given attempt: a random value between half and all of
+     * min * 2^attempt, capped at the maximum.
+     */
+    long backoffMillis(final int attempt) {
+        if (attempt == 0) {
+            return 0;
+        }
+        final long ceiling = Math.min(maxBackoffMillis, minBackoffMillis << Math.min(attempt - 1, 30));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private synchronized void schedule(final long delayMillis) {
+        if (closed || connecting) {
+            return;
+        }
+        connecting = true;
+        scheduler.schedule(this::attempt, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt() {
+        if (closed) {
+            return;
+        }
+        if (client.isConnected()) {
+            connected();
+            return;
+        }
+        CONNECT_ATTEMPTS.increment();
+        try {
+            LOG.fine("Connecting to MQTT broker, attempt " + (attempt + 1));
+            client.connect(options, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(final IMqttToken token) {
+                    scheduler.execute(ConnectionManager.this::connected);
+                }
+
+                @Override
+                public void onFailure(final IMqttToken token, final Throwable e) {
+                    failed(e);
+                }
+            });
+        } catch (Exception e) {
+            failed(e);
+        }
+    }
+
+    private synchronized void failed(final Throwable e) {
+        connecting = false;
+        final long delay = backoffMillis(++attempt);
+        LOG.warning("Could not connect to MQTT broker, retrying in " + delay + "ms: " + e);
+        schedule(delay);
+    }
+
+    private void connected() {
+        final boolean reconnect;
+        synchronized (this) {
+            connecting = false;
+            attempt = 0;
+            reconnect = everConnected;
+            everConnected = true;
+            if (reconnect) {
+                lastReconnectNanos = System.nanoTime() - lostNanos;
+                RECONNECT_TIME.record(lastReconnectNanos);
+                LOG.info("MQTT connection restored after " + TimeUnit.NANOSECONDS.toMillis(lastReconnectNanos) + "ms");
+            } else {
+                LOG.info("MQTT connection established");
+            }
+        }
+        try {
+            listener.connected(reconnect);
+        } catch (RuntimeException e) {
+            LOG.warning("Could not complete MQTT connect: " + e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdown();
+    }
+}
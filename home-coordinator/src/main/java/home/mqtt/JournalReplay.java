@@ -0,0 +1,103 @@
+package home.mqtt;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import util.metrics.Counter;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Feeds the received messages of a {@link MessageJournal} through a router
+ * again, as if they came from the broker. Used for load tests with real
+ * traffic and to reproduce problems without the devices.
+ *
+ * Messages are replayed at their recorded pace, faster by a factor, or as fast
+ * as the dispatcher takes them. Published commands in the journal are skipped;
+ * the coordinator publishes its own while it handles the replayed messages.
+ */
+public final class JournalReplay {
+    private static final Logger LOG = Logger.getLogger(JournalReplay.class.getName());
+
+    private static final Counter REPLAYED = MetricsRegistry.getInstance().counter("journal_replayed_total");
+
+    // Messages that may wait in the dispatcher before a fast replay waits for it
+    private static final int MAX_QUEUED = 512;
+
+    private static final class Interrupted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final TopicRouter router;
+    private final MessageDispatcher dispatcher;
+    private final double speed;
+
+    private long firstRecordMillis = -1;
+    private long startNanos;
+    private long replayed;
+
+    /**
+     * @param speed how many times faster than recorded to replay, 0 for as fast
+     *              as possible
+     */
+    public JournalReplay(final TopicRouter router, final MessageDispatcher dispatcher, final double speed) {
+        this.router = router;
+        this.dispatcher = dispatcher;
+        this.speed = speed;
+    }
+
+    /**
+     * Replays the journal in the directory and returns once every message was
+     * routed.
+     *
+     * @return the number of messages replayed
+     */
+    public long replay(final Path directory) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        try {
+            MessageJournal.read(directory, record -> {
+                if (record.direction != MessageJournal.Direction.IN) {
+                    return;
+                }
+                try {
+                    pace(record.timeMillis);
+                    router.route(record.topic, new MqttMessage(record.payload));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new Interrupted();
+                } catch (Exception e) {
+                    LOG.warning("Could not replay " + record.topic + ": " + e);
+                }
+                replayed++;
+                REPLAYED.increment();
+            });
+        } catch (Interrupted e) {
+            throw new InterruptedException("Replay interrupted after " + replayed + " messages");
+        }
+        LOG.info("Replayed " + replayed + " messages from " + directory + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        return replayed;
+    }
+
+    private void pace(final long timeMillis) throws InterruptedException {
+        if (firstRecordMillis < 0) {
+            firstRecordMillis = timeMillis;
+            startNanos = System.nanoTime();
+        }
+        if (speed > 0) {
+            final long due = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(timeMillis - firstRecordMillis) / speed);
+            final long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        } else if (dispatcher != null && replayed % 64 == 0) {
+            // Queues that are full drop messages, which a replay must not
+            while (dispatcher.getShardStats().stream().mapToLong(s -> s.depth).sum() > MAX_QUEUED) {
+                Thread.sleep(1);
+            }
+        }
+    }
+}
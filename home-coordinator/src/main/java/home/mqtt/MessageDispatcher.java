@@ -0,0 +1,236 @@
+package home.mqtt;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import util.Config;
+import util.Threads;
+
+/**
+ * Moves message handling off the MQTT callback thread.
+ *
+ * Messages are sharded by device topic into bounded queues. A shard is drained
+ * by at most one worker at a time, so messages of one device are handled in
+ * arrival order while different devices are handled in parallel.
+ */
+public class MessageDispatcher implements Closeable {
+    private static final Logger LOG = Logger.getLogger(MessageDispatcher.class.getName());
+
+    private static final int DRAIN_BATCH = 64;
+
+    private final Shard[] shards;
+    private final ExecutorService executor;
+
+    public MessageDispatcher(final int shardCount, final int queueCapacity, final ExecutorService executor) {
+        this.executor = executor;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, queueCapacity);
+        }
+    }
+
+    /**
+     * Creates a dispatcher configured by dispatchShards, dispatchQueueSize,
+     * dispatchThreads and dispatchVirtualThreads, which defaults to the
+     * virtual execution mode of {@link Threads#useVirtualThreads()}.
+     */
+    public static MessageDispatcher create() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final int shardCount = Config.getInt("dispatchShards", processors * 4);
+        final int queueCapacity = Config.getInt("dispatchQueueSize", 1024);
+        ExecutorService executor = null;
+        if (Config.getBoolean("dispatchVirtualThreads", Threads.useVirtualThreads())) {
+            executor = Threads.newVirtualThreadExecutor();
+        }
+        if (executor == null) {
+            executor = Threads.newFixedPool("dispatch", Config.getInt("dispatchThreads", processors));
+        }
+        LOG.info("Message dispatcher: " + shardCount + " shards, queue size " + queueCapacity);
+        return new MessageDispatcher(shardCount, queueCapacity, executor);
+    }
+
+    /**
+     * Wraps a handler so that it runs on the shard of the device topic.
+     */
+    public TopicRouter.Handler ordered(final TopicRouter.Handler handler) {
+        return (topic, message) -> execute(topic, () -> handler.handle(topic, message));
+    }
+
+    /**
+     * Queues a task on the shard of the device topic.
+     *
+     * @return false if the shard queue is full and the task was dropped.
+     */
+    public boolean execute(final String deviceTopic, final Task task) {
+        return shards[shardIndex(deviceTopic)].offer(deviceTopic, task);
+    }
+
+    @FunctionalInterface
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    public List<ShardStats> getShardStats() {
+        List<ShardStats> stats = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            stats.add(shard.stats());
+        }
+        return stats;
+    }
+
+    int shardIndex(final String deviceTopic) {
+        int hash = 0;
+        for (int i = 0; i < deviceTopic.length(); i++) {
+            hash = 31 * hash + Character.toUpperCase(deviceTopic.charAt(i));
+        }
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % shards.length;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.warning("Message dispatcher did not terminate in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (LOG.isLoggable(Level.FINE)) {
+            getShardStats().forEach(s -> LOG.fine(s.toString()));
+        }
+    }
+
+    private static final class Entry {
+        final String deviceTopic;
+        final Task task;
+        final long queuedNanos;
+
+        Entry(final String deviceTopic, final Task task, final long queuedNanos) {
+            this.deviceTopic = deviceTopic;
+            this.task = task;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    private final class Shard implements Runnable {
+        private final int index;
+        private final ArrayBlockingQueue<Entry> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong totalLatencyNanos = new AtomicLong();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        Shard(final int index, final int capacity) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        boolean offer(final String deviceTopic, final Task task) {
+            if (!queue.offer(new Entry(deviceTopic, task, System.nanoTime()))) {
+                if (dropped.getAndIncrement() % 1000 == 0) {
+                    LOG.warning("Dispatch shard " + index + " is full, dropping message for " + deviceTopic);
+                }
+                return false;
+            }
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e) {
+                    scheduled.set(false);
+                    LOG.warning("Could not schedule dispatch shard " + index + ": " + e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < DRAIN_BATCH; i++) {
+                    Entry entry = queue.poll();
+                    if (entry == null) {
+                        break;
+                    }
+                    handle(entry);
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            if (!queue.isEmpty()) {
+                // Yield the worker to other shards before continuing with this one
+                schedule();
+            }
+        }
+
+        private void handle(final Entry entry) {
+            final long latency = System.nanoTime() - entry.queuedNanos;
+            totalLatencyNanos.addAndGet(latency);
+            long max = maxLatencyNanos.get();
+            while (latency > max && !maxLatencyNanos.compareAndSet(max, latency)) {
+                max = maxLatencyNanos.get();
+            }
+            try {
+                entry.task.run();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                LOG.warning("Message for " + entry.deviceTopic + " could not be processed: " + e);
+            }
+            processed.incrementAndGet();
+        }
+
+        ShardStats stats() {
+            return new ShardStats(index, queue.size(), processed.get(), dropped.get(), failed.get(),
+                    totalLatencyNanos.get(), maxLatencyNanos.get());
+        }
+    }
+
+    public static final class ShardStats {
+        public final int shard;
+        public final int depth;
+        public final long processed;
+        public final long dropped;
+        public final long failed;
+        public final long totalLatencyNanos;
+        public final long maxLatencyNanos;
+
+        ShardStats(final int shard, final int depth, final long processed, final long dropped, final long failed,
+                final long totalLatencyNanos, final long maxLatencyNanos) {
+            this.shard = shard;
+            this.depth = depth;
+            this.processed = processed;
+            this.dropped = dropped;
+            this.failed = failed;
+            this.totalLatencyNanos = totalLatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        public long getAverageLatencyNanos() {
+            return processed == 0 ? 0 : totalLatencyNanos / processed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Dispatch shard %d: depth=%d processed=%d dropped=%d failed=%d avgLatency=%dus maxLatency=%dus",
+                    shard, depth, processed, dropped, failed, getAverageLatencyNanos() / 1000, maxLatencyNanos / 1000);
+        }
+    }
+}
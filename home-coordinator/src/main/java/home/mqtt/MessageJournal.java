@@ -0,0 +1,303 @@
+package home.mqtt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import util.Config;
+import util.metrics.Counter;
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Append-only journal of the MQTT messages the coordinator received and the
+ * commands it published, for audits and for replaying real traffic.
+ *
+ * The journal is a directory of segments of a fixed size, each mapped into
+ * memory while it is written. A segment is named after the time it was
+ * started and holds a magic, a version and then records of
+ * <pre>
+ * length (int), direction (byte), time millis (long), topic length (short), topic, payload
+ * </pre>
+ * The length is written after the rest of the record, so a record that was
+ * cut short by a crash reads as the end of the segment. A segment that is full
+ * is followed by a new one, and segments older than the retention or beyond
+ * the retained size are deleted, oldest first.
+ */
+public class MessageJournal implements Closeable {
+    private static final Logger LOG = Logger.getLogger(MessageJournal.class.getName());
+
+    private static final int MAGIC = 0x48434a31; // HCJ1
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int RECORD_HEADER = 4 + 1 + 8 + 2;
+    private static final String SUFFIX = ".journal";
+
+    private static final Counter RECORDS = MetricsRegistry.getInstance().counter("journal_records_total");
+    private static final Counter BYTES = MetricsRegistry.getInstance().counter("journal_bytes_total");
+    private static final Counter DROPPED = MetricsRegistry.getInstance().counter("journal_dropped_total");
+    private static final Histogram APPEND_TIME = MetricsRegistry.getInstance().histogram("journal_append_nanos");
+
+    public enum Direction {
+        /**
+         * A message received from the broker.
+         */
+        IN,
+        /**
+         * A message published by the coordinator.
+         */
+        OUT,
+    }
+
+    public static final class Record {
+        public final Direction direction;
+        public final long timeMillis;
+        public final String topic;
+        public final byte[] payload;
+
+        Record(final Direction direction, final long timeMillis, final String topic, final byte[] payload) {
+            this.direction = direction;
+            this.timeMillis = timeMillis;
+            this.topic = topic;
+            this.payload = payload;
+        }
+
+        @Override
+        public String toString() {
+            return direction + " " + topic + " " + new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionMillis;
+    private final long retentionBytes;
+
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private boolean closed;
+
+    /**
+     * @param segmentBytes    the size of a segment, the largest record must fit
+     * @param retentionMillis how long segments are kept
+     * @param retentionBytes  how many bytes of segments are kept
+     */
+    public MessageJournal(final Path directory, final int segmentBytes, final long retentionMillis,
+            final long retentionBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        Files.createDirectories(directory);
+        final List<Path> existing = segments(directory);
+        if (!existing.isEmpty()) {
+            segmentStart = startOf(existing.get(existing.size() - 1));
+        }
+        MetricsRegistry.getInstance().gauge("journal_segments", () -> segments(directory).size());
+        roll();
+    }
+
+    /**
+     * Opens the journal in journalDir, or returns null if that is not set.
+     * Segments are journalSegmentMegabytes (default 16) and are kept for
+     * journalRetentionHours (default 72) up to journalRetentionMegabytes
+     * (default 1024).
+     *
+     * @param instanceId the coordinator instance, which gets a directory of its
+     *                   own in journalDir, or null for a single coordinator
+     */
+    public static MessageJournal create(final String instanceId) {
+        final String configured = Config.getString("journalDir", "");
+        if (configured.isEmpty()) {
+            return null;
+        }
+        final Path directory = instanceId == null ? Paths.get(configured) : Paths.get(configured, instanceId);
+        try {
+            final MessageJournal journal = new MessageJournal(directory,
+                    Config.getInt("journalSegmentMegabytes", 16) << 20,
+                    TimeUnit.HOURS.toMillis(Config.getLong("journalRetentionHours", 72)),
+                    Config.getLong("journalRetentionMegabytes", 1024) << 20);
+            LOG.info("Journaling MQTT messages to " + directory);
+            return journal;
+        } catch (IOException e) {
+            LOG.warning("Could not open journal " + directory + ": " + e);
+            return null;
+        }
+    }
+
+    public void append(final Direction direction, final String topic, final byte[] payload) {
+        append(direction, System.currentTimeMillis(), topic, payload);
+    }
+
+    synchronized void append(final Direction direction, final long timeMillis, final String topic,
+            final byte[] payload) {
+        if (closed) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        final int length = RECORD_HEADER + topicBytes.length + payload.length;
+        if (length > segmentBytes - HEADER || topicBytes.length > Short.MAX_VALUE) {
+            DROPPED.increment();
+            return;
+        }
+        try {
+            if (segment == null || segment.remaining() < length) {
+                roll();
+            }
+        } catch (IOException e) {
+            DROPPED.increment();
+            LOG.warning("Could not start a journal segment: " + e);
+            segment = null;
+            return;
+        }
+        final int position = segment.position();
+        segment.position(position + 4);
+        segment.put((byte) direction.ordinal());
+        segment.putLong(timeMillis);
+        segment.putShort((short) topicBytes.length);
+        segment.put(topicBytes);
+        segment.put(payload);
+        // The record counts once its length is there
+        segment.putInt(position, length);
+        RECORDS.increment();
+        BYTES.add(length);
+        APPEND_TIME.record(System.nanoTime() - start);
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+        // Names sort by time, and a segment started in the same millisecond gets the next one
+        final long now = Math.max(System.currentTimeMillis(), segmentStart + 1);
+        final Path file = directory.resolve(String.format("%020d%s", now, SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        segment.putInt(MAGIC).putInt(VERSION);
+        segmentStart = now;
+        LOG.fine("Started journal segment " + file);
+        enforceRetention(now);
+    }
+
+    private void enforceRetention(final long now) {
+        final List<Path> segments = segments(directory);
+        long bytes = 0;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            final Path file = segments.get(i);
+            try {
+                bytes += Files.size(file);
+                // The segment being written is always kept
+                if (i < segments.size() - 1 && (bytes > retentionBytes || startOf(file) < now - retentionMillis)) {
+                    Files.delete(file);
+                    LOG.fine("Deleted journal segment " + file);
+                }
+            } catch (IOException | NumberFormatException e) {
+                LOG.warning("Could not apply retention to " + file + ": " + e);
+            }
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment != null) {
+            segment.force();
+            segment = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Writes the records so far to disk.
+     */
+    public synchronized void flush() {
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            LOG.warning("Could not close journal: " + e);
+        }
+    }
+
+    /**
+     * Passes the records in the journal directory to the consumer, oldest first.
+     *
+     * @return the number of records read
+     */
+    public static long read(final Path directory, final Consumer<Record> consumer) throws IOException {
+        long count = 0;
+        for (Path file : segments(directory)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() < HEADER || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                    LOG.warning("Skipping journal segment with unknown format: " + file);
+                    continue;
+                }
+                while (buffer.remaining() >= RECORD_HEADER) {
+                    final int length = buffer.getInt();
+                    if (length < RECORD_HEADER || length - 4 > buffer.remaining()) {
+                        break;
+                    }
+                    final int direction = buffer.get();
+                    if (direction < 0 || direction >= Direction.values().length) {
+                        LOG.warning("Journal segment " + file + " is damaged after " + count + " records");
+                        break;
+                    }
+                    final long timeMillis = buffer.getLong();
+                    final byte[] topic = new byte[buffer.getShort()];
+                    buffer.get(topic);
+                    final byte[] payload = new byte[length - RECORD_HEADER - topic.length];
+                    buffer.get(payload);
+                    consumer.accept(new Record(Direction.values()[direction], timeMillis, new String(topic, StandardCharsets.UTF_8),
+                            payload));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The segments in the directory, oldest first.
+     */
+    static List<Path> segments(final Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        final List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            files.forEach(segments::add);
+        } catch (IOException e) {
+            LOG.warning("Could not list journal " + directory + ": " + e);
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long startOf(final Path segment) {
+        final String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+}
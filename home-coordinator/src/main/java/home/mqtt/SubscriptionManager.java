@@ -0,0 +1,203 @@
+package home.mqtt;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import util.Config;
+
+/**
+ * Keeps the MQTT subscriptions in line with the routes of a {@link TopicRouter}.
+ *
+ * In WILDCARD mode every route is subscribed for all devices (stat/+/RESULT).
+ * In DEVICE mode routes are subscribed per known device and only the discovery
+ * filters, by default tele/+/LWT, use a wildcard so new devices are still seen.
+ */
+public class SubscriptionManager {
+    private static final Logger LOG = Logger.getLogger(SubscriptionManager.class.getName());
+
+    public enum Mode {
+        WILDCARD,
+        DEVICE,
+    }
+
+    private final IMqttAsyncClient client;
+    private final TopicRouter router;
+    private final Mode mode;
+    private final Set<String> discoveryFilters;
+
+    private final Set<String> devices = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    private Set<String> subscribed = new LinkedHashSet<>();
+    private boolean active;
+
+    public SubscriptionManager(final IMqttAsyncClient client, final TopicRouter router, final Mode mode,
+            final Set<String> discoveryFilters) {
+        this.client = client;
+        this.router = router;
+        this.mode = mode;
+        this.discoveryFilters = discoveryFilters;
+        router.setChangeListener(this::refresh);
+    }
+
+    /**
+     * Creates a manager configured by mqttSubscriptionMode (wildcard or device)
+     * and mqttDiscoveryFilters (comma separated).
+     */
+    public static SubscriptionManager create(final IMqttAsyncClient client, final TopicRouter router) {
+        return create(client, router, Mode.valueOf(Config.getString("mqttSubscriptionMode", "wildcard").toUpperCase()));
+    }
+
+    /**
+     * Creates a manager in the given mode with the configured discovery filters.
+     */
+    public static SubscriptionManager create(final IMqttAsyncClient client, final TopicRouter router,
+            final Mode mode) {
+        Set<String> discovery = new LinkedHashSet<>(
+                Arrays.asList(Config.getString("mqttDiscoveryFilters", "tele/+/LWT").split(",")));
+        return new SubscriptionManager(client, router, mode, discovery);
+    }
+
+    public synchronized void start() {
+        active = true;
+        refresh();
+    }
+
+    public synchronized void addDevice(final String topic) {
+        addDevices(Collections.singleton(topic));
+    }
+
+    /**
+     * Adds devices with one subscribe for all of them. In DEVICE mode only the
+     * filters of the new devices are subscribed.
+     */
+    public synchronized void addDevices(final Collection<String> topics) {
+        final Set<String> added = new LinkedHashSet<>();
+        for (String topic : topics) {
+            if (devices.add(topic) && mode == Mode.DEVICE) {
+                added.addAll(deviceFilters(topic));
+            }
+        }
+        added.removeAll(subscribed);
+        if (added.isEmpty() || !active || !client.isConnected()) {
+            // Everything is subscribed once started and connected
+            return;
+        }
+        try {
+            subscribe(added);
+            subscribed.addAll(added);
+        } catch (MqttException e) {
+            LOG.warning("Could not subscribe to " + added + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized void removeDevice(final String topic) {
+        if (!devices.remove(topic) || mode != Mode.DEVICE) {
+            return;
+        }
+        final Set<String> removed = deviceFilters(topic);
+        removed.retainAll(subscribed);
+        if (removed.isEmpty() || !active || !client.isConnected()) {
+            return;
+        }
+        try {
+            LOG.fine("Unsubscribe from " + removed);
+            client.unsubscribe(removed.toArray(new String[0]));
+            subscribed.removeAll(removed);
+        } catch (MqttException e) {
+            LOG.warning("Could not unsubscribe from " + removed + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Subscribes everything again, for example after the session was lost.
+     */
+    public synchronized void resubscribe() {
+        subscribed = new LinkedHashSet<>();
+        refresh();
+    }
+
+    public synchronized Set<String> getSubscriptions() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(subscribed));
+    }
+
+    synchronized Set<String> desiredFilters() {
+        Set<String> filters = new LinkedHashSet<>();
+        if (mode == Mode.WILDCARD) {
+            filters.addAll(router.getFilters("+"));
+        } else {
+            filters.addAll(discoveryFilters);
+            for (String device : devices) {
+                filters.addAll(deviceFilters(device));
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * The filters subscribed for a device in DEVICE mode.
+     */
+    private Set<String> deviceFilters(final String device) {
+        final Set<String> filters = new LinkedHashSet<>();
+        for (String filter : router.getFilters(device)) {
+            if (!coveredByDiscovery(filter)) {
+                filters.add(filter);
+            }
+        }
+        return filters;
+    }
+
+    private boolean coveredByDiscovery(final String filter) {
+        final String[] levels = filter.split("/");
+        for (String discovery : discoveryFilters) {
+            final String[] pattern = discovery.split("/");
+            if (pattern.length == levels.length) {
+                boolean matches = true;
+                for (int i = 0; i < pattern.length && matches; i++) {
+                    matches = pattern[i].equals("+") || pattern[i].equals(levels[i]);
+                }
+                if (matches) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private synchronized void refresh() {
+        if (!active || !client.isConnected()) {
+            // Everything is subscribed again once connected
+            return;
+        }
+        final Set<String> desired = desiredFilters();
+        final Set<String> added = new LinkedHashSet<>(desired);
+        added.removeAll(subscribed);
+        final Set<String> removed = new LinkedHashSet<>(subscribed);
+        removed.removeAll(desired);
+
+        try {
+            if (!added.isEmpty()) {
+                subscribe(added);
+            }
+            if (!removed.isEmpty()) {
+                LOG.fine("Unsubscribe from " + removed);
+                client.unsubscribe(removed.toArray(new String[0]));
+            }
+            subscribed = desired;
+        } catch (MqttException e) {
+            LOG.warning("Could not update MQTT subscriptions: " + e.getMessage());
+        }
+    }
+
+    private void subscribe(final Set<String> added) throws MqttException {
+        final String[] filters = added.toArray(new String[0]);
+        LOG.fine("Subscribe to " + added);
+        client.subscribe(filters, new int[filters.length]);
+    }
+}
@@ -0,0 +1,184 @@
+package home.mqtt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import util.metrics.Counter;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Routes Tasmota style topics (prefix/topic/postfix) to registered handlers.
+ *
+ * The routing table is matched directly against the topic string: segments are
+ * located by index and compared case insensitively in place, so no intermediate
+ * strings are created for messages that are not handled.
+ */
+public class TopicRouter {
+
+    public static final String ANY = "+";
+
+    @FunctionalInterface
+    public interface Handler {
+        void handle(String deviceTopic, MqttMessage message) throws Exception;
+    }
+
+    private static final class Route {
+        final String postfix;
+        final Handler handler;
+        final Counter messages;
+
+        Route(final String prefix, final String postfix, final Handler handler) {
+            this.postfix = postfix;
+            this.handler = handler;
+            this.messages = messageCounter(prefix + "/+/" + postfix);
+        }
+    }
+
+    private static final class PrefixNode {
+        final String prefix;
+        Route[] routes = new Route[0];
+        Handler fallback;
+        Counter fallbackMessages;
+
+        PrefixNode(final String prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    private volatile PrefixNode[] table = new PrefixNode[0];
+    private volatile Runnable changeListener;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder handled = new LongAdder();
+    private final Counter unrouted = messageCounter("unrouted");
+
+    /**
+     * Registers a handler for prefix/+/postfix. Use {@link #ANY} as postfix to
+     * register a fallback for all postfixes of the prefix that have no exact route.
+     */
+    public synchronized void register(final String prefix, final String postfix, final Handler handler) {
+        PrefixNode[] next = copy(table);
+        PrefixNode node = null;
+        for (PrefixNode n : next) {
+            if (n.prefix.equalsIgnoreCase(prefix)) {
+                node = n;
+            }
+        }
+        if (node == null) {
+            node = new PrefixNode(prefix);
+            next = Arrays.copyOf(next, next.length + 1);
+            next[next.length - 1] = node;
+        }
+        if (ANY.equals(postfix)) {
+            node.fallback = handler;
+            node.fallbackMessages = messageCounter(prefix + "/+/#");
+        } else {
+            Route[] routes = Arrays.copyOf(node.routes, node.routes.length + 1);
+            routes[routes.length - 1] = new Route(node.prefix, postfix, handler);
+            node.routes = routes;
+        }
+        table = next;
+        final Runnable listener = changeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sets a listener that is called whenever a route is registered.
+     */
+    public void setChangeListener(final Runnable listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * Returns the MQTT subscription filters that cover all routes for one
+     * device topic, or for all devices if deviceTopic is "+".
+     */
+    public List<String> getFilters(final String deviceTopic) {
+        final List<String> filters = new ArrayList<>();
+        for (PrefixNode node : table) {
+            if (node.fallback != null) {
+                filters.add(node.prefix + "/" + deviceTopic + "/#");
+                continue;
+            }
+            for (Route route : node.routes) {
+                filters.add(node.prefix + "/" + deviceTopic + "/" + route.postfix);
+            }
+        }
+        return filters;
+    }
+
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    public long getHandledCount() {
+        return handled.sum();
+    }
+
+    /**
+     * Routes a message to its handler.
+     *
+     * @return false if no handler is registered for the topic.
+     */
+    public boolean route(final String fullTopic, final MqttMessage message) throws Exception {
+        received.increment();
+        final int first = fullTopic.indexOf('/');
+        final int second = first <= 0 ? -1 : fullTopic.indexOf('/', first + 1);
+        final PrefixNode node = second < 0 || second == first + 1 ? null : findPrefix(fullTopic, first);
+        if (node == null) {
+            unrouted.increment();
+            return false;
+        }
+
+        final int postfixLength = fullTopic.length() - second - 1;
+        Handler handler = node.fallback;
+        Counter messages = node.fallbackMessages;
+        for (Route route : node.routes) {
+            if (route.postfix.length() == postfixLength
+                    && fullTopic.regionMatches(true, second + 1, route.postfix, 0, postfixLength)) {
+                handler = route.handler;
+                messages = route.messages;
+                break;
+            }
+        }
+        if (handler == null) {
+            unrouted.increment();
+            return false;
+        }
+        messages.increment();
+        handler.handle(fullTopic.substring(first + 1, second), message);
+        handled.increment();
+        return true;
+    }
+
+    private PrefixNode findPrefix(final String fullTopic, final int length) {
+        for (PrefixNode node : table) {
+            if (node.prefix.length() == length && fullTopic.regionMatches(true, 0, node.prefix, 0, length)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private static Counter messageCounter(final String route) {
+        return MetricsRegistry.getInstance().counter("mqtt_messages_total{route=\"" + route + "\"}");
+    }
+
+    private static PrefixNode[] copy(final PrefixNode[] nodes) {
+        PrefixNode[] result = new PrefixNode[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            PrefixNode node = new PrefixNode(nodes[i].prefix);
+            node.routes = nodes[i].routes;
+            node.fallback = nodes[i].fallback;
+            node.fallbackMessages = nodes[i].fallbackMessages;
+            result[i] = node;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,144 @@
+package home.stats;
+
+/**
+ * Aggregates the samples of one numeric series into fixed width buckets.
+ *
+ * Each resolution keeps min/max/sum/count of its open bucket and a ring of the
+ * last closed buckets in primitive arrays. A bucket is handed to the sink once,
+ * when a sample for a later bucket arrives or the bucket has expired.
+ */
+public class TimeSeries {
+
+    @FunctionalInterface
+    public interface Sink {
+        void bucketClosed(TimeSeries series, int resolution, long start, double min, double max, double avg, long count);
+    }
+
+    private final String metric;
+    private final String seriesId;
+    private final Resolution[] resolutions;
+    private final Sink sink;
+
+    TimeSeries(final String metric, final String seriesId, final long[] widthsMillis, final int retention,
+            final Sink sink) {
+        this.metric = metric;
+        this.seriesId = seriesId;
+        this.sink = sink;
+        this.resolutions = new Resolution[widthsMillis.length];
+        for (int i = 0; i < widthsMillis.length; i++) {
+            resolutions[i] = new Resolution(widthsMillis[i], retention);
+        }
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public String getSeriesId() {
+        return seriesId;
+    }
+
+    public void record(final double value) {
+        record(System.currentTimeMillis(), value);
+    }
+
+    public synchronized void record(final long timeMillis, final double value) {
+        for (int i = 0; i < resolutions.length; i++) {
+            final Resolution r = resolutions[i];
+            final long start = timeMillis - Math.floorMod(timeMillis, r.width);
+            if (r.count > 0 && start != r.start) {
+                close(i);
+            }
+            if (r.count == 0) {
+                r.start = start;
+                r.min = value;
+                r.max = value;
+                r.sum = 0;
+            }
+            r.min = Math.min(r.min, value);
+            r.max = Math.max(r.max, value);
+            r.sum += value;
+            r.count++;
+        }
+    }
+
+    /**
+     * Closes all open buckets that end at or before the given time.
+     */
+    public synchronized void closeExpired(final long timeMillis) {
+        for (int i = 0; i < resolutions.length; i++) {
+            final Resolution r = resolutions[i];
+            if (r.count > 0 && r.start + r.width <= timeMillis) {
+                close(i);
+            }
+        }
+    }
+
+    /**
+     * Hands the open buckets to the sink without closing them, used on shutdown.
+     */
+    public synchronized void flushOpen() {
+        for (int i = 0; i < resolutions.length; i++) {
+            final Resolution r = resolutions[i];
+            if (r.count > 0) {
+                sink.bucketClosed(this, i, r.start, r.min, r.max, r.sum / r.count, r.count);
+            }
+        }
+    }
+
+    /**
+     * Number of closed buckets retained in memory for a resolution.
+     */
+    public synchronized int getRetainedCount(final int resolution) {
+        return resolutions[resolution].size;
+    }
+
+    /**
+     * Average of a retained bucket, 0 being the most recently closed one.
+     */
+    public synchronized double getRetainedAverage(final int resolution, final int age) {
+        final Resolution r = resolutions[resolution];
+        final int index = Math.floorMod(r.head - 1 - age, r.starts.length);
+        return r.sums[index] / r.counts[index];
+    }
+
+    private void close(final int resolution) {
+        final Resolution r = resolutions[resolution];
+        final int index = r.head;
+        r.starts[index] = r.start;
+        r.mins[index] = r.min;
+        r.maxs[index] = r.max;
+        r.sums[index] = r.sum;
+        r.counts[index] = r.count;
+        r.head = (r.head + 1) % r.starts.length;
+        r.size = Math.min(r.size + 1, r.starts.length);
+        r.count = 0;
+        sink.bucketClosed(this, resolution, r.start, r.min, r.max, r.sum / r.counts[index], r.counts[index]);
+    }
+
+    private static final class Resolution {
+        final long width;
+        long start;
+        double min;
+        double max;
+        double sum;
+        long count;
+
+        final long[] starts;
+        final double[] mins;
+        final double[] maxs;
+        final double[] sums;
+        final long[] counts;
+        int head;
+        int size;
+
+        Resolution(final long width, final int retention) {
+            this.width = width;
+            this.starts = new long[retention];
+            this.mins = new double[retention];
+            this.maxs = new double[retention];
+            this.sums = new double[retention];
+            this.counts = new long[retention];
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package home.stats;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.firebase.database.DatabaseReference;
+
+import util.Config;
+import util.FirebaseWriter;
+import util.Threads;
+
+/**
+ * Keeps numeric telemetry in memory and writes each bucket to Firebase once,
+ * when it closes.
+ *
+ * The base resolution is written as the bucket average under
+ * /stats/&lt;metric&gt;/&lt;id&gt;/&lt;bucketMillis&gt;, as before. Rollups are written
+ * as {min, max, avg, count} under /stats/&lt;rollup&gt;/&lt;metric&gt;/&lt;id&gt;/&lt;bucketMillis&gt;.
+ */
+public class TimeSeriesAggregator implements Closeable {
+    private static final Logger LOG = Logger.getLogger(TimeSeriesAggregator.class.getName());
+
+    private static TimeSeriesAggregator instance;
+
+    private final String[] names;
+    private final long[] widthsMillis;
+    private final int retention;
+    private final Map<String, TimeSeries> series = new ConcurrentHashMap<>();
+    private final Map<TimeSeries, DatabaseReference> targets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong bucketsWritten = new AtomicLong();
+
+    /**
+     * @param names name of each resolution, the first one being the base resolution
+     * @param widthsMillis bucket width of each resolution
+     * @param retention closed buckets kept in memory per resolution
+     * @param tickMillis how often expired buckets are closed, 0 to only close on new samples
+     */
+    public TimeSeriesAggregator(final String[] names, final long[] widthsMillis, final int retention,
+            final long tickMillis) {
+        this.names = names;
+        this.widthsMillis = widthsMillis;
+        this.retention = retention;
+        if (tickMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("stats"));
+            scheduler.scheduleWithFixedDelay(() -> closeExpired(System.currentTimeMillis()), tickMillis, tickMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * The shared aggregator. The base bucket is statsBucketMinutes wide (default
+     * 15), rollups are configured by statsRollups as name:minutes pairs (default
+     * hourly:60,daily:1440) and statsRetentionBuckets (default 96) closed buckets
+     * are kept per resolution.
+     */
+    public static synchronized TimeSeriesAggregator getInstance() {
+        if (instance == null) {
+            final String[] rollups = Config.getString("statsRollups", "hourly:60,daily:1440").split(",");
+            final String[] names = new String[rollups.length + 1];
+            final long[] widths = new long[rollups.length + 1];
+            widths[0] = TimeUnit.MINUTES.toMillis(Config.getLong("statsBucketMinutes", 15));
+            for (int i = 0; i < rollups.length; i++) {
+                final String[] rollup = rollups[i].trim().split(":");
+                names[i + 1] = rollup[0];
+                widths[i + 1] = TimeUnit.MINUTES.toMillis(Long.parseLong(rollup[1]));
+            }
+            instance = new TimeSeriesAggregator(names, widths, Config.getInt("statsRetentionBuckets", 96),
+                    TimeUnit.MINUTES.toMillis(1));
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the series of a metric, for example wifiSignal, of one device.
+     *
+     * @param stats the /stats node the buckets are written to
+     */
+    public TimeSeries series(final DatabaseReference stats, final String metric, final String seriesId) {
+        return series.computeIfAbsent(stats.getPath() + "/" + metric + "/" + seriesId, key -> {
+            final TimeSeries created = new TimeSeries(metric, seriesId, widthsMillis, retention, this::write);
+            targets.put(created, stats);
+            return created;
+        });
+    }
+
+    public void closeExpired(final long timeMillis) {
+        try {
+            series.values().forEach(s -> s.closeExpired(timeMillis));
+        } catch (Exception e) {
+            LOG.warning("Could not close expired stats buckets: " + e);
+        }
+    }
+
+    public long getBucketsWritten() {
+        return bucketsWritten.get();
+    }
+
+    public int getSeriesCount() {
+        return series.size();
+    }
+
+    private void write(final TimeSeries s, final int resolution, final long start, final double min,
+            final double max, final double avg, final long count) {
+        final DatabaseReference stats = targets.get(s);
+        if (resolution == 0) {
+            FirebaseWriter.getInstance().set(
+                    stats.child(s.getMetric()).child(s.getSeriesId()).child(String.valueOf(start)), avg);
+        } else {
+            final Map<String, Object> bucket = new HashMap<>(8);
+            bucket.put("min", min);
+            bucket.put("max", max);
+            bucket.put("avg", avg);
+            bucket.put("count", count);
+            FirebaseWriter.getInstance().set(stats.child(names[resolution]).child(s.getMetric())
+                    .child(s.getSeriesId()).child(String.valueOf(start)), bucket);
+        }
+        bucketsWritten.incrementAndGet();
+    }
+
+    /**
+     * Writes the buckets that are still open so a restart does not lose them.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        series.values().forEach(TimeSeries::flushOpen);
+        LOG.info("Stats: " + series.size() + " series, " + bucketsWritten.get() + " buckets written");
+    }
+}
@@ -0,0 +1,40 @@
+package util;
+
+/**
+ * Configuration lookup. Values are read from the environment first and from
+ * system properties second, so tests can override them with -D flags.
+ */
+public final class Config {
+
+    private Config() {
+    }
+
+    public static String getString(final String name, final String defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            value = System.getProperty(name);
+        }
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    public static int getInt(final String name, final int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    public static long getLong(final String name, final long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Configuration value " + name + " is not a number: " + value, e);
+        }
+    }
+
+    public static boolean getBoolean(final String name, final boolean defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -1,52 +1,104 @@
 package util;
 
+import java.util.Collections;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
 
 public class Firebase {
     private static final Logger LOG = Logger.getLogger(Firebase.class.getName());
 
+    private static final long READ_TIMEOUT_MILLIS = Config.getLong("firebaseReadTimeoutMillis", 30_000);
+
+    private static final ScheduledExecutorService TIMEOUTS =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("firebase-timeout"));
+
+    /**
+     * A database that never connects. The root is seeded locally, so reads and
+     * listeners are answered from the local cache and nothing written to it
+     * leaves the process. For replays, which must not touch the real database.
+     */
+    public static FirebaseDatabase createOffline() {
+        FirebaseOptions options = new FirebaseOptions.Builder()
+                .setCredentials(GoogleCredentials.create(new AccessToken("offline", new Date(Long.MAX_VALUE))))
+                .setDatabaseUrl("https://offline.firebaseio.com")
+                .build();
+        FirebaseDatabase database = FirebaseDatabase.getInstance(
+                FirebaseApp.initializeApp(options, "offline-" + UUID.randomUUID()));
+        database.goOffline();
+        database.getReference().setValueAsync(Collections.singletonMap("offline", true));
+        return database;
+    }
+
+    /**
+     * Reads the value at ref, blocking until it arrives. Call it from
+     * {@link Threads#blockingExecutor()} rather than from an event thread.
+     *
+     * @return the snapshot, or null if there is no value or it could not be read.
+     */
     public static DataSnapshot readObject(DatabaseReference ref) {
-        final Object sync = new Object();
+        try {
+            DataSnapshot snapshot = readAsync(ref).get();
+            return snapshot.exists() ? snapshot : null;
+        } catch (Exception e) {
+            LOG.warning("Could not read " + ref.getPath() + ": " + e.getMessage());
+            return null;
+        }
+    }
 
-        DataSnapshot[] retval = new DataSnapshot[1];
+    /**
+     * Reads the value at ref without blocking, failing after firebaseReadTimeoutMillis.
+     */
+    public static CompletableFuture<DataSnapshot> readAsync(DatabaseReference ref) {
+        return readAsync(ref, READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
-        ref.addListenerForSingleValueEvent(new ValueEventListener() {
+    /**
+     * Reads the value at ref without blocking. The future completes with the
+     * snapshot, which does not exist if there is no value, or fails with a
+     * {@link TimeoutException} or the database error.
+     */
+    public static CompletableFuture<DataSnapshot> readAsync(DatabaseReference ref, long timeout, TimeUnit unit) {
+        final CompletableFuture<DataSnapshot> result = new CompletableFuture<>();
 
+        final ValueEventListener listener = new ValueEventListener() {
             @Override
             public void onDataChange(DataSnapshot snapshot) {
-                try {
-                    LOG.fine("Data retrieved for " + ref.getPath() + ": " + snapshot);
-                    if (!snapshot.getValue().equals("null")) {
-                        retval[0] = snapshot;
-                    }
-                } catch (Exception e) {
-                } finally {
-                    synchronized (sync) {
-                        sync.notifyAll();
-                    }
-                }
+                LOG.fine("Data retrieved for " + ref.getPath() + ": " + snapshot);
+                result.complete(snapshot);
             }
 
             @Override
             public void onCancelled(DatabaseError error) {
                 LOG.warning("Could not read data: " + error.getMessage());
-                synchronized (sync) {
-                    sync.notifyAll();
-                }
+                result.completeExceptionally(error.toException());
             }
-        });
-        synchronized (sync) {
-            try {
-                sync.wait();
-            } catch (Exception e) {
+        };
+
+        final ScheduledFuture<?> timer = TIMEOUTS.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException("Timeout reading " + ref.getPath()))) {
+                ref.removeEventListener(listener);
             }
-        }
+        }, timeout, unit);
+        result.whenComplete((snapshot, error) -> timer.cancel(false));
 
-        return retval[0];
+        ref.addListenerForSingleValueEvent(listener);
+        return result;
     }
-}
\ No newline at end of file
+}
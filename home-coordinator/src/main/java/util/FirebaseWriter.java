@@ -0,0 +1,240 @@
+package util;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.core.ApiFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
+
+/**
+ * Write-behind buffer for Firebase values.
+ *
+ * Values are collected per path and sent as one multi-path update per flush
+ * window. A path written several times within a window is only sent once,
+ * with the last value. Setting null removes the value at the path.
+ */
+public class FirebaseWriter implements Closeable {
+    private static final Logger LOG = Logger.getLogger(FirebaseWriter.class.getName());
+
+    private static FirebaseWriter instance;
+
+    /**
+     * Stands in for a null value, which the pending values cannot hold.
+     */
+    private static final Object REMOVE = new Object();
+
+    /**
+     * Observes the values of every flush as they are sent.
+     */
+    @FunctionalInterface
+    public interface FlushListener {
+        void flushed(Map<String, Object> values);
+    }
+
+    private static final Histogram FLUSH_LATENCY = MetricsRegistry.getInstance().histogram("firebase_flush_nanos");
+    private static final Histogram FLUSH_SIZE = MetricsRegistry.getInstance().histogram("firebase_flush_size");
+
+    private final Map<FirebaseDatabase, Batch> batches = new ConcurrentHashMap<>(4);
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong writesRequested = new AtomicLong();
+    private final AtomicLong writesFlushed = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong lastFlushSize = new AtomicLong();
+    private final AtomicLong flushesCompleted = new AtomicLong();
+    private final AtomicLong totalFlushLatencyNanos = new AtomicLong();
+    private final AtomicLong maxFlushLatencyNanos = new AtomicLong();
+    private volatile FlushListener flushListener;
+
+    public FirebaseWriter(final long windowMillis) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("firebase-writer"));
+        scheduler.scheduleWithFixedDelay(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The shared writer, flushing every firebaseWriteWindowMillis (default 200).
+     */
+    public static synchronized FirebaseWriter getInstance() {
+        if (instance == null) {
+            instance = new FirebaseWriter(Config.getLong("firebaseWriteWindowMillis", 200));
+            final MetricsRegistry metrics = MetricsRegistry.getInstance();
+            metrics.gauge("firebase_write_queue_depth", instance::getQueueDepth);
+            metrics.gauge("firebase_writes_requested_total", instance::getWritesRequested);
+            metrics.gauge("firebase_writes_flushed_total", instance::getWritesFlushed);
+        }
+        return instance;
+    }
+
+    public void set(final DatabaseReference ref, final Object value) {
+        batches.computeIfAbsent(ref.getDatabase(), database -> new Batch(database.getReference()))
+                .values.put(ref.getPath().toString(), value == null ? REMOVE : value);
+        writesRequested.incrementAndGet();
+    }
+
+    /**
+     * Sets a listener that is called with the paths and values of every flush.
+     */
+    public void setFlushListener(final FlushListener listener) {
+        this.flushListener = listener;
+    }
+
+    public void flush() {
+        try {
+            batches.values().forEach(this::flush);
+        } catch (Exception e) {
+            LOG.warning("Could not flush firebase writes: " + e);
+        }
+    }
+
+    private void flush(final Batch batch) {
+        if (batch.values.isEmpty()) {
+            return;
+        }
+        final Map<String, Object> update = new HashMap<>(batch.values.size() * 2);
+        final Iterator<String> paths = batch.values.keySet().iterator();
+        while (paths.hasNext()) {
+            final String path = paths.next();
+            final Object value = batch.values.remove(path);
+            if (value != null) {
+                update.put(path, value == REMOVE ? null : value);
+            }
+        }
+        if (update.isEmpty()) {
+            return;
+        }
+
+        flushCount.incrementAndGet();
+        lastFlushSize.set(update.size());
+        FLUSH_SIZE.record(update.size());
+        writesFlushed.addAndGet(update.size());
+        if (LOG.isLoggable(Level.FINER)) {
+            LOG.finer("Flush " + update.size() + " firebase writes");
+        }
+
+        final long start = System.nanoTime();
+        ApiFuture<Void> future;
+        try {
+            future = batch.root.updateChildrenAsync(update);
+        } catch (Exception e) {
+            // Overlapping paths cannot be combined in one update
+            LOG.fine("Multi-path update rejected, writing paths one by one: " + e.getMessage());
+            // Parents sort before their children, so a parent does not overwrite a newer child
+            new TreeMap<>(update).forEach((path, value) ->
+                    logFailure(batch.root.child(path).setValueAsync(value), path));
+            notifyFlushed(update);
+            return;
+        }
+        notifyFlushed(update);
+        logFailure(future, update.size() + " paths");
+        future.addListener(() -> {
+            final long latency = System.nanoTime() - start;
+            FLUSH_LATENCY.record(latency);
+            flushesCompleted.incrementAndGet();
+            totalFlushLatencyNanos.addAndGet(latency);
+            long max = maxFlushLatencyNanos.get();
+            while (latency > max && !maxFlushLatencyNanos.compareAndSet(max, latency)) {
+                max = maxFlushLatencyNanos.get();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private static void logFailure(final ApiFuture<Void> future, final String what) {
+        future.addListener(() -> {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                LOG.warning("Could not write " + what + " to firebase: " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void notifyFlushed(final Map<String, Object> update) {
+        final FlushListener listener = flushListener;
+        if (listener != null) {
+            listener.flushed(update);
+        }
+    }
+
+    public int getQueueDepth() {
+        return batches.values().stream().mapToInt(b -> b.values.size()).sum();
+    }
+
+    public long getWritesRequested() {
+        return writesRequested.get();
+    }
+
+    public long getWritesFlushed() {
+        return writesFlushed.get();
+    }
+
+    public long getWritesSaved() {
+        return writesRequested.get() - writesFlushed.get() - getQueueDepth();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public long getLastFlushSize() {
+        return lastFlushSize.get();
+    }
+
+    public long getAverageFlushLatencyNanos() {
+        final long completed = flushesCompleted.get();
+        return completed == 0 ? 0 : totalFlushLatencyNanos.get() / completed;
+    }
+
+    public long getMaxFlushLatencyNanos() {
+        return maxFlushLatencyNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Firebase writer: requested=%d flushed=%d saved=%d flushes=%d lastFlushSize=%d avgFlushLatency=%dms maxFlushLatency=%dms",
+                getWritesRequested(), getWritesFlushed(), getWritesSaved(), getFlushCount(), getLastFlushSize(),
+                TimeUnit.NANOSECONDS.toMillis(getAverageFlushLatencyNanos()),
+                TimeUnit.NANOSECONDS.toMillis(getMaxFlushLatencyNanos()));
+    }
+
+    /**
+     * Stops the flush timer and sends whatever is still pending.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        LOG.info(toString());
+    }
+
+    private static final class Batch {
+        final DatabaseReference root;
+        final Map<String, Object> values = new ConcurrentHashMap<>(256);
+
+        Batch(final DatabaseReference root) {
+            this.root = root;
+        }
+    }
+}
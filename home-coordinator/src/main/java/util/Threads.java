@@ -0,0 +1,70 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+public final class Threads {
+    private static final Logger LOG = Logger.getLogger(Threads.class.getName());
+
+    private static ExecutorService virtualThreads;
+
+    private Threads() {
+    }
+
+    /**
+     * Whether blocking work runs on virtual threads. Set executionMode to
+     * virtual to enable it on a JVM that supports them, the default is platform.
+     */
+    public static boolean useVirtualThreads() {
+        return "virtual".equalsIgnoreCase(Config.getString("executionMode", "platform"))
+                && virtualThreadExecutor() != null;
+    }
+
+    /**
+     * The executor for work that may block, such as Firebase reads and device
+     * creation. In the virtual execution mode every task gets a virtual thread,
+     * otherwise tasks run directly on the thread that completes them.
+     */
+    public static Executor blockingExecutor() {
+        return useVirtualThreads() ? virtualThreadExecutor() : Runnable::run;
+    }
+
+    private static synchronized ExecutorService virtualThreadExecutor() {
+        if (virtualThreads == null) {
+            virtualThreads = newVirtualThreadExecutor();
+        }
+        return virtualThreads;
+    }
+
+    public static ThreadFactory daemonFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public static ExecutorService newFixedPool(final String name, final int threads) {
+        return Executors.newFixedThreadPool(threads, daemonFactory(name));
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread per task, or returns null
+     * when the running JVM does not support virtual threads.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.fine("Virtual threads are not available: " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package util;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import util.metrics.Histogram;
+
+/**
+ * Hierarchical timing wheel for large numbers of timers.
+ *
+ * The first wheel has wheelSize buckets of one tick each. Every further wheel
+ * has buckets as long as the whole wheel below it, and is only created once a
+ * timer is due beyond the wheels that exist. A timer is kept in a linked
+ * bucket, so adding and cancelling it take constant time. Each tick expires
+ * one bucket of the first wheel; whenever a higher wheel reaches its next
+ * bucket, the timers in it move down to the wheels below.
+ *
+ * Timers never fire early and at most about a tick late. The actual delay
+ * past the deadline is recorded as lag.
+ */
+public final class TimingWheel implements Closeable {
+    private static final Logger LOG = Logger.getLogger(TimingWheel.class.getName());
+
+    /**
+     * A scheduled task.
+     */
+    public final class Timeout {
+        final long deadline;
+        final Runnable task;
+        Bucket bucket;
+        Timeout previous;
+        Timeout next;
+
+        Timeout(final long deadline, final Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public long getDeadlineMillis() {
+            return deadline;
+        }
+
+        /**
+         * @return false if the task already ran or was cancelled
+         */
+        public boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (bucket == null) {
+                    return false;
+                }
+                bucket.remove(this);
+                size--;
+                return true;
+            }
+        }
+
+        public boolean isPending() {
+            synchronized (TimingWheel.this) {
+                return bucket != null;
+            }
+        }
+    }
+
+    static final class Bucket {
+        Timeout head;
+
+        void add(final Timeout timeout) {
+            timeout.bucket = this;
+            timeout.previous = null;
+            timeout.next = head;
+            if (head != null) {
+                head.previous = timeout;
+            }
+            head = timeout;
+        }
+
+        void remove(final Timeout timeout) {
+            if (timeout.previous == null) {
+                head = timeout.next;
+            } else {
+                timeout.previous.next = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.bucket = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+
+        /**
+         * Empties the bucket, returning its first timeout.
+         */
+        Timeout drain() {
+            final Timeout first = head;
+            head = null;
+            return first;
+        }
+    }
+
+    private static final class Wheel {
+        final long tick;
+        final long interval;
+        final Bucket[] buckets;
+        long currentTime;
+
+        Wheel(final long tick, final int size, final long currentTime) {
+            this.tick = tick;
+            this.interval = tick * size;
+            this.buckets = new Bucket[size];
+            for (int i = 0; i < size; i++) {
+                buckets[i] = new Bucket();
+            }
+            this.currentTime = currentTime - currentTime % tick;
+        }
+
+        Bucket bucket(final long time) {
+            return buckets[(int) ((time / tick) % buckets.length)];
+        }
+    }
+
+    private final long tickMillis;
+    private final int wheelSize;
+    private final LongSupplier clock;
+    private final Histogram lag;
+    private final List<Wheel> wheels = new ArrayList<>();
+    private int size;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param clock the current time in millis
+     * @param lag   records how late timers fire, in nanos
+     */
+    public TimingWheel(final long tickMillis, final int wheelSize, final LongSupplier clock, final Histogram lag) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.clock = clock;
+        this.lag = lag;
+        wheels.add(new Wheel(tickMillis, wheelSize, clock.getAsLong()));
+    }
+
+    /**
+     * Runs the task once the clock reaches the deadline. Tasks that are due
+     * already run on the calling thread.
+     */
+    public Timeout schedule(final long deadlineMillis, final Runnable task) {
+        final Timeout timeout = new Timeout(deadlineMillis, task);
+        final boolean due;
+        synchronized (this) {
+            due = !add(timeout);
+            if (!due) {
+                size++;
+            }
+        }
+        if (due) {
+            run(timeout);
+        }
+        return timeout;
+    }
+
+    public Timeout schedule(final long delay, final TimeUnit unit, final Runnable task) {
+        return schedule(clock.getAsLong() + unit.toMillis(delay), task);
+    }
+
+    /**
+     * Puts the timeout in the lowest wheel whose range covers its deadline.
+     *
+     * @return false if the deadline has passed
+     */
+    private boolean add(final Timeout timeout) {
+        if (timeout.deadline < wheels.get(0).currentTime) {
+            return false;
+        }
+        for (int level = 0;; level++) {
+            if (level == wheels.size()) {
+                final Wheel top = wheels.get(level - 1);
+                wheels.add(new Wheel(top.interval, wheelSize, wheels.get(0).currentTime));
+            }
+            final Wheel wheel = wheels.get(level);
+            if (timeout.deadline < wheel.currentTime + wheel.interval) {
+                wheel.bucket(timeout.deadline).add(timeout);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Expires the timers due up to now and returns them.
+     */
+    private synchronized List<Timeout> expire(final long now) {
+        final List<Timeout> expired = new ArrayList<>();
+        final Wheel first = wheels.get(0);
+        final Bucket[] reached = new Bucket[wheels.size()];
+        while (first.currentTime + first.tick <= now) {
+            reached[0] = first.bucket(first.currentTime);
+            first.currentTime += first.tick;
+            // All wheels move before any timer is placed again, so none lands
+            // in a bucket that is being emptied
+            for (int level = 1; level < wheels.size(); level++) {
+                final Wheel wheel = wheels.get(level);
+                final long time = first.currentTime - first.currentTime % wheel.tick;
+                reached[level] = time == wheel.currentTime ? null : wheel.bucket(time);
+                wheel.currentTime = time;
+            }
+            // Higher wheels hand the timers of their next bucket down first
+            for (int level = reached.length - 1; level >= 0; level--) {
+                if (reached[level] != null) {
+                    redistribute(reached[level], expired);
+                }
+            }
+        }
+        return expired;
+    }
+
+    private void redistribute(final Bucket bucket, final List<Timeout> expired) {
+        Timeout timeout = bucket.drain();
+        while (timeout != null) {
+            final Timeout next = timeout.next;
+            timeout.bucket = null;
+            timeout.previous = null;
+            timeout.next = null;
+            if (!add(timeout)) {
+                size--;
+                expired.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Runs the timers due at the given time. Used by the wheel's own thread,
+     * or directly by tests with a manual clock.
+     */
+    public void advance(final long now) {
+        for (Timeout timeout : expire(now)) {
+            run(timeout);
+        }
+    }
+
+    private void run(final Timeout timeout) {
+        lag.record(TimeUnit.MILLISECONDS.toNanos(Math.max(0, clock.getAsLong() - timeout.deadline)));
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            LOG.warning("Timer task failed: " + e);
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Starts a thread that advances the wheel every tick.
+     */
+    public synchronized void start(final ThreadFactory threads) {
+        running = true;
+        thread = threads.newThread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(tickMillis);
+                    advance(clock.getAsLong());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        thread.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+}
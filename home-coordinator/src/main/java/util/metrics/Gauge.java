@@ -0,0 +1,9 @@
+package util.metrics;
+
+/**
+ * Value that is read when the metrics are reported.
+ */
+@FunctionalInterface
+public interface Gauge {
+    long get();
+}
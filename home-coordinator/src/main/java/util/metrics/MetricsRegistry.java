@@ -0,0 +1,170 @@
+package util.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * Named counters, gauges and histograms of the coordinator.
+ *
+ * Names follow the Prometheus text format and may carry labels, for example
+ * mqtt_messages_total{route="stat/+/RESULT"}. Look metrics up once and keep
+ * the reference; updating them does not allocate.
+ */
+public final class MetricsRegistry {
+    private static final Logger LOG = Logger.getLogger(MetricsRegistry.class.getName());
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private static MetricsRegistry instance;
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+    MetricsRegistry() {
+    }
+
+    public static synchronized MetricsRegistry getInstance() {
+        if (instance == null) {
+            instance = new MetricsRegistry();
+        }
+        return instance;
+    }
+
+    public Counter counter(final String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public Histogram histogram(final String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Counters that share a name and differ in the value of one label.
+     */
+    public CounterFamily counterFamily(final String name, final String label) {
+        return new CounterFamily(this, name, label);
+    }
+
+    /**
+     * Histograms that share a name and differ in the value of one label.
+     */
+    public HistogramFamily histogramFamily(final String name, final String label) {
+        return new HistogramFamily(this, name, label);
+    }
+
+    /**
+     * Registers a gauge, replacing an earlier gauge of the same name.
+     */
+    public void gauge(final String name, final Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Current value of every metric, histograms expanded to count, sum, max and
+     * percentiles.
+     */
+    public Map<String, Long> snapshot() {
+        final Map<String, Long> values = new LinkedHashMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.get()));
+        gauges.forEach((name, gauge) -> {
+            try {
+                values.put(name, gauge.get());
+            } catch (RuntimeException e) {
+                LOG.fine("Could not read gauge " + name + ": " + e);
+            }
+        });
+        histograms.forEach((name, histogram) -> {
+            values.put(name + "_count", histogram.getCount());
+            values.put(name + "_sum", histogram.getSum());
+            values.put(name + "_max", histogram.getMax());
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                values.put(withLabel(name, "quantile", QUANTILES[i]), histogram.getValueAtPercentile(PERCENTILES[i]));
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     */
+    public void writeText(final Writer writer) throws IOException {
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            writer.write(entry.getKey());
+            writer.write(' ');
+            writer.write(Long.toString(entry.getValue()));
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Makes the metrics available as attributes of home.coordinator:type=Metrics.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this),
+                    new ObjectName("home.coordinator:type=Metrics"));
+        } catch (Exception e) {
+            LOG.warning("Could not register metrics MBean: " + e);
+        }
+    }
+
+    private static String withLabel(final String name, final String label, final String value) {
+        final String pair = label + "=\"" + value + "\"";
+        final int labels = name.indexOf('{');
+        if (labels < 0) {
+            return name + "{" + pair + "}";
+        }
+        return name.substring(0, labels + 1) + pair + "," + name.substring(labels + 1);
+    }
+
+    /**
+     * Counters for label values that are not known up front, such as device topics.
+     */
+    public static final class CounterFamily {
+        private final MetricsRegistry registry;
+        private final String name;
+        private final String label;
+        private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+        CounterFamily(final MetricsRegistry registry, final String name, final String label) {
+            this.registry = registry;
+            this.name = name;
+            this.label = label;
+        }
+
+        public Counter get(final String key) {
+            return counters.computeIfAbsent(key, k -> registry.counter(withLabel(name, label, k)));
+        }
+    }
+
+    /**
+     * Histograms for label values that are not known up front, such as ports.
+     */
+    public static final class HistogramFamily {
+        private final MetricsRegistry registry;
+        private final String name;
+        private final String label;
+        private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+        HistogramFamily(final MetricsRegistry registry, final String name, final String label) {
+            this.registry = registry;
+            this.name = name;
+            this.label = label;
+        }
+
+        public Histogram get(final String key) {
+            return histograms.computeIfAbsent(key, k -> registry.histogram(withLabel(name, label, k)));
+        }
+    }
+}
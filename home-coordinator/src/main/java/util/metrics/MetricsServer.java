@@ -0,0 +1,71 @@
+package util.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import util.Config;
+import util.Threads;
+
+/**
+ * Serves the metrics of a registry as text on /metrics.
+ */
+public final class MetricsServer implements Closeable {
+    private static final Logger LOG = Logger.getLogger(MetricsServer.class.getName());
+
+    private final HttpServer server;
+    private final ExecutorService executor = Threads.newFixedPool("metrics-http", 1);
+
+    public MetricsServer(final MetricsRegistry registry, final InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                try (Writer writer = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)) {
+                    registry.writeText(writer);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        LOG.info("Metrics available on http://" + address.getHostString() + ":" + getPort() + "/metrics");
+    }
+
+    /**
+     * Starts a server on metricsAddress (default 127.0.0.1) and metricsPort
+     * (default 9405), or returns null if metricsPort is negative.
+     */
+    public static MetricsServer start(final MetricsRegistry registry) {
+        final int port = Config.getInt("metricsPort", 9405);
+        if (port < 0) {
+            return null;
+        }
+        try {
+            return new MetricsServer(registry,
+                    new InetSocketAddress(Config.getString("metricsAddress", "127.0.0.1"), port));
+        } catch (IOException e) {
+            LOG.warning("Could not start metrics server on port " + port + ": " + e);
+            return null;
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+}
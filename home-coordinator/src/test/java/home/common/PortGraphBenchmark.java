@@ -0,0 +1,74 @@
+package home.common;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Port.setPower on a synthetic graph: the ports are split in layers and each
+ * port listens to one port of the layer above, so the root reaches all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PortGraphBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    @Param({"1", "4", "16"})
+    public int depth;
+
+    private Port root;
+    private Blackhole blackhole;
+    private boolean on;
+
+    private class BenchmarkPort extends Port {
+        @Override
+        protected void applyPower(final Power p) {
+            blackhole.consume(p);
+        }
+    }
+
+    @Setup
+    public void setUp(final Blackhole bh) {
+        blackhole = bh;
+        root = new BenchmarkPort();
+        final Map<Port, Collection<Port>> wiring = new HashMap<>();
+        Port[] above = {root};
+        final int perLayer = Math.max(1, size / depth);
+        for (int layer = 0; layer < depth; layer++) {
+            final Port[] ports = new Port[perLayer];
+            for (int i = 0; i < perLayer; i++) {
+                ports[i] = new BenchmarkPort();
+                wiring.put(ports[i], Collections.singleton(above[i % above.length]));
+            }
+            above = ports;
+        }
+        PortGraph.setSources(wiring);
+    }
+
+    @Benchmark
+    public void setPower() throws Exception {
+        on = !on;
+        root.setPower(on ? Power.ON : Power.OFF);
+    }
+}
@@ -0,0 +1,96 @@
+package home.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PortGraphTest {
+    private final List<String> applied = new ArrayList<>();
+
+    private class TestPort extends Port {
+        TestPort(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        protected void applyPower(final Power p) {
+            applied.add(name + "=" + p);
+        }
+    }
+
+    @Test
+    public void visitsEachPortOnceThroughCycles() throws Exception {
+        TestPort unit = new TestPort("unit");
+        TestPort a = new TestPort("a");
+        TestPort b = new TestPort("b");
+        // Two way link, as used by control units
+        unit.setSources(new HashSet<>(Arrays.asList(a, b)));
+        a.setSources(new HashSet<>(Arrays.asList(unit)));
+        b.setSources(new HashSet<>(Arrays.asList(unit)));
+        assertTrue(PortGraph.isOnCycle(unit));
+
+        a.setPower(Power.ON);
+        assertEquals(Arrays.asList("a=ON", "unit=ON", "b=ON"), applied);
+
+        applied.clear();
+        b.propagatePower(Power.OFF);
+        assertEquals(Arrays.asList("unit=OFF", "a=OFF"), applied);
+    }
+
+    @Test
+    public void visitsDiamondOnceInStableOrder() throws Exception {
+        TestPort root = new TestPort("root");
+        TestPort left = new TestPort("left");
+        TestPort right = new TestPort("right");
+        TestPort sink = new TestPort("sink");
+        right.setSources(new HashSet<>(Arrays.asList(root)));
+        left.setSources(new HashSet<>(Arrays.asList(root)));
+        sink.setSources(new HashSet<>(Arrays.asList(left, right)));
+
+        root.setPower(Power.TOGGLE);
+        assertEquals(Arrays.asList("root=TOGGLE", "left=TOGGLE", "sink=TOGGLE", "right=TOGGLE"), applied);
+    }
+
+    @Test
+    public void rewiringRemovesOldListeners() throws Exception {
+        TestPort source = new TestPort("source");
+        TestPort other = new TestPort("other");
+        TestPort target = new TestPort("target");
+        target.setSources(new HashSet<>(Arrays.asList(source)));
+        assertTrue(target.hasSource(source));
+
+        target.setSources(new HashSet<>(Arrays.asList(other)));
+        assertFalse(target.hasSource(source));
+
+        source.setPower(Power.ON);
+        assertEquals(Arrays.asList("source=ON"), applied);
+    }
+
+    @Test
+    public void unregisteredPortsLeaveTheGraph() throws Exception {
+        TestPort unit = new TestPort("unit");
+        TestPort a = new TestPort("a");
+        TestPort b = new TestPort("b");
+        unit.setSources(new HashSet<>(Arrays.asList(a, b)));
+        a.setSources(new HashSet<>(Arrays.asList(unit)));
+        b.setSources(new HashSet<>(Arrays.asList(unit)));
+
+        b.unregister();
+        assertFalse(unit.hasSource(b));
+        assertFalse(b.hasSource(unit));
+        a.setPower(Power.ON);
+        assertEquals(Arrays.asList("a=ON", "unit=ON"), applied);
+
+        // A port that gets the id of b does not get its wiring
+        TestPort c = new TestPort("c");
+        applied.clear();
+        c.setPower(Power.OFF);
+        assertEquals(Arrays.asList("c=OFF"), applied);
+        assertFalse(PortGraph.isOnCycle(c));
+    }
+}
@@ -0,0 +1,84 @@
+package home.controlunit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import home.common.Port;
+import home.common.Power;
+import home.device.DeviceManager;
+
+import static org.junit.Assert.*;
+
+public class ControlUnitManagerTest {
+    private final List<String> applied = new ArrayList<>();
+    private final Map<String, Port> ports = new HashMap<>();
+    private final ControlUnitManager manager = new ControlUnitManager(null, ports::get);
+
+    private class TestPort extends Port {
+        TestPort(final String name) {
+            this.name = name;
+            ports.put(name, this);
+        }
+
+        @Override
+        protected void applyPower(final Power p) {
+            applied.add(name + "=" + p);
+        }
+    }
+
+    private static Map<String, Object> unit(final String name, final String... ports) {
+        final Map<String, Object> definition = new HashMap<>();
+        definition.put("name", name);
+        definition.put("type", "EVENT");
+        definition.put("ports", Arrays.asList(ports));
+        return definition;
+    }
+
+    @Test
+    public void wiresPortsOfAUnitToEachOther() throws Exception {
+        TestPort switchPort = new TestPort("front-door-light-switch/power3");
+        new TestPort("washing-line-relay/power");
+
+        manager.load(Collections.singletonMap("washing-line",
+                unit("Wasgoedlyn", "front-door-light-switch/power3", "washing-line-relay/power", "missing/power")));
+        assertEquals("Wasgoedlyn", manager.getControlUnit("washing-line").name);
+
+        switchPort.setPower(Power.ON);
+        assertEquals(Arrays.asList("front-door-light-switch/power3=ON", "washing-line-relay/power=ON"), applied);
+    }
+
+    @Test
+    public void reloadReplacesTheWiring() throws Exception {
+        TestPort a = new TestPort("a/power");
+        TestPort b = new TestPort("b/power");
+        TestPort c = new TestPort("c/power");
+
+        manager.load(Collections.singletonMap("unit", unit("Unit", "a/power", "b/power")));
+        final ControlUnit unit = manager.getControlUnit("unit");
+        manager.load(Collections.singletonMap("unit", unit("Unit", "a/power", "c/power")));
+        assertSame(unit, manager.getControlUnit("unit"));
+        assertFalse(b.hasSource(unit));
+
+        a.setPower(Power.OFF);
+        assertEquals(Arrays.asList("a/power=OFF", "c/power=OFF"), applied);
+
+        applied.clear();
+        manager.load(Collections.emptyMap());
+        assertTrue(manager.getControlUnits().isEmpty());
+        a.setPower(Power.ON);
+        assertEquals(Arrays.asList("a/power=ON"), applied);
+        assertFalse(c.hasSource(unit));
+    }
+
+    @Test
+    public void doesNotCreateUnknownDevices() {
+        // Creating the device would need a database, which this manager has not
+        assertNull(ControlUnitManager.findDevicePort(new DeviceManager(), "misspelled-relay/power"));
+    }
+}
@@ -0,0 +1,40 @@
+package home.controlunit;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import home.common.Power;
+import home.device.DeviceManager;
+import home.device.Scene;
+
+import static org.junit.Assert.*;
+
+public class SceneManagerTest {
+    private final SceneManager manager = new SceneManager(null, new DeviceManager());
+
+    @Test
+    public void portsTakeThePowerOfTheSceneUnlessTheyNameTheirOwn() {
+        final Map<String, Object> evening = new HashMap<>();
+        evening.put("name", "Evening");
+        evening.put("power", "off");
+        evening.put("ports", Arrays.asList("kitchen-light/power1", "porch-light/power ON", "tv-socket/power"));
+        final Map<String, Object> broken = new HashMap<>();
+        broken.put("power", "DIM");
+        broken.put("ports", Arrays.asList("kitchen-light/power1"));
+        final Map<String, Object> definitions = new HashMap<>();
+        definitions.put("evening", evening);
+        definitions.put("broken", broken);
+
+        manager.load(definitions);
+
+        final Scene scene = manager.getScene("evening");
+        assertEquals("Evening", scene.name);
+        assertEquals(Power.OFF, scene.getMembers().get("KITCHEN-LIGHT/POWER1"));
+        assertEquals(Power.ON, scene.getMembers().get("porch-light/power"));
+        assertEquals(3, scene.getMembers().size());
+        assertNull(manager.getScene("broken"));
+    }
+}
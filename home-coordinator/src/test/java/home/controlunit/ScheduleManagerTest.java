@@ -0,0 +1,119 @@
+package home.controlunit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.firebase.database.DatabaseReference;
+import org.junit.After;
+import org.junit.Test;
+
+import home.common.Port;
+import home.common.Power;
+import util.OfflineFirebase;
+import util.TimingWheel;
+import util.metrics.Histogram;
+
+import static org.junit.Assert.*;
+
+public class ScheduleManagerTest {
+    private final List<String> applied = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, Port> ports = new HashMap<>();
+    private final ControlUnitManager units = new ControlUnitManager(null, ports::get);
+    private final DatabaseReference database = OfflineFirebase.create().getReference("/schedules");
+    private final ScheduleManager schedules = new ScheduleManager(database, target -> target.startsWith("controlUnits/")
+            ? units.getControlUnit(target.substring("controlUnits/".length())) : ports.get(target),
+            target -> true, new TimingWheel(10, 64, System::currentTimeMillis, new Histogram()));
+
+    private class TestPort extends Port {
+        TestPort(final String name) {
+            this.name = name;
+            ports.put(name, this);
+        }
+
+        @Override
+        protected void applyPower(final Power p) {
+            applied.add(name + "=" + p);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        schedules.close();
+    }
+
+    private void waitFor(final int count) throws InterruptedException {
+        for (int i = 0; i < 300 && applied.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void missedSingleRunsHappenOnce() throws Exception {
+        new TestPort("relay/power");
+
+        final long at = System.currentTimeMillis() - 60_000;
+        schedules.schedule("porch", "relay/power", Power.ON, at, 0);
+        waitFor(1);
+        assertEquals(Collections.singletonList("relay/power=ON"), applied);
+        assertFalse(schedules.isPending("porch"));
+
+        // A snapshot from before the run does not run it again
+        final Map<String, Object> stale = new HashMap<>();
+        stale.put("target", "relay/power");
+        stale.put("power", "ON");
+        stale.put("at", at);
+        schedules.load(Collections.singletonMap("porch", stale));
+        Thread.sleep(100);
+        assertEquals(1, applied.size());
+        assertNull(OfflineFirebase.read(database.child("porch")));
+    }
+
+    @Test
+    public void recurringSchedulesSkipMissedRuns() throws Exception {
+        new TestPort("relay/power");
+        final Map<String, Object> definition = new HashMap<>();
+        definition.put("target", "relay/power");
+        definition.put("power", "OFF");
+        definition.put("at", System.currentTimeMillis() - 10_700);
+        definition.put("everySeconds", 1L);
+        schedules.start();
+        database.child("nightly").setValueAsync(definition);
+
+        Thread.sleep(100);
+        assertTrue(applied.isEmpty());
+        waitFor(1);
+        assertEquals(Collections.singletonList("relay/power=OFF"), applied);
+        assertTrue(schedules.isPending("nightly"));
+    }
+
+    @Test
+    public void timedUnitsSwitchOffAgain() throws Exception {
+        final TestPort button = new TestPort("button/power");
+        new TestPort("light/power");
+        units.setScheduleManager(schedules);
+        final Map<String, Object> unit = new HashMap<>();
+        unit.put("type", "TIMED");
+        unit.put("durationSeconds", 1L);
+        unit.put("ports", Arrays.asList("button/power", "light/power"));
+        units.load(Collections.singletonMap("stairs", unit));
+        schedules.start();
+        // The first snapshot of /schedules is empty
+        Thread.sleep(100);
+
+        button.setPower(Power.ON);
+        assertEquals(Arrays.asList("button/power=ON", "light/power=ON"), applied);
+        assertTrue(schedules.isPending("controlUnit-stairs"));
+        waitFor(4);
+        assertEquals(Arrays.asList("button/power=ON", "light/power=ON", "button/power=OFF", "light/power=OFF"),
+                applied);
+        assertFalse(schedules.isPending("controlUnit-stairs"));
+
+        button.setPower(Power.ON);
+        button.setPower(Power.OFF);
+        assertFalse(schedules.isPending("controlUnit-stairs"));
+    }
+}
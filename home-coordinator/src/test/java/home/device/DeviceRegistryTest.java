@@ -0,0 +1,77 @@
+package home.device;
+
+import com.google.firebase.database.DatabaseReference;
+import org.junit.After;
+import org.junit.Test;
+
+import home.mqtt.CommandPublisher;
+import home.mqtt.StubMqttClient;
+import util.OfflineFirebase;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+    private final CommandPublisher commands = new CommandPublisher(new StubMqttClient(), 10, 1000, 100, 32, 1000);
+    private final DatabaseReference database = OfflineFirebase.create().getReference("/devices");
+    private final DeviceRegistry registry = new DeviceRegistry();
+
+    @After
+    public void tearDown() {
+        commands.close();
+    }
+
+    private Device device(final String topic) {
+        return new Device(topic, commands, database, "key-" + topic);
+    }
+
+    @Test
+    public void findsDevicesInAnyCase() {
+        final Device kitchen = registry.register(device("Kitchen-Light"));
+        final Device turkish = registry.register(device("ışık"));
+
+        assertSame(kitchen, registry.get("kitchen-light"));
+        assertSame(kitchen, registry.get("KITCHEN-LIGHT"));
+        assertSame(kitchen, registry.getByKey("key-Kitchen-Light"));
+        assertSame(turkish, registry.get("IŞIK"));
+        assertNull(registry.get("kitchen"));
+    }
+
+    @Test
+    public void keepsTheFirstDeviceOfATopic() {
+        final Device first = registry.register(device("porch"));
+        assertSame(first, registry.register(device("PORCH")));
+        assertEquals(1, registry.size());
+
+        assertTrue(registry.remove(first));
+        assertFalse(registry.remove(first));
+        assertNull(registry.get("porch"));
+        assertNull(registry.getByKey("key-porch"));
+    }
+
+    @Test
+    public void growsAndShrinks() {
+        for (int i = 0; i < 500; i++) {
+            registry.register(device("device-" + i));
+        }
+        for (int i = 0; i < 500; i += 2) {
+            registry.remove(registry.get("DEVICE-" + i));
+        }
+        assertEquals(250, registry.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals("device-" + i, i % 2 == 0, registry.get("Device-" + i) == null);
+        }
+    }
+
+    @Test
+    public void indexesPortsByDevice() {
+        final Device device = registry.register(device("sonoff"));
+        final IOPort second = device.getPort("power2");
+        final IOPort first = device.getPort("POWER1");
+
+        assertSame(second, registry.getPort("SONOFF", "Power2"));
+        assertSame(first, device.getPort("power1"));
+        assertNull(registry.getPort("sonoff", "POWER3"));
+        assertNull(registry.getPort("other", "POWER1"));
+        assertEquals("[POWER1, POWER2]", device.toSnapshotEntry().ports.keySet().toString());
+    }
+}
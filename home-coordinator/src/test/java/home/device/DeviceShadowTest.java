@@ -0,0 +1,60 @@
+package home.device;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.firebase.database.DatabaseReference;
+import org.junit.Test;
+
+import home.common.State;
+import util.OfflineFirebase;
+
+import static org.junit.Assert.*;
+
+public class DeviceShadowTest {
+    private final DatabaseReference devices = OfflineFirebase.create().getReference("/devices");
+    private final DeviceShadow shadow = DeviceShadow.of(devices);
+
+    @Test
+    public void sendsOnlyChangedValues() throws Exception {
+        shadow.loaded().get(5, TimeUnit.SECONDS);
+        final DatabaseReference state = devices.child("list").child("a").child("ports").child("POWER1").child("state");
+        assertTrue(shadow.set(state, State.ON));
+        assertFalse(shadow.set(state, "ON"));
+        assertTrue(shadow.set(state, State.OFF));
+
+        final DatabaseReference signal = devices.child("list").child("a").child("wifi").child("signal");
+        assertTrue(shadow.set(signal, -60));
+        assertFalse(shadow.set(signal, -60L));
+    }
+
+    @Test
+    public void comparesMapsLeafByLeaf() throws Exception {
+        shadow.loaded().get(5, TimeUnit.SECONDS);
+        final DatabaseReference config = devices.child("list").child("a").child("config");
+        final Map<String, Object> values = new HashMap<>();
+        values.put("SetOption13", "ON");
+        assertTrue(shadow.set(config, values));
+        assertFalse(shadow.set(config, new HashMap<>(values)));
+
+        values.put("Timezone", "+01:00");
+        assertTrue(shadow.set(config, values));
+        assertEquals(values, shadow.getChildren(config));
+        assertEquals(values.keySet(), shadow.getChildKeys(config));
+    }
+
+    @Test
+    public void followsRemoteChanges() throws Exception {
+        devices.child("lookup").child("RELAY").setValueAsync("id-1");
+        devices.child("list").child("id-1").child("topic").setValueAsync("relay");
+        shadow.loaded().get(5, TimeUnit.SECONDS);
+        final DatabaseReference lookup = devices.child("lookup").child("RELAY");
+        for (int i = 0; i < 100 && shadow.get(lookup) == null; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("id-1", shadow.get(lookup));
+        assertEquals("id-1", Device.allocateFirebaseId(devices, "relay").get(5, TimeUnit.SECONDS));
+        assertTrue(shadow.getChildKeys(devices.child("list")).contains("id-1"));
+    }
+}
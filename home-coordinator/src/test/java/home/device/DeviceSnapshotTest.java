@@ -0,0 +1,48 @@
+package home.device;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import home.common.State;
+
+import static org.junit.Assert.*;
+
+public class DeviceSnapshotTest {
+
+    @Test
+    public void roundTrips() throws Exception {
+        Path file = Files.createTempFile("snapshot", ".bin");
+        Map<String, State> ports = new LinkedHashMap<>();
+        ports.put("POWER1", State.ON);
+        ports.put("POWER2", State.OFF);
+
+        DeviceSnapshot.writeEntries(file, Arrays.asList(
+                new DeviceSnapshot.Entry("-Mabc", "washing-line-relay", Device.Connected.ONLINE, ports),
+                new DeviceSnapshot.Entry("-Mdef", "tüin", Device.Connected.UNKNOWN, new LinkedHashMap<>())));
+
+        List<DeviceSnapshot.Entry> entries = DeviceSnapshot.read(file);
+        assertEquals(2, entries.size());
+        assertEquals("-Mabc", entries.get(0).firebaseId);
+        assertEquals("washing-line-relay", entries.get(0).topic);
+        assertEquals(Device.Connected.ONLINE, entries.get(0).connected);
+        assertEquals(ports, entries.get(0).ports);
+        assertEquals("tüin", entries.get(1).topic);
+        assertTrue(entries.get(1).ports.isEmpty());
+        Files.delete(file);
+    }
+
+    @Test
+    public void ignoresMissingOrCorruptFiles() throws Exception {
+        Path file = Files.createTempFile("snapshot", ".bin");
+        assertTrue(DeviceSnapshot.read(file.resolveSibling("missing.bin")).isEmpty());
+        Files.write(file, new byte[] {1, 2, 3});
+        assertTrue(DeviceSnapshot.read(file).isEmpty());
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,58 @@
+package home.device;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Device.updateStatus with Tasmota payloads, including the port state and
+ * wifi signal updates they cause.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceStatusBenchmark {
+
+    @Param({"STATE", "RESULT"})
+    public String payloadType;
+
+    private OfflineFleet fleet;
+    private Device device;
+    private byte[][] payloads;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        fleet = new OfflineFleet(1);
+        device = fleet.device(0);
+        // Alternate the power so every message changes the port state
+        String on = "STATE".equals(payloadType) ? StatusParserTest.STATE : "{\"POWER1\":\"ON\"}";
+        payloads = new byte[][] {on.getBytes(StandardCharsets.UTF_8),
+                on.replace("\"POWER1\":\"ON\"", "\"POWER1\":\"OFF\"").getBytes(StandardCharsets.UTF_8)};
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fleet.close();
+    }
+
+    @Benchmark
+    public void updateStatus() throws Exception {
+        device.updateStatus(payloads[next++ & 1]);
+    }
+}
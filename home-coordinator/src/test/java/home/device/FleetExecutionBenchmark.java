@@ -0,0 +1,72 @@
+package home.device;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import util.Threads;
+
+/**
+ * Compares the platform and virtual execution modes on a simulated fleet:
+ * every device reports its state over the local broker and the benchmark waits
+ * until the dispatcher has handled all reports. Without virtual thread
+ * support in the JVM both modes run on platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FleetExecutionBenchmark {
+    private static final Logger LOG = Logger.getLogger(FleetExecutionBenchmark.class.getName());
+
+    @Param({"platform", "virtual"})
+    public String executionMode;
+
+    @Param({"1000"})
+    public int devices;
+
+    private SimulatedFleet fleet;
+    private long expected;
+
+    @Setup
+    public void setUp() throws Exception {
+        System.setProperty("executionMode", executionMode);
+        if (executionMode.equals("virtual") && !Threads.useVirtualThreads()) {
+            LOG.warning("Virtual threads are not available, running on platform threads");
+        }
+        fleet = new SimulatedFleet(devices, 2);
+        fleet.simulator.start();
+        // Let the announcements and the status resync settle
+        Thread.sleep(1000);
+        fleet.awaitIdle(30, TimeUnit.SECONDS);
+        expected = fleet.completed();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fleet.close();
+    }
+
+    @Benchmark
+    public void fleetReport() throws Exception {
+        fleet.simulator.reportAll();
+        expected += devices;
+        while (fleet.completed() < expected) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package home.device;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.firebase.database.DatabaseReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import home.common.Port;
+import home.common.Power;
+import home.mqtt.CommandPublisher;
+import home.mqtt.StubMqttClient;
+import util.OfflineFirebase;
+
+import static org.junit.Assert.*;
+
+public class IOPortTest {
+    private final StubMqttClient client = new StubMqttClient();
+    private final CommandPublisher commands = new CommandPublisher(client, 10, 1000, 100, 32, 1000);
+    private final DatabaseReference devices = OfflineFirebase.create().getReference("/devices");
+    private final List<String> applied = new ArrayList<>();
+
+    private Device device;
+    private IOPort port;
+
+    private class Listener extends Port {
+        Listener() {
+            this.name = "listener";
+        }
+
+        @Override
+        protected void applyPower(final Power p) {
+            applied.add(p.toString());
+        }
+    }
+
+    @Before
+    public void setUp() {
+        device = new Device("relay", commands, devices, "relay");
+        port = device.getPort("POWER1");
+        new Listener().setSources(Collections.singleton(port));
+    }
+
+    @After
+    public void tearDown() {
+        commands.close();
+    }
+
+    @Test
+    public void confirmationIsNotPropagated() throws Exception {
+        final long confirmed = port.getConfirmTime().getCount();
+        port.setPower(Power.ON);
+        assertTrue(port.hasOutstandingCommand());
+        applied.clear();
+
+        port.setState("ON");
+        assertFalse(port.hasOutstandingCommand());
+        assertTrue(applied.isEmpty());
+        assertEquals(confirmed + 1, port.getConfirmTime().getCount());
+
+        // A button press on the device reaches the listeners
+        port.setState("OFF");
+        assertEquals(Collections.singletonList("OFF"), applied);
+    }
+
+    @Test
+    public void reportFromBeforeTheCommandIsNotPropagated() throws Exception {
+        port.setPower(Power.ON);
+        applied.clear();
+
+        port.setState("OFF");
+        assertTrue(port.hasOutstandingCommand());
+        port.setState("ON");
+        assertFalse(port.hasOutstandingCommand());
+        assertTrue(applied.isEmpty());
+    }
+
+    @Test
+    public void laterCommandReplacesTheOutstandingOne() throws Exception {
+        port.setPower(Power.ON);
+        port.setPower(Power.OFF);
+        applied.clear();
+
+        port.setState("OFF");
+        assertFalse(port.hasOutstandingCommand());
+        assertTrue(applied.isEmpty());
+    }
+
+    @Test
+    public void confirmationTimeRunsFromThePublish() throws Exception {
+        client.setConnected(false);
+        final CompletableFuture<Long> confirmed =
+                device.switchPorts(Collections.singletonMap(port, Power.ON)).get(port);
+        Thread.sleep(200);
+        assertTrue(client.getPublished().isEmpty());
+        assertTrue(port.hasOutstandingCommand());
+
+        client.setConnected(true);
+        commands.resume();
+        for (int i = 0; i < 100 && client.getPublished().isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        applied.clear();
+        port.setState("ON");
+        assertTrue(applied.isEmpty());
+        assertTrue(confirmed.get(1, TimeUnit.SECONDS) < TimeUnit.MILLISECONDS.toNanos(200));
+    }
+}
@@ -0,0 +1,70 @@
+package home.device;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Port and device lookups from several threads at once, as done by the
+ * dispatch shards and the control units.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class LookupBenchmark {
+    private static final String[] PORTS = {"POWER1", "power2", "POWER3", "Power4"};
+
+    @Param({"10", "100"})
+    public int devices;
+
+    private OfflineFleet fleet;
+    private Device[] deviceArray;
+    private String[] topics;
+
+    @Setup
+    public void setUp() throws Exception {
+        fleet = new OfflineFleet(devices);
+        deviceArray = new Device[devices];
+        topics = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            deviceArray[i] = fleet.device(i);
+            topics[i] = fleet.topics[i].toUpperCase();
+            for (String port : PORTS) {
+                deviceArray[i].getPort(port);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fleet.close();
+    }
+
+    @Benchmark
+    public IOPort getPort() {
+        final int i = ThreadLocalRandom.current().nextInt(devices * PORTS.length);
+        return deviceArray[i / PORTS.length].getPort(PORTS[i % PORTS.length]);
+    }
+
+    @Benchmark
+    public Device getDeviceByTopic() {
+        return fleet.manager.getDeviceByTopic(topics[ThreadLocalRandom.current().nextInt(devices)]);
+    }
+}
@@ -0,0 +1,92 @@
+package home.device;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import home.mqtt.MessageDispatcher;
+
+/**
+ * Delivers device messages to the MQTT callback of the device manager and
+ * waits until the dispatch shards have handled them, so the result covers
+ * routing, dispatch and the device update.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDispatchBenchmark {
+    private static final int BATCH = 256;
+
+    @Param({"10", "100"})
+    public int devices;
+
+    @Param({"stat/%s/RESULT", "tele/%s/LWT", "tele/%s/SENSOR"})
+    public String topic;
+
+    private OfflineFleet fleet;
+    private MqttCallback callback;
+    private String[] topics;
+    private MqttMessage message;
+    private long expected;
+
+    @Setup
+    public void setUp() throws Exception {
+        fleet = new OfflineFleet(devices);
+        callback = fleet.client.getCallback();
+        topics = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            topics[i] = String.format(topic, fleet.topics[i]);
+        }
+        message = new MqttMessage((topic.endsWith("LWT") ? "Online" : "{\"POWER1\":\"ON\"}").getBytes());
+        // Devices are activated on their dispatch shard
+        while (completed() < devices) {
+            Thread.sleep(10);
+        }
+        expected = completed();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fleet.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void messageArrived() throws Exception {
+        for (int i = 0; i < BATCH; i++) {
+            callback.messageArrived(topics[i % topics.length], message);
+        }
+        if (topic.endsWith("SENSOR")) {
+            return;
+        }
+        expected += BATCH;
+        while (completed() < expected) {
+            Thread.yield();
+        }
+    }
+
+    private long completed() {
+        long completed = 0;
+        for (MessageDispatcher.ShardStats stats : fleet.manager.getDispatcher().getShardStats()) {
+            completed += stats.processed + stats.dropped;
+        }
+        return completed;
+    }
+}
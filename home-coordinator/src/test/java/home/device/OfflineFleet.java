@@ -0,0 +1,67 @@
+package home.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.google.firebase.database.FirebaseDatabase;
+
+import home.mqtt.StubMqttClient;
+import util.OfflineFirebase;
+
+/**
+ * Runs the device manager on a stub MQTT client and an offline Firebase
+ * database with a number of known devices, for benchmarks and tests.
+ */
+public final class OfflineFleet implements Closeable {
+    public final StubMqttClient client;
+    public final FirebaseDatabase database;
+    public final DeviceManager manager;
+    public final String[] topics;
+
+    private final Path snapshotFile;
+
+    public OfflineFleet(final int devices) throws Exception {
+        this(new StubMqttClient(), topics(devices));
+    }
+
+    /**
+     * Runs the manager on the given client with the devices of the topics.
+     */
+    public OfflineFleet(final StubMqttClient client, final String[] topics) throws Exception {
+        this.client = client;
+        this.topics = topics;
+        snapshotFile = Files.createTempFile("fleet", ".bin");
+        Files.delete(snapshotFile);
+        System.setProperty("stateSnapshotFile", snapshotFile.toString());
+        System.setProperty("stateSnapshotIntervalSeconds", "3600");
+
+        database = OfflineFirebase.create();
+        manager = new DeviceManager();
+        manager.initiate(database.getReference("/devices"), client);
+
+        for (String topic : topics) {
+            manager.getDeviceByTopic(topic);
+        }
+        client.clearPublished();
+    }
+
+    private static String[] topics(final int devices) {
+        final String[] topics = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            topics[i] = "device-" + i;
+        }
+        return topics;
+    }
+
+    public Device device(final int index) {
+        return manager.getDeviceByTopic(topics[index]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        manager.close();
+        Files.deleteIfExists(snapshotFile);
+    }
+}
@@ -0,0 +1,157 @@
+package home.device;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import home.cluster.PartitionManager;
+import home.common.Port;
+import home.common.Power;
+import home.mqtt.LocalBroker;
+import util.OfflineFirebase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two coordinator instances sharing a simulated fleet on one broker and one
+ * offline database.
+ */
+public class PartitionedFleetTest {
+    private static final int PARTITIONS = 8;
+    private static final long LEASE_MILLIS = 600;
+
+    private final LocalBroker broker = new LocalBroker();
+    private TasmotaSimulator simulator;
+    private DatabaseReference controller;
+    private DatabaseReference devices;
+    private Path snapshotFile;
+
+    private PartitionManager partitionsA;
+    private PartitionManager partitionsB;
+    private DeviceManager a;
+    private DeviceManager b;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshotFile = Files.createTempFile("partitioned", ".bin");
+        System.setProperty("stateSnapshotFile", snapshotFile.toString());
+        System.setProperty("stateSnapshotIntervalSeconds", "3600");
+
+        final FirebaseDatabase database = OfflineFirebase.create();
+        controller = database.getReference("/controller");
+        devices = database.getReference("/devices");
+        simulator = new TasmotaSimulator(broker, 16, 2);
+
+        partitionsA = new PartitionManager(controller, "a", PARTITIONS, LEASE_MILLIS);
+        partitionsB = new PartitionManager(controller, "b", PARTITIONS, LEASE_MILLIS);
+        a = start(partitionsA);
+        b = start(partitionsB);
+        await(() -> partitionsA.getOwnedPartitions().size() + partitionsB.getOwnedPartitions().size() == PARTITIONS
+                && !partitionsA.getOwnedPartitions().isEmpty() && !partitionsB.getOwnedPartitions().isEmpty());
+
+        simulator.start();
+        await(() -> {
+            for (int device = 0; device < simulator.getDeviceCount(); device++) {
+                if (!a.hasDevice(simulator.getTopic(device)) && !b.hasDevice(simulator.getTopic(device))) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    private DeviceManager start(final PartitionManager partitions) throws Exception {
+        final DeviceManager manager = new DeviceManager();
+        manager.setPartitionManager(partitions);
+        partitions.start();
+        manager.initiate(devices, broker.connect(partitions.getInstanceId()));
+        return manager;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        partitionsA.close();
+        partitionsB.close();
+        a.close();
+        b.close();
+        simulator.close();
+        broker.close();
+        for (String instance : new String[] {"", ".a", ".b"}) {
+            Files.deleteIfExists(Paths.get(snapshotFile + instance));
+        }
+    }
+
+    @Test
+    public void everyPartitionHasOneOwner() {
+        final Set<Integer> owned = new HashSet<>(partitionsA.getOwnedPartitions());
+        for (int partition : partitionsB.getOwnedPartitions()) {
+            assertTrue("partition " + partition + " owned twice", owned.add(partition));
+        }
+        assertEquals(PARTITIONS, owned.size());
+        for (int device = 0; device < simulator.getDeviceCount(); device++) {
+            final String topic = simulator.getTopic(device);
+            assertTrue(topic, a.hasDevice(topic) != b.hasDevice(topic));
+            assertEquals(topic, a.owns(topic), a.hasDevice(topic));
+        }
+    }
+
+    @Test
+    public void powerIsForwardedToTheOwner() throws Exception {
+        final int device = ownedBy(b);
+        final Port port = a.getPort(simulator.getTopic(device), simulator.getRelayName(1));
+        assertTrue(port instanceof RemotePort);
+
+        port.setPower(Power.ON);
+        await(() -> simulator.isOn(device, 1));
+        assertFalse(simulator.isOn(device, 0));
+    }
+
+    @Test
+    public void partitionsFailOverWhenAnInstanceLeaves() throws Exception {
+        final int device = ownedBy(b);
+        partitionsB.close();
+        b.close();
+
+        await(() -> partitionsA.getOwnedPartitions().size() == PARTITIONS);
+        await(() -> {
+            for (int i = 0; i < simulator.getDeviceCount(); i++) {
+                if (!a.hasDevice(simulator.getTopic(i))) {
+                    return false;
+                }
+            }
+            return true;
+        });
+
+        final Port port = a.getPort(simulator.getTopic(device), simulator.getRelayName(0));
+        assertTrue(port instanceof IOPort);
+        port.setPower(Power.ON);
+        await(() -> simulator.isOn(device, 0));
+    }
+
+    private int ownedBy(final DeviceManager manager) {
+        for (int device = 0; device < simulator.getDeviceCount(); device++) {
+            if (manager.hasDevice(simulator.getTopic(device))) {
+                return device;
+            }
+        }
+        throw new AssertionError("no devices");
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package home.device;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.google.firebase.database.DatabaseReference;
+import org.junit.After;
+import org.junit.Test;
+
+import home.mqtt.CommandPublisher;
+import home.mqtt.StubMqttClient;
+import util.FirebaseWriter;
+import util.OfflineFirebase;
+
+import static org.junit.Assert.*;
+
+public class ProvisioningTest {
+    private static final String TIMEZONE = Provisioning.DESIRED.get(1).value;
+
+    private final StubMqttClient client = new StubMqttClient();
+    private final CommandPublisher commands = new CommandPublisher(client, 10, 1000, 100, 32, 1000);
+    private final DatabaseReference devices = OfflineFirebase.create().getReference("/devices");
+
+    @After
+    public void tearDown() {
+        commands.close();
+    }
+
+    private List<String> published(final int count) throws InterruptedException {
+        for (int i = 0; i < 200 && client.getPublished().size() < count; i++) {
+            Thread.sleep(10);
+        }
+        return client.getPublished().stream().map(Object::toString).collect(Collectors.toList());
+    }
+
+    private Device device(final String id, final Map<String, Object> config) throws Exception {
+        if (config != null) {
+            devices.child("list").child(id).child("config").setValueAsync(config);
+        }
+        return new Device("relay", commands, devices, id);
+    }
+
+    @Test
+    public void sendsDesiredConfigOnceAsBacklog() throws Exception {
+        Device device = device("new", null);
+        device.getPort("POWER1");
+        device.getPort("POWER2");
+        device.provision().get(10, TimeUnit.SECONDS);
+        assertEquals("[cmnd/relay/Backlog SetOption13 1; Timezone " + TIMEZONE + "]", published(1).toString());
+        assertFalse(device.isProvisioned());
+
+        device.updateStatus("{\"SetOption13\":\"ON\"}".getBytes(StandardCharsets.UTF_8));
+        device.updateStatus(("{\"Timezone\":\"" + TIMEZONE + "\"}").getBytes(StandardCharsets.UTF_8));
+        assertTrue(device.isProvisioned());
+
+        FirebaseWriter.getInstance().flush();
+        Map<?, ?> stored = (Map<?, ?>) OfflineFirebase.read(devices.child("list/new/config"));
+        assertEquals("ON", stored.get("SetOption13"));
+        assertEquals(TIMEZONE, stored.get("Timezone"));
+    }
+
+    @Test
+    public void skipsDevicesThatAreProvisioned() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("SetOption13", "ON");
+        config.put("Timezone", TIMEZONE);
+        Device device = device("known", config);
+        device.provision().get(10, TimeUnit.SECONDS);
+        assertEquals(0, commands.getQueuedCount());
+        // Give a queued command the time to be published
+        Thread.sleep(100);
+        assertTrue(client.getPublished().isEmpty());
+        assertTrue(device.isProvisioned());
+    }
+
+    @Test
+    public void sendsOnlyMissingSettings() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("SetOption13", "ON");
+        config.put("Timezone", "99");
+        Device device = device("partial", config);
+        device.provision().get(10, TimeUnit.SECONDS);
+        assertEquals("[cmnd/relay/Timezone " + TIMEZONE + "]", published(1).toString());
+    }
+}
@@ -0,0 +1,107 @@
+package home.device;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.firebase.database.DatabaseReference;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import home.mqtt.CommandPublisher;
+import home.mqtt.StubMqttClient;
+import util.OfflineFirebase;
+
+/**
+ * Device and port lookups on the message path from many threads, through the
+ * {@link DeviceRegistry} and through the maps it replaced: a concurrent map
+ * keyed by the upper case topic and a tree map of ports per device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class RegistryBenchmark {
+    private static final String[] PORTS = {"POWER1", "POWER2", "POWER3", "POWER4"};
+
+    @Param({"100", "1000"})
+    public int devices;
+
+    private CommandPublisher commands;
+    private final DeviceRegistry registry = new DeviceRegistry();
+    private final Map<String, Device> byTopic = new ConcurrentHashMap<>();
+    private final Map<Device, Map<String, IOPort>> portMaps = new ConcurrentHashMap<>();
+    private String[] topics;
+    private String[] ports;
+
+    @Setup
+    public void setUp() {
+        commands = new CommandPublisher(new StubMqttClient(), 10, 1000, 100, 32, 1000);
+        final DatabaseReference database = OfflineFirebase.create().getReference("/devices");
+        topics = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            final Device device = new Device("Device-" + i, commands, database, "key-" + i);
+            final Map<String, IOPort> portMap = new TreeMap<>();
+            for (String port : PORTS) {
+                portMap.put(port, device.getPort(port));
+            }
+            registry.register(device);
+            byTopic.put(device.getTopic().toUpperCase(), device);
+            portMaps.put(device, portMap);
+            // Topics of incoming messages are new strings
+            topics[i] = new String(device.getTopic());
+        }
+        ports = new String[PORTS.length];
+        for (int i = 0; i < PORTS.length; i++) {
+            ports[i] = PORTS[i].toLowerCase();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        commands.close();
+    }
+
+    @Benchmark
+    public Device mapByTopic() {
+        return byTopic.get(topics[ThreadLocalRandom.current().nextInt(devices)].toUpperCase());
+    }
+
+    @Benchmark
+    public Device registryByTopic() {
+        return registry.get(topics[ThreadLocalRandom.current().nextInt(devices)]);
+    }
+
+    @Benchmark
+    public IOPort mapPort() {
+        final int i = ThreadLocalRandom.current().nextInt(devices * PORTS.length);
+        final Device device = byTopic.get(topics[i / PORTS.length].toUpperCase());
+        final Map<String, IOPort> portMap = portMaps.get(device);
+        synchronized (portMap) {
+            return portMap.get(ports[i % PORTS.length].toUpperCase());
+        }
+    }
+
+    @Benchmark
+    public IOPort registryPort() {
+        final int i = ThreadLocalRandom.current().nextInt(devices * PORTS.length);
+        return registry.getPort(topics[i / PORTS.length], ports[i % PORTS.length]);
+    }
+}
@@ -0,0 +1,84 @@
+package home.device;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import home.common.Power;
+
+import static org.junit.Assert.*;
+
+public class SceneTest {
+    private static SimulatedFleet fleet;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        fleet = new SimulatedFleet(20, 4);
+        fleet.simulator.start();
+        fleet.awaitPorts(10, TimeUnit.SECONDS);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        fleet.close();
+    }
+
+    private static List<String> allPorts() {
+        final List<String> ports = new ArrayList<>();
+        for (int device = 0; device < fleet.simulator.getDeviceCount(); device++) {
+            for (int relay = 0; relay < fleet.simulator.getRelayCount(); relay++) {
+                ports.add(fleet.simulator.getTopic(device) + "/" + fleet.simulator.getRelayName(relay).toLowerCase());
+            }
+        }
+        return ports;
+    }
+
+    @Test
+    public void groupsSwitchWithOneCommandPerDevice() throws Exception {
+        for (Power power : Arrays.asList(Power.ON, Power.OFF)) {
+            final long commands = fleet.simulator.getCommandCount();
+            final Scene.Result result = fleet.fleet.manager.activate(Scene.group("all", allPorts(), power), 5000)
+                    .get(10, TimeUnit.SECONDS);
+
+            assertTrue(result.failures.toString(), result.isComplete());
+            assertEquals(80, result.confirmedNanos.size());
+            assertEquals(20, fleet.simulator.getCommandCount() - commands);
+            for (int device = 0; device < fleet.simulator.getDeviceCount(); device++) {
+                for (int relay = 0; relay < fleet.simulator.getRelayCount(); relay++) {
+                    assertEquals(power == Power.ON, fleet.simulator.isOn(device, relay));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reportsMembersThatFailed() throws Exception {
+        final Map<String, Power> members = new HashMap<>();
+        members.put("sim-1/POWER1", Power.ON);
+        members.put("sim-1/POWER2", Power.OFF);
+        members.put("sim-2/POWER9", Power.ON);
+        members.put("unknown/POWER1", Power.ON);
+        members.put("power", Power.ON);
+
+        final long start = System.nanoTime();
+        final Scene.Result result = fleet.fleet.manager.activate(new Scene("mixed", members), 300)
+                .get(10, TimeUnit.SECONDS);
+
+        assertFalse(result.isComplete());
+        assertEquals("[sim-1/POWER1, sim-1/POWER2]", result.confirmedNanos.keySet().toString());
+        assertEquals("unknown port", result.failures.get("sim-2/POWER9"));
+        assertNull(fleet.fleet.manager.getDeviceByTopic("sim-2").findPort("POWER9"));
+        assertEquals("unknown device", result.failures.get("unknown/POWER1"));
+        assertTrue(result.failures.containsKey("power"));
+        // Nothing was left to time out
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(300));
+        assertTrue(fleet.simulator.isOn(1, 0));
+    }
+}
@@ -0,0 +1,141 @@
+package home.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import home.common.Power;
+import home.common.State;
+import home.mqtt.LocalBroker;
+import util.FirebaseWriter;
+import util.metrics.Histogram;
+
+/**
+ * The coordinator and a {@link TasmotaSimulator} on a {@link LocalBroker} with
+ * an offline Firebase database, for load tests that need no hardware or network.
+ *
+ * Command latency is measured end to end: from setting the power of a port to
+ * the flush of the state the device reported back to Firebase.
+ */
+public final class SimulatedFleet implements Closeable {
+    private static final Logger LOG = Logger.getLogger(SimulatedFleet.class.getName());
+
+    public final LocalBroker broker = new LocalBroker();
+    public final TasmotaSimulator simulator;
+    public final OfflineFleet fleet;
+
+    private final Map<String, Long> awaitingWrite = new ConcurrentHashMap<>();
+    private volatile Histogram latency;
+    private volatile CountDownLatch written;
+
+    public SimulatedFleet(final int devices, final int relays) throws Exception {
+        simulator = new TasmotaSimulator(broker, devices, relays);
+        final String[] topics = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            topics[i] = simulator.getTopic(i);
+        }
+        fleet = new OfflineFleet(broker.connect("coordinator"), topics);
+        FirebaseWriter.getInstance().setFlushListener(this::flushed);
+    }
+
+    private void flushed(final Map<String, Object> values) {
+        final long now = System.nanoTime();
+        for (String path : values.keySet()) {
+            final Long sent = awaitingWrite.remove(path);
+            if (sent != null) {
+                latency.record(now - sent);
+                written.countDown();
+            }
+        }
+    }
+
+    /**
+     * Switches every relay of every device the given number of times and waits
+     * for each resulting state to be written.
+     *
+     * @return the latency from command to state write, in nanos
+     */
+    public Histogram measureCommandLatency(final int rounds, final long timeout, final TimeUnit unit)
+            throws Exception {
+        latency = new Histogram();
+        final int relays = simulator.getRelayCount();
+        for (int round = 0; round < rounds; round++) {
+            written = new CountDownLatch(simulator.getDeviceCount() * relays);
+            for (int device = 0; device < simulator.getDeviceCount(); device++) {
+                for (int relay = 0; relay < relays; relay++) {
+                    final IOPort port = fleet.device(device).getPort(simulator.getRelayName(relay));
+                    final Power power = port.getState() == State.ON ? Power.OFF : Power.ON;
+                    awaitingWrite.put(port.database.child("state").getPath().toString(), System.nanoTime());
+                    port.setPower(power);
+                }
+            }
+            if (!written.await(timeout, unit)) {
+                throw new TimeoutException(written.getCount() + " state writes missing in round " + round);
+            }
+        }
+        return latency;
+    }
+
+    /**
+     * Lets every device report its state and waits until the coordinator knows
+     * all their relays.
+     */
+    public void awaitPorts(final long timeout, final TimeUnit unit) throws Exception {
+        simulator.reportAll();
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int device = 0; device < simulator.getDeviceCount(); device++) {
+            for (int relay = 0; relay < simulator.getRelayCount(); relay++) {
+                while (fleet.device(device).findPort(simulator.getRelayName(relay)) == null) {
+                    if (System.nanoTime() > deadline) {
+                        throw new TimeoutException(simulator.getTopic(device) + " did not report its relays");
+                    }
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the dispatcher has handled every message the coordinator received.
+     */
+    public void awaitIdle(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (queueDepth() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    public long queueDepth() {
+        return fleet.manager.getDispatcher().getShardStats().stream().mapToLong(s -> s.depth).sum();
+    }
+
+    /**
+     * Messages the dispatcher has finished with, handled or dropped.
+     */
+    public long completed() {
+        return fleet.manager.getDispatcher().getShardStats().stream().mapToLong(s -> s.processed + s.dropped).sum();
+    }
+
+    public long dropped() {
+        return fleet.manager.getDispatcher().getShardStats().stream().mapToLong(s -> s.dropped).sum();
+    }
+
+    public static void report(final String name, final Histogram histogram) {
+        LOG.info(String.format("%s: count=%d p50=%.1fms p99=%.1fms max=%.1fms", name, histogram.getCount(),
+                histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(99) / 1e6,
+                histogram.getMax() / 1e6));
+    }
+
+    @Override
+    public void close() throws IOException {
+        FirebaseWriter.getInstance().setFlushListener(null);
+        simulator.close();
+        fleet.close();
+        broker.close();
+    }
+}
@@ -0,0 +1,74 @@
+package home.device;
+
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import home.common.State;
+import util.Config;
+import util.metrics.Histogram;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load test on a simulated fleet, sized by simDevices (default 200),
+ * simRelays (default 2) and simSeconds (default 2).
+ */
+public class SimulatedFleetTest {
+    private static final Logger LOG = Logger.getLogger(SimulatedFleetTest.class.getName());
+
+    private static SimulatedFleet fleet;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        fleet = new SimulatedFleet(Config.getInt("simDevices", 200), Config.getInt("simRelays", 2));
+        fleet.simulator.start();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        fleet.close();
+    }
+
+    @Test
+    public void commandsEndInStateWrites() throws Exception {
+        final Histogram latency = fleet.measureCommandLatency(3, 10, TimeUnit.SECONDS);
+        SimulatedFleet.report("Command to state write", latency);
+
+        final int ports = fleet.simulator.getDeviceCount() * fleet.simulator.getRelayCount();
+        assertEquals(3 * ports, latency.getCount());
+        for (int device = 0; device < fleet.simulator.getDeviceCount(); device++) {
+            for (int relay = 0; relay < fleet.simulator.getRelayCount(); relay++) {
+                final IOPort port = fleet.fleet.device(device).getPort(fleet.simulator.getRelayName(relay));
+                assertEquals(fleet.simulator.isOn(device, relay) ? State.ON : State.OFF, port.getState());
+            }
+        }
+    }
+
+    @Test
+    public void sustainsReportsAndButtonPresses() throws Exception {
+        final long handledBefore = fleet.fleet.manager.getRouter().getHandledCount();
+        final long start = System.nanoTime();
+        fleet.simulator.startLoad(1000, 1000);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(Config.getInt("simSeconds", 2)));
+        fleet.simulator.stopLoad();
+        fleet.awaitIdle(10, TimeUnit.SECONDS);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        final long handled = fleet.fleet.manager.getRouter().getHandledCount() - handledBefore;
+        LOG.info(String.format("Sustained %.0f messages/s over %.1fs, broker delivered %d", handled / seconds,
+                seconds, fleet.broker.getDeliveredCount()));
+        assertTrue(handled > 0);
+        assertEquals(0, fleet.queueDepth());
+        assertEquals(0, fleet.dropped());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doesNotReplayOnTheLiveBroker() throws Exception {
+        fleet.fleet.manager.replay(Paths.get("journal"), 0);
+    }
+}
@@ -0,0 +1,73 @@
+package home.device;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the streaming status parser with parsing the payload into a map,
+ * which is what Device.updateStatus used to do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatusParserBenchmark {
+
+    @Param({"STATE", "RESULT"})
+    public String payloadType;
+
+    private byte[] payload;
+    private Blackhole blackhole;
+    private StatusParser parser;
+
+    @Setup
+    public void setUp(final Blackhole bh) {
+        blackhole = bh;
+        payload = ("STATE".equals(payloadType) ? StatusParserTest.STATE : "{\"POWER2\":\"ON\"}")
+                .getBytes(StandardCharsets.UTF_8);
+        parser = new StatusParser()
+                .register("POWER*", (device, name, reader) -> blackhole.consume(reader.nextString()))
+                .register("Wifi.Signal", (device, name, reader) -> blackhole.consume(reader.nextInt()));
+    }
+
+    @Benchmark
+    public void streaming() throws Exception {
+        parser.parse(null, payload);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public void gsonMap() {
+        Gson gson = new Gson();
+        Map<String, Object> map = (Map<String, Object>) gson.fromJson(new String(payload), Map.class);
+        map.forEach((k, v) -> {
+            if (k.toUpperCase().startsWith("POWER")) {
+                blackhole.consume(v.toString());
+            }
+            if (k.toUpperCase().equals("WIFI")) {
+                Object signal = ((Map<String, Object>) v).get("Signal");
+                if (signal != null) {
+                    blackhole.consume(signal);
+                }
+            }
+        });
+    }
+}
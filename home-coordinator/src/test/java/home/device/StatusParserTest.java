@@ -0,0 +1,43 @@
+package home.device;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StatusParserTest {
+    static final String STATE = "{\"Time\":\"2020-05-10T12:00:00\",\"Uptime\":\"3T04:12:33\",\"UptimeSec\":274353,"
+            + "\"Heap\":26,\"SleepMode\":\"Dynamic\",\"Sleep\":50,\"LoadAvg\":19,\"MqttCount\":3,"
+            + "\"POWER1\":\"ON\",\"POWER2\":\"OFF\",\"POWER3\":\"OFF\",\"POWER4\":\"ON\","
+            + "\"Wifi\":{\"AP\":1,\"SSId\":\"höme\",\"BSSId\":\"AA:BB:CC:DD:EE:FF\",\"Channel\":6,\"RSSI\":76,"
+            + "\"Signal\":-62,\"LinkCount\":2,\"Downtime\":\"0T00:00:12\"}}";
+
+    private final List<String> fields = new ArrayList<>();
+    private final StatusParser parser = new StatusParser()
+            .register("power*", (device, name, reader) -> fields.add(name + "=" + reader.nextString()))
+            .register("WIFI.signal", (device, name, reader) -> fields.add(name + "=" + reader.nextInt()));
+
+    @Test
+    public void extractsRegisteredFields() throws Exception {
+        parser.parse(null, STATE.getBytes(StandardCharsets.UTF_8));
+        assertEquals("[POWER1=ON, POWER2=OFF, POWER3=OFF, POWER4=ON, Signal=-62]", fields.toString());
+    }
+
+    @Test
+    public void skipsUnregisteredNestedValues() throws Exception {
+        parser.parse(null, "{\"StatusSNS\":{\"POWER\":\"ON\"},\"Power\":\"OFF\"}".getBytes(StandardCharsets.UTF_8));
+        assertEquals("[Power=OFF]", fields.toString());
+    }
+
+    @Test
+    public void reusesStateAcrossPayloads() throws Exception {
+        parser.parse(null, STATE.getBytes(StandardCharsets.UTF_8));
+        parser.parse(null, "{\"POWER\":\"TOGGLE\"}".getBytes(StandardCharsets.UTF_8));
+        parser.parse(null, "not json".getBytes(StandardCharsets.UTF_8));
+        assertEquals(6, fields.size());
+        assertEquals("POWER=TOGGLE", fields.get(5));
+    }
+}
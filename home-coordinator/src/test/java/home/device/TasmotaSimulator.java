@@ -0,0 +1,270 @@
+package home.device;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import home.mqtt.LocalBroker;
+import home.mqtt.StubMqttClient;
+import util.Threads;
+
+/**
+ * Virtual Tasmota devices on a {@link LocalBroker}.
+ *
+ * Each device has a number of relays and answers cmnd/&lt;topic&gt;/... the way
+ * the firmware does: POWER commands switch a relay and report it on
+ * stat/&lt;topic&gt;/RESULT, STATE reports all relays, Backlog runs its commands
+ * in order and other commands echo their value. Once started the devices
+ * announce themselves on tele/&lt;topic&gt;/LWT. Under load they report
+ * tele/&lt;topic&gt;/STATE periodically and have their buttons pressed at random.
+ */
+public final class TasmotaSimulator implements Closeable {
+    private final StubMqttClient client;
+    private final String[] topics;
+    private final boolean[][] relays;
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("tasmota-simulator"));
+
+    private final List<ScheduledFuture<?>> load = new ArrayList<>();
+
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder reports = new LongAdder();
+
+    public TasmotaSimulator(final LocalBroker broker, final int devices, final int relaysPerDevice) {
+        client = broker.connect("tasmota-simulator");
+        topics = new String[devices];
+        relays = new boolean[devices][relaysPerDevice];
+        for (int i = 0; i < devices; i++) {
+            topics[i] = "sim-" + i;
+        }
+    }
+
+    public String getTopic(final int device) {
+        return topics[device];
+    }
+
+    public int getDeviceCount() {
+        return topics.length;
+    }
+
+    public int getRelayCount() {
+        return relays[0].length;
+    }
+
+    /**
+     * @return the name of a relay as used in POWER&lt;n&gt; commands, POWER for
+     *         devices with only one relay
+     */
+    public String getRelayName(final int relay) {
+        return relays[0].length == 1 ? "POWER" : "POWER" + (relay + 1);
+    }
+
+    public boolean isOn(final int device, final int relay) {
+        synchronized (relays[device]) {
+            return relays[device][relay];
+        }
+    }
+
+    public long getCommandCount() {
+        return commands.sum();
+    }
+
+    public long getReportCount() {
+        return reports.sum();
+    }
+
+    /**
+     * Connects the devices and announces them.
+     */
+    public void start() {
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void messageArrived(final String topic, final MqttMessage message) throws Exception {
+                command(topic, new String(message.getPayload(), StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void deliveryComplete(final IMqttDeliveryToken token) {
+            }
+
+            @Override
+            public void connectionLost(final Throwable cause) {
+            }
+        });
+        client.subscribe("cmnd/+/+", 0);
+        for (String topic : topics) {
+            publish("tele/" + topic + "/LWT", "Online", true);
+        }
+    }
+
+    /**
+     * Starts reporting until {@link #stopLoad()}.
+     *
+     * @param teleIntervalMillis period of tele STATE reports per device, 0 for none
+     * @param pressesPerSecond button presses per second over all devices, 0 for none
+     */
+    public synchronized void startLoad(final long teleIntervalMillis, final double pressesPerSecond) {
+        if (teleIntervalMillis > 0) {
+            // Spread the reports of the devices over the interval
+            final long period = TimeUnit.MILLISECONDS.toMicros(teleIntervalMillis);
+            final long spacing = Math.max(1, period / topics.length);
+            for (int i = 0; i < topics.length; i++) {
+                final int device = i;
+                load.add(scheduler.scheduleAtFixedRate(
+                        () -> publish("tele/" + topics[device] + "/STATE", state(device), false),
+                        i * spacing, period, TimeUnit.MICROSECONDS));
+            }
+        }
+        if (pressesPerSecond > 0) {
+            load.add(scheduler.scheduleAtFixedRate(this::pressButton, 0, (long) (1_000_000 / pressesPerSecond),
+                    TimeUnit.MICROSECONDS));
+        }
+    }
+
+    /**
+     * Lets every device report its state on stat/&lt;topic&gt;/RESULT, as after a
+     * STATE command.
+     */
+    public void reportAll() {
+        for (int device = 0; device < topics.length; device++) {
+            publish("stat/" + topics[device] + "/RESULT", state(device), false);
+        }
+    }
+
+    public synchronized void stopLoad() {
+        load.forEach(task -> task.cancel(false));
+        load.clear();
+    }
+
+    private void pressButton() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int device = random.nextInt(topics.length);
+        final int relay = random.nextInt(relays[device].length);
+        synchronized (relays[device]) {
+            relays[device][relay] = !relays[device][relay];
+            result(device, getRelayName(relay), power(relays[device][relay]));
+        }
+    }
+
+    private void command(final String topic, final String payload) {
+        final String[] levels = topic.split("/");
+        final int device = indexOf(levels[1]);
+        if (device < 0) {
+            return;
+        }
+        commands.increment();
+        synchronized (relays[device]) {
+            execute(device, levels[2], payload.trim());
+        }
+    }
+
+    private void execute(final int device, final String command, final String value) {
+        final String name = command.toUpperCase(Locale.ROOT);
+        if (name.equals("BACKLOG")) {
+            for (String part : value.split(";")) {
+                final String trimmed = part.trim();
+                final int space = trimmed.indexOf(' ');
+                if (!trimmed.isEmpty()) {
+                    execute(device, space < 0 ? trimmed : trimmed.substring(0, space),
+                            space < 0 ? "" : trimmed.substring(space + 1).trim());
+                }
+            }
+        } else if (name.equals("STATE")) {
+            publish("stat/" + topics[device] + "/RESULT", state(device), false);
+        } else if (name.startsWith("POWER")) {
+            final int relay = relay(device, name);
+            if (relay < 0) {
+                return;
+            }
+            switch (value.toUpperCase(Locale.ROOT)) {
+                case "ON":
+                case "1":
+                    relays[device][relay] = true;
+                    break;
+                case "OFF":
+                case "0":
+                    relays[device][relay] = false;
+                    break;
+                case "TOGGLE":
+                case "2":
+                    relays[device][relay] = !relays[device][relay];
+                    break;
+                default:
+                    // An empty payload only reports the relay
+            }
+            result(device, getRelayName(relay), power(relays[device][relay]));
+        } else if (name.startsWith("SETOPTION")) {
+            result(device, command, "1".equals(value) ? "ON" : "0".equals(value) ? "OFF" : value);
+        } else {
+            result(device, command, value);
+        }
+    }
+
+    private int relay(final int device, final String name) {
+        if (name.length() == "POWER".length()) {
+            return 0;
+        }
+        try {
+            final int relay = Integer.parseInt(name.substring("POWER".length())) - 1;
+            return relay >= 0 && relay < relays[device].length ? relay : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private int indexOf(final String topic) {
+        if (!topic.startsWith("sim-")) {
+            return -1;
+        }
+        try {
+            final int device = Integer.parseInt(topic.substring("sim-".length()));
+            return device < topics.length ? device : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void result(final int device, final String key, final String value) {
+        publish("stat/" + topics[device] + "/RESULT", "{\"" + key + "\":\"" + value + "\"}", false);
+    }
+
+    private String state(final int device) {
+        final StringBuilder json = new StringBuilder("{\"Time\":\"1970-01-01T00:00:00\",\"Uptime\":\"0T00:00:00\"");
+        synchronized (relays[device]) {
+            for (int relay = 0; relay < relays[device].length; relay++) {
+                json.append(",\"").append(getRelayName(relay)).append("\":\"")
+                        .append(power(relays[device][relay])).append('"');
+            }
+        }
+        final int rssi = ThreadLocalRandom.current().nextInt(40, 100);
+        return json.append(",\"Wifi\":{\"AP\":1,\"RSSI\":").append(rssi).append(",\"Signal\":")
+                .append(rssi / 2 - 100).append("}}").toString();
+    }
+
+    private static String power(final boolean on) {
+        return on ? "ON" : "OFF";
+    }
+
+    private void publish(final String topic, final String payload, final boolean retained) {
+        reports.increment();
+        client.publish(topic, payload.getBytes(StandardCharsets.UTF_8), 0, retained);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        client.close();
+    }
+}
@@ -0,0 +1,109 @@
+package home.device;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.google.firebase.database.DatabaseReference;
+import org.junit.After;
+import org.junit.Test;
+
+import home.common.Port;
+import home.common.Power;
+import home.common.State;
+import home.mqtt.CommandPublisher;
+import home.mqtt.StubMqttClient;
+import util.OfflineFirebase;
+
+import static org.junit.Assert.*;
+
+public class TelemetryTest {
+    private final StubMqttClient client = new StubMqttClient();
+    private final CommandPublisher commands = new CommandPublisher(client, 10, 1000, 100, 32, 1000);
+    private final DatabaseReference devices = OfflineFirebase.create().getReference("/devices");
+    private final Device device = new Device("sonoff", commands, devices, "sonoff");
+    private final List<String> applied = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        commands.close();
+    }
+
+    private static byte[] state(final String time, final String power, final int signal) {
+        return ("{\"Time\":\"" + time + "\",\"Uptime\":\"0T00:05:00\",\"POWER1\":\"" + power
+                + "\",\"Wifi\":{\"AP\":1,\"Signal\":" + signal + "}}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void onlyChangedStateIsPassedOn() throws Exception {
+        new Port() {
+            {
+                name = "listener";
+            }
+
+            @Override
+            protected void applyPower(final Power p) {
+                applied.add(p.toString());
+            }
+        }.setSources(Collections.singleton(device.getPort("POWER1")));
+
+        device.updateTelemetry(state("2020-05-10T12:00:00", "ON", -60));
+        assertEquals(State.ON, device.getPort("POWER1").getState());
+        assertEquals(Collections.singletonList("ON"), applied);
+
+        device.updateTelemetry(state("2020-05-10T12:05:00", "ON", -60));
+        assertEquals(Collections.singletonList("ON"), applied);
+
+        device.updateTelemetry(state("2020-05-10T12:10:00", "OFF", -61));
+        assertEquals(State.OFF, device.getPort("POWER1").getState());
+        assertEquals(-61L, device.getShadow().get(devices.child("list/sonoff/wifi/signal")));
+        assertEquals(2, applied.size());
+    }
+
+    @Test
+    public void sensorValuesAreWritten() throws Exception {
+        device.updateSensors(("{\"Time\":\"2020-05-10T12:00:00\",\"AM2301\":{\"Temperature\":21.3,"
+                + "\"Humidity\":48.0},\"TempUnit\":\"C\"}").getBytes(StandardCharsets.UTF_8));
+
+        final DatabaseReference sensor = devices.child("list/sonoff/sensors/AM2301");
+        assertEquals(21.3, device.getShadow().get(sensor.child("Temperature")));
+        assertEquals(48.0, device.getShadow().get(sensor.child("Humidity")));
+        assertNull(device.getShadow().get(devices.child("list/sonoff/sensors/TempUnit")));
+    }
+
+    @Test
+    public void onlyDevicesWithoutTelemetryArePolled() throws Exception {
+        System.setProperty("telemetryStaleSeconds", "1");
+        try (OfflineFleet fleet = new OfflineFleet(4)) {
+            fleet.client.deliver("tele/" + fleet.topics[3] + "/LWT", "Offline");
+            for (int i = 0; i < 100 && fleet.device(3).getConnected() != Device.Connected.OFFLINE; i++) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(1100);
+            final long reported = fleet.device(0).getLastMessageNanos();
+            fleet.client.deliver("tele/" + fleet.topics[0] + "/STATE", new String(state("", "ON", -50),
+                    StandardCharsets.UTF_8));
+            for (int i = 0; i < 100 && fleet.device(0).getLastMessageNanos() == reported; i++) {
+                Thread.sleep(10);
+            }
+            fleet.client.clearPublished();
+
+            fleet.manager.pollStaleDevices();
+            List<String> polled = Collections.emptyList();
+            for (int i = 0; i < 100 && polled.size() < 2; i++) {
+                Thread.sleep(20);
+                polled = fleet.client.getPublished().stream().map(published -> published.topic)
+                        .filter(topic -> topic.endsWith("/STATE")).sorted().collect(Collectors.toList());
+            }
+            // Give an offline device the time to be polled as well
+            Thread.sleep(100);
+            polled = fleet.client.getPublished().stream().map(published -> published.topic)
+                    .filter(topic -> topic.endsWith("/STATE")).sorted().collect(Collectors.toList());
+            assertEquals("[cmnd/device-1/STATE, cmnd/device-2/STATE]", polled.toString());
+        } finally {
+            System.clearProperty("telemetryStaleSeconds");
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package home.mqtt;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CommandPublisherTest {
+    private final StubMqttClient client = new StubMqttClient();
+    private CommandPublisher commands;
+
+    @After
+    public void tearDown() {
+        commands.close();
+    }
+
+    private List<String> published(final int count) throws InterruptedException {
+        for (int i = 0; i < 200 && client.getPublished().size() < count; i++) {
+            Thread.sleep(10);
+        }
+        // Give the publisher a chance to send more than expected
+        Thread.sleep(50);
+        return client.getPublished().stream().map(Object::toString).collect(Collectors.toList());
+    }
+
+    @Test
+    public void coalescesQueuedCommandsWhileWindowIsFull() throws Exception {
+        commands = new CommandPublisher(client, 1, 1000, 100, 32, 1000);
+        client.setHoldCompletions(true);
+        commands.send("sonoff", "POWER1", "ON");
+        assertEquals(1, published(1).size());
+
+        commands.send("sonoff", "POWER1", "OFF");
+        commands.send("sonoff", "POWER2", "ON");
+        commands.send("Sonoff", "power1", "ON");
+        commands.send("sonoff", "POWER1", "OFF");
+        assertEquals(1, commands.getInFlight());
+        assertEquals(2, commands.getPending());
+        assertEquals(2, commands.getCoalescedCount());
+
+        client.setHoldCompletions(false);
+        client.completePublishes();
+        assertEquals("[cmnd/sonoff/POWER1 ON, cmnd/sonoff/POWER2 ON, cmnd/sonoff/POWER1 OFF]",
+                published(3).toString());
+        assertEquals(0, commands.getInFlight());
+    }
+
+    @Test
+    public void doesNotCoalesceToggles() throws Exception {
+        commands = new CommandPublisher(client, 1, 1000, 100, 32, 1000);
+        client.setHoldCompletions(true);
+        commands.send("sonoff", "POWER1", "ON");
+        published(1);
+        commands.send("sonoff", "POWER1", "TOGGLE");
+        commands.send("sonoff", "POWER1", "TOGGLE");
+        assertEquals(2, commands.getPending());
+
+        client.setHoldCompletions(false);
+        client.completePublishes();
+        assertEquals(3, published(3).size());
+    }
+
+    @Test
+    public void replacementsAreSentAfterTogglesQueuedBeforeThem() throws Exception {
+        commands = new CommandPublisher(client, 10, 1000, 100, 32, 1000);
+        client.setConnected(false);
+        commands.send("sonoff", "POWER1", "ON");
+        commands.send("sonoff", "POWER1", "TOGGLE");
+        commands.send("sonoff", "POWER1", "OFF");
+        assertEquals(1, commands.getCoalescedCount());
+
+        client.setConnected(true);
+        commands.resume();
+        assertEquals("[cmnd/sonoff/POWER1 TOGGLE, cmnd/sonoff/POWER1 OFF]", published(2).toString());
+    }
+
+    @Test
+    public void replacementsAreSentAfterBacklogsQueuedBeforeThem() throws Exception {
+        commands = new CommandPublisher(client, 10, 1000, 100, 32, 1000);
+        client.setConnected(false);
+        commands.send("sonoff", "POWER1", "ON");
+        commands.send("sonoff", "Backlog", "POWER1 ON; POWER2 ON");
+        commands.send("sonoff", "POWER1", "OFF");
+
+        client.setConnected(true);
+        commands.resume();
+        assertEquals("[cmnd/sonoff/Backlog POWER1 ON; POWER2 ON, cmnd/sonoff/POWER1 OFF]", published(2).toString());
+    }
+
+    @Test
+    public void limitsRatePerDeviceAndDropsWhenQueueIsFull() throws Exception {
+        commands = new CommandPublisher(client, 10, 0.001, 2, 2, 1000);
+        client.setConnected(false);
+        for (int i = 1; i <= 3; i++) {
+            commands.send("sonoff", "POWER" + i, "ON");
+        }
+        commands.send("other", "POWER1", "ON");
+        assertEquals(1, commands.getDroppedCount());
+
+        client.setConnected(true);
+        commands.resume();
+        assertEquals(3, published(3).size());
+
+        // The burst of sonoff is used up
+        commands.send("sonoff", "POWER4", "ON");
+        commands.send("other", "POWER2", "ON");
+        assertEquals(4, published(4).size());
+        assertEquals(1, commands.getPending());
+    }
+
+    @Test
+    public void waitsWhileDisconnected() throws Exception {
+        commands = new CommandPublisher(client, 10, 1000, 100, 32, 1000);
+        client.setConnected(false);
+        commands.send("sonoff", "POWER1", "ON");
+        assertEquals(0, published(0).size());
+
+        client.setConnected(true);
+        commands.resume();
+        assertEquals(1, published(1).size());
+    }
+
+    @Test
+    public void buffersWhileDisconnectedAndSendsHighPriorityFirst() throws Exception {
+        commands = new CommandPublisher(client, 10, 1000, 100, 32, 2);
+        client.setConnected(false);
+        commands.send("a", "STATE", "", CommandPublisher.Priority.LOW);
+        commands.send("b", "STATE", "", CommandPublisher.Priority.LOW);
+        assertTrue(commands.send("c", "POWER1", "ON"));
+        assertFalse(commands.send("d", "STATE", "", CommandPublisher.Priority.LOW));
+        assertEquals(2, commands.getDroppedCount());
+        assertEquals(2, commands.getPending());
+
+        client.setConnected(true);
+        commands.resume();
+        assertEquals("[cmnd/c/POWER1 ON, cmnd/b/STATE ]", published(2).toString());
+    }
+
+    @Test
+    public void buffersForwardedChangesWithoutReplacingThem() throws Exception {
+        commands = new CommandPublisher(client, 10, 1000, 100, 32, 1000);
+        client.setConnected(false);
+        assertTrue(commands.publish("sonoff", "forward/sonoff/POWER", "POWER1 ON"));
+        assertTrue(commands.publish("sonoff", "forward/sonoff/POWER", "POWER2 OFF"));
+        assertEquals(0, published(0).size());
+
+        client.setConnected(true);
+        commands.resume();
+        assertEquals("[forward/sonoff/POWER POWER1 ON, forward/sonoff/POWER POWER2 OFF]", published(2).toString());
+    }
+}
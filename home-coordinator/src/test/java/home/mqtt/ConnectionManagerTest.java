@@ -0,0 +1,79 @@
+package home.mqtt;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionManagerTest {
+    private final StubMqttClient client = new StubMqttClient();
+    private final List<Boolean> connects = new CopyOnWriteArrayList<>();
+    private final ConnectionManager connection =
+            new ConnectionManager(client, new MqttConnectOptions(), 10, 100, connects::add);
+
+    @Before
+    public void setUp() {
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(final Throwable cause) {
+                connection.connectionLost(cause);
+            }
+
+            @Override
+            public void messageArrived(final String topic, final MqttMessage message) {
+            }
+
+            @Override
+            public void deliveryComplete(final IMqttDeliveryToken token) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        connection.close();
+    }
+
+    private void awaitConnects(final int count) throws InterruptedException {
+        for (int i = 0; i < 200 && connects.size() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, connects.size());
+    }
+
+    @Test
+    public void reconnectsWithBackoffWhenConnectionIsLost() throws Exception {
+        client.setConnected(false);
+        connection.connect();
+        awaitConnects(1);
+        assertFalse(connects.get(0));
+        assertTrue(client.isConnected());
+
+        client.refuseConnects(3);
+        client.dropConnection();
+        assertFalse(client.isConnected());
+        awaitConnects(2);
+        assertTrue(connects.get(1));
+        assertTrue(client.isConnected());
+        // Three failed attempts wait at least 5 + 10 + 20ms
+        assertTrue(connection.getLastReconnectNanos() >= 35_000_000);
+    }
+
+    @Test
+    public void backoffGrowsWithJitterUpToTheMaximum() {
+        assertEquals(0, connection.backoffMillis(0));
+        for (int attempt = 1; attempt < 40; attempt++) {
+            final long ceiling = Math.min(100, 10L << (attempt - 1));
+            final long backoff = connection.backoffMillis(attempt);
+            assertTrue(backoff + " for attempt " + attempt, backoff >= ceiling / 2 && backoff <= ceiling);
+        }
+    }
+}
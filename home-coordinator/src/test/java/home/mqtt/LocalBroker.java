@@ -0,0 +1,71 @@
+package home.mqtt;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * In-process stand-in for an MQTT broker. Its clients are {@link StubMqttClient}s;
+ * a publish is delivered to every other connected client with a matching
+ * subscription, and retained messages are kept for later subscribers.
+ * Messages are not persisted and QoS is ignored.
+ */
+public final class LocalBroker {
+    private final List<StubMqttClient> clients = new CopyOnWriteArrayList<>();
+    private final Map<String, MqttMessage> retained = new ConcurrentHashMap<>();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+
+    public StubMqttClient connect(final String clientId) {
+        final StubMqttClient client = new StubMqttClient(clientId, this);
+        clients.add(client);
+        return client;
+    }
+
+    void publish(final String topic, final MqttMessage message) {
+        published.increment();
+        if (message.isRetained()) {
+            if (message.getPayload().length == 0) {
+                retained.remove(topic);
+            } else {
+                retained.put(topic, message);
+            }
+        }
+        for (StubMqttClient client : clients) {
+            if (client.isConnected() && client.isSubscribed(topic)) {
+                delivered.increment();
+                client.receive(topic, message);
+            }
+        }
+    }
+
+    void subscribed(final StubMqttClient client, final String[] filters) {
+        retained.forEach((topic, message) -> {
+            for (String filter : filters) {
+                if (MqttTopic.isMatched(filter, topic)) {
+                    delivered.increment();
+                    client.receive(topic, message);
+                    return;
+                }
+            }
+        });
+    }
+
+    public long getPublishedCount() {
+        return published.sum();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    public void close() {
+        clients.forEach(StubMqttClient::close);
+        clients.clear();
+    }
+}
@@ -0,0 +1,73 @@
+package home.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import util.Threads;
+
+import static org.junit.Assert.*;
+
+public class MessageDispatcherTest {
+
+    @Test
+    public void keepsOrderPerDevice() throws Exception {
+        final int devices = 16;
+        final int messages = 500;
+        final Map<String, List<Integer>> seen = new ConcurrentHashMap<>();
+        final CountDownLatch done = new CountDownLatch(devices * messages);
+
+        try (MessageDispatcher dispatcher = new MessageDispatcher(4, devices * messages, Threads.newFixedPool("test", 4))) {
+            for (int i = 0; i < messages; i++) {
+                for (int d = 0; d < devices; d++) {
+                    final String topic = "device-" + d;
+                    final int sequence = i;
+                    assertTrue(dispatcher.execute(topic, () -> {
+                        seen.computeIfAbsent(topic, t -> new ArrayList<>()).add(sequence);
+                        done.countDown();
+                    }));
+                }
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+
+        assertEquals(devices, seen.size());
+        seen.values().forEach(list -> {
+            assertEquals(messages, list.size());
+            for (int i = 0; i < messages; i++) {
+                assertEquals(i, list.get(i).intValue());
+            }
+        });
+    }
+
+    @Test
+    public void dropsWhenShardIsFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        try (MessageDispatcher dispatcher = new MessageDispatcher(1, 1, Threads.newFixedPool("test", 1))) {
+            final CountDownLatch started = new CountDownLatch(1);
+            dispatcher.execute("a", () -> {
+                started.countDown();
+                release.await();
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertTrue(dispatcher.execute("a", () -> { }));
+            assertFalse(dispatcher.execute("b", () -> { }));
+
+            assertEquals(1, dispatcher.getShardStats().get(0).dropped);
+            assertEquals(1, dispatcher.getShardStats().get(0).depth);
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void shardsCaseInsensitive() {
+        try (MessageDispatcher dispatcher = new MessageDispatcher(16, 1, Threads.newFixedPool("test", 1))) {
+            assertEquals(dispatcher.shardIndex("Washing-Line-Relay"), dispatcher.shardIndex("washing-line-relay"));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package home.mqtt;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageJournalTest {
+    private final List<Path> directories = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (Path directory : directories) {
+            for (Path segment : MessageJournal.segments(directory)) {
+                Files.delete(segment);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private Path directory() throws Exception {
+        final Path directory = Files.createTempDirectory("journal");
+        directories.add(directory);
+        return directory;
+    }
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> read(final Path directory) throws Exception {
+        final List<String> records = new ArrayList<>();
+        MessageJournal.read(directory, record -> records.add(record.toString()));
+        return records;
+    }
+
+    @Test
+    public void rollsOverSegmentsAndReadsThemInOrder() throws Exception {
+        final Path directory = directory();
+        try (MessageJournal journal = new MessageJournal(directory, 128, TimeUnit.HOURS.toMillis(1), 1 << 20)) {
+            for (int i = 0; i < 20; i++) {
+                journal.append(MessageJournal.Direction.IN, "tele/sonoff-" + i + "/LWT", bytes("Online"));
+            }
+            journal.append(MessageJournal.Direction.OUT, "cmnd/tüin/POWER", bytes("ON"));
+        }
+
+        final List<String> records = read(directory);
+        assertEquals(21, records.size());
+        assertEquals("IN tele/sonoff-0/LWT Online", records.get(0));
+        assertEquals("IN tele/sonoff-19/LWT Online", records.get(19));
+        assertEquals("OUT cmnd/tüin/POWER ON", records.get(20));
+        assertTrue(MessageJournal.segments(directory).size() > 1);
+    }
+
+    @Test
+    public void keepsTheRetainedSizeOfSegments() throws Exception {
+        final Path directory = directory();
+        try (MessageJournal journal = new MessageJournal(directory, 128, TimeUnit.HOURS.toMillis(1), 3 * 128)) {
+            for (int i = 0; i < 40; i++) {
+                journal.append(MessageJournal.Direction.IN, "stat/sonoff/RESULT", bytes("{\"POWER\":\"ON\"}"));
+            }
+            journal.append(MessageJournal.Direction.IN, "stat/sonoff/RESULT", bytes("last"));
+        }
+
+        assertEquals(3, MessageJournal.segments(directory).size());
+        final List<String> records = read(directory);
+        assertEquals("IN stat/sonoff/RESULT last", records.get(records.size() - 1));
+    }
+
+    @Test
+    public void recordsCutShortEndTheSegment() throws Exception {
+        final Path directory = directory();
+        try (MessageJournal journal = new MessageJournal(directory, 1024, TimeUnit.HOURS.toMillis(1), 1 << 20)) {
+            journal.append(MessageJournal.Direction.IN, "tele/sonoff/LWT", bytes("Online"));
+            journal.append(MessageJournal.Direction.IN, "tele/sonoff/LWT", bytes("Offline"));
+        }
+        // A crash after the second record was written but before its length was
+        final Path segment = MessageJournal.segments(directory).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.putInt(8 + buffer.getInt(8), 0);
+        }
+
+        assertEquals(Collections.singletonList("IN tele/sonoff/LWT Online"), read(directory));
+    }
+
+    @Test
+    public void replaysReceivedMessagesAtTheRecordedPace() throws Exception {
+        final Path directory = directory();
+        try (MessageJournal journal = new MessageJournal(directory, 1024, TimeUnit.HOURS.toMillis(1), 1 << 20)) {
+            journal.append(MessageJournal.Direction.IN, 1000, "tele/sonoff/LWT", bytes("Online"));
+            journal.append(MessageJournal.Direction.OUT, 1100, "cmnd/sonoff/POWER", bytes("ON"));
+            journal.append(MessageJournal.Direction.IN, 1200, "stat/sonoff/RESULT", bytes("{\"POWER\":\"ON\"}"));
+        }
+        final List<String> handled = new ArrayList<>();
+        final TopicRouter router = new TopicRouter();
+        router.register("tele", "LWT", (topic, m) -> handled.add("lwt:" + topic + ":" + new String(m.getPayload())));
+        router.register("stat", "RESULT", (topic, m) -> handled.add("result:" + topic));
+
+        final long start = System.nanoTime();
+        assertEquals(2, new JournalReplay(router, null, 2).replay(directory));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals("[lwt:sonoff:Online, result:sonoff]", handled.toString());
+
+        handled.clear();
+        assertEquals(2, new JournalReplay(router, null, 0).replay(directory));
+        assertEquals(2, handled.size());
+    }
+}
@@ -0,0 +1,399 @@
+package home.mqtt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import util.Threads;
+
+/**
+ * In-process MQTT client that records subscriptions and publishes and lets
+ * tests deliver messages to its callback.
+ *
+ * A client of a {@link LocalBroker} sends its publishes through the broker
+ * instead of recording them, and receives the messages of the other clients
+ * on its own delivery thread, as a Paho client does.
+ */
+public class StubMqttClient implements IMqttAsyncClient {
+    private static final Logger LOG = Logger.getLogger(StubMqttClient.class.getName());
+
+    public static final class Published {
+        public final String topic;
+        public final String payload;
+
+        Published(final String topic, final MqttMessage message) {
+            this.topic = topic;
+            this.payload = new String(message.getPayload());
+        }
+
+        @Override
+        public String toString() {
+            return topic + " " + payload;
+        }
+    }
+
+    private final Set<String> subscriptions = Collections.synchronizedSet(new LinkedHashSet<>());
+    private final List<Published> published = Collections.synchronizedList(new ArrayList<>());
+    private final List<Runnable> heldCompletions = new ArrayList<>();
+    private volatile MqttCallback callback;
+    private volatile boolean connected = true;
+    private boolean holdCompletions;
+    private volatile int refuseConnects;
+    private final AtomicInteger subscribeCount = new AtomicInteger();
+    private final String clientId;
+    private final LocalBroker broker;
+    private final ExecutorService delivery;
+
+    public StubMqttClient() {
+        this("stub", null);
+    }
+
+    StubMqttClient(final String clientId, final LocalBroker broker) {
+        this.clientId = clientId;
+        this.broker = broker;
+        this.delivery = broker == null ? null
+                : Executors.newSingleThreadExecutor(Threads.daemonFactory("mqtt-" + clientId));
+    }
+
+    public int getSubscribeCount() {
+        return subscribeCount.get();
+    }
+
+    public Set<String> getSubscriptions() {
+        synchronized (subscriptions) {
+            return new LinkedHashSet<>(subscriptions);
+        }
+    }
+
+    public List<Published> getPublished() {
+        synchronized (published) {
+            return new ArrayList<>(published);
+        }
+    }
+
+    public void clearPublished() {
+        published.clear();
+    }
+
+    /**
+     * Holds back the completion of publishes until {@link #completePublishes()}.
+     */
+    public synchronized void setHoldCompletions(final boolean hold) {
+        this.holdCompletions = hold;
+    }
+
+    public void completePublishes() {
+        final List<Runnable> completions;
+        synchronized (this) {
+            completions = new ArrayList<>(heldCompletions);
+            heldCompletions.clear();
+        }
+        completions.forEach(Runnable::run);
+    }
+
+    /**
+     * Lets the next connect attempts fail.
+     */
+    public void refuseConnects(final int attempts) {
+        this.refuseConnects = attempts;
+    }
+
+    /**
+     * Drops the connection and tells the callback, as a broker outage would.
+     */
+    public void dropConnection() {
+        connected = false;
+        callback.connectionLost(new IllegalStateException("Connection dropped"));
+    }
+
+    public void setConnected(final boolean connected) {
+        this.connected = connected;
+    }
+
+    /**
+     * Delivers a message to the callback if a subscription matches the topic.
+     */
+    public boolean deliver(final String topic, final String payload) throws Exception {
+        if (!isSubscribed(topic)) {
+            return false;
+        }
+        callback.messageArrived(topic, new MqttMessage(payload.getBytes()));
+        return true;
+    }
+
+    /**
+     * Queues a message from the broker for delivery to the callback.
+     */
+    void receive(final String topic, final MqttMessage message) {
+        delivery.execute(() -> {
+            try {
+                callback.messageArrived(topic, message);
+            } catch (Exception e) {
+                LOG.warning(clientId + " could not handle " + topic + ": " + e);
+            }
+        });
+    }
+
+    public MqttCallback getCallback() {
+        return callback;
+    }
+
+    public boolean isSubscribed(final String topic) {
+        synchronized (subscriptions) {
+            return subscriptions.stream().anyMatch(filter -> MqttTopic.isMatched(filter, topic));
+        }
+    }
+
+    @Override
+    public IMqttToken connect() {
+        return connect(null, null, null);
+    }
+
+    @Override
+    public IMqttToken connect(final MqttConnectOptions options) {
+        return connect(options, null, null);
+    }
+
+    @Override
+    public IMqttToken connect(final Object userContext, final IMqttActionListener callback) {
+        return connect(null, userContext, callback);
+    }
+
+    @Override
+    public IMqttToken connect(final MqttConnectOptions options, final Object userContext,
+            final IMqttActionListener callback) {
+        final MqttToken token = new MqttToken(getClientId());
+        if (refuseConnects > 0) {
+            refuseConnects--;
+            if (callback != null) {
+                callback.onFailure(token, new IllegalStateException("Connection refused"));
+            }
+            return token;
+        }
+        connected = true;
+        if (callback != null) {
+            callback.onSuccess(token);
+        }
+        return token;
+    }
+
+    @Override
+    public IMqttToken disconnect() {
+        return disconnect(0, null, null);
+    }
+
+    @Override
+    public IMqttToken disconnect(final long quiesceTimeout) {
+        return disconnect(quiesceTimeout, null, null);
+    }
+
+    @Override
+    public IMqttToken disconnect(final Object userContext, final IMqttActionListener callback) {
+        return disconnect(0, userContext, callback);
+    }
+
+    @Override
+    public IMqttToken disconnect(final long quiesceTimeout, final Object userContext,
+            final IMqttActionListener callback) {
+        connected = false;
+        return new MqttToken(getClientId());
+    }
+
+    @Override
+    public void disconnectForcibly() {
+        connected = false;
+    }
+
+    @Override
+    public void disconnectForcibly(final long disconnectTimeout) {
+        connected = false;
+    }
+
+    @Override
+    public void disconnectForcibly(final long quiesceTimeout, final long disconnectTimeout) {
+        connected = false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public String getServerURI() {
+        return "local://stub";
+    }
+
+    @Override
+    public IMqttDeliveryToken publish(final String topic, final byte[] payload, final int qos, final boolean retained) {
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        message.setRetained(retained);
+        return publish(topic, message, null, null);
+    }
+
+    @Override
+    public IMqttDeliveryToken publish(final String topic, final byte[] payload, final int qos, final boolean retained,
+            final Object userContext, final IMqttActionListener callback) {
+        return publish(topic, payload, qos, retained);
+    }
+
+    @Override
+    public IMqttDeliveryToken publish(final String topic, final MqttMessage message) {
+        return publish(topic, message, null, null);
+    }
+
+    @Override
+    public IMqttDeliveryToken publish(final String topic, final MqttMessage message, final Object userContext,
+            final IMqttActionListener callback) {
+        if (broker == null) {
+            published.add(new Published(topic, message));
+        } else if (connected) {
+            broker.publish(topic, message);
+        }
+        final MqttDeliveryToken token = new MqttDeliveryToken(getClientId());
+        if (callback != null) {
+            final Runnable completion = () -> callback.onSuccess(token);
+            synchronized (this) {
+                if (holdCompletions) {
+                    heldCompletions.add(completion);
+                    return token;
+                }
+            }
+            completion.run();
+        }
+        return token;
+    }
+
+    @Override
+    public IMqttToken subscribe(final String topicFilter, final int qos) {
+        return subscribe(new String[] {topicFilter}, new int[] {qos});
+    }
+
+    @Override
+    public IMqttToken subscribe(final String topicFilter, final int qos, final Object userContext,
+            final IMqttActionListener callback) {
+        return subscribe(topicFilter, qos);
+    }
+
+    @Override
+    public IMqttToken subscribe(final String[] topicFilters, final int[] qos) {
+        subscribeCount.incrementAndGet();
+        subscriptions.addAll(Arrays.asList(topicFilters));
+        if (broker != null) {
+            broker.subscribed(this, topicFilters);
+        }
+        return new MqttToken(getClientId());
+    }
+
+    @Override
+    public IMqttToken subscribe(final String[] topicFilters, final int[] qos, final Object userContext,
+            final IMqttActionListener callback) {
+        return subscribe(topicFilters, qos);
+    }
+
+    @Override
+    public IMqttToken subscribe(final String topicFilter, final int qos, final Object userContext,
+            final IMqttActionListener callback, final IMqttMessageListener messageListener) {
+        return subscribe(topicFilter, qos);
+    }
+
+    @Override
+    public IMqttToken subscribe(final String topicFilter, final int qos, final IMqttMessageListener messageListener) {
+        return subscribe(topicFilter, qos);
+    }
+
+    @Override
+    public IMqttToken subscribe(final String[] topicFilters, final int[] qos,
+            final IMqttMessageListener[] messageListeners) {
+        return subscribe(topicFilters, qos);
+    }
+
+    @Override
+    public IMqttToken subscribe(final String[] topicFilters, final int[] qos, final Object userContext,
+            final IMqttActionListener callback, final IMqttMessageListener[] messageListeners) {
+        return subscribe(topicFilters, qos);
+    }
+
+    @Override
+    public IMqttToken unsubscribe(final String topicFilter) {
+        return unsubscribe(new String[] {topicFilter});
+    }
+
+    @Override
+    public IMqttToken unsubscribe(final String[] topicFilters) {
+        subscriptions.removeAll(Arrays.asList(topicFilters));
+        return new MqttToken(getClientId());
+    }
+
+    @Override
+    public IMqttToken unsubscribe(final String topicFilter, final Object userContext,
+            final IMqttActionListener callback) {
+        return unsubscribe(topicFilter);
+    }
+
+    @Override
+    public IMqttToken unsubscribe(final String[] topicFilters, final Object userContext,
+            final IMqttActionListener callback) {
+        return unsubscribe(topicFilters);
+    }
+
+    @Override
+    public boolean removeMessage(final IMqttDeliveryToken token) {
+        return false;
+    }
+
+    @Override
+    public void setCallback(final MqttCallback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public IMqttDeliveryToken[] getPendingDeliveryTokens() {
+        return new IMqttDeliveryToken[0];
+    }
+
+    @Override
+    public void setManualAcks(final boolean manualAcks) {
+    }
+
+    @Override
+    public void reconnect() {
+        connected = true;
+    }
+
+    @Override
+    public void messageArrivedComplete(final int messageId, final int qos) {
+    }
+
+    @Override
+    public void close() {
+        if (delivery != null) {
+            delivery.shutdown();
+        }
+    }
+}
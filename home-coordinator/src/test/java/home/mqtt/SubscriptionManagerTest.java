@@ -0,0 +1,89 @@
+package home.mqtt;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionManagerTest {
+    private final StubMqttClient client = new StubMqttClient();
+    private final TopicRouter router = new TopicRouter();
+
+    @Before
+    public void setUp() {
+        router.register("stat", "RESULT", (topic, message) -> { });
+        router.register("tele", "LWT", (topic, message) -> { });
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void messageArrived(final String topic, final MqttMessage message) throws Exception {
+                router.route(topic, message);
+            }
+
+            @Override
+            public void deliveryComplete(final IMqttDeliveryToken token) {
+            }
+
+            @Override
+            public void connectionLost(final Throwable cause) {
+            }
+        });
+    }
+
+    @Test
+    public void subscribesRoutesWithWildcards() throws Exception {
+        SubscriptionManager subscriptions = new SubscriptionManager(client, router, SubscriptionManager.Mode.WILDCARD,
+                Collections.emptySet());
+        subscriptions.start();
+        assertEquals(new LinkedHashSet<>(Arrays.asList("stat/+/RESULT", "tele/+/LWT")), client.getSubscriptions());
+
+        router.register("tele", "STATE", (topic, message) -> { });
+        assertTrue(client.getSubscriptions().contains("tele/+/STATE"));
+
+        assertTrue(client.deliver("stat/sonoff/RESULT", "{}"));
+        assertFalse(client.deliver("cmnd/sonoff/POWER", "ON"));
+        assertFalse(client.deliver("tele/sonoff/SENSOR", "{}"));
+        assertEquals(1, router.getReceivedCount());
+        assertEquals(1, router.getHandledCount());
+    }
+
+    @Test
+    public void subscribesPerDeviceWithDiscovery() throws Exception {
+        SubscriptionManager subscriptions = new SubscriptionManager(client, router, SubscriptionManager.Mode.DEVICE,
+                Collections.singleton("tele/+/LWT"));
+        subscriptions.addDevice("washing-line-relay");
+        subscriptions.start();
+        assertEquals(new LinkedHashSet<>(Arrays.asList("tele/+/LWT", "stat/washing-line-relay/RESULT")),
+                client.getSubscriptions());
+
+        subscriptions.addDevice("front-door-light-switch");
+        assertTrue(client.getSubscriptions().contains("stat/front-door-light-switch/RESULT"));
+
+        subscriptions.removeDevice("washing-line-relay");
+        assertFalse(client.getSubscriptions().contains("stat/washing-line-relay/RESULT"));
+        assertEquals(2, client.getSubscriptions().size());
+    }
+
+    @Test
+    public void subscribesNewDevicesTogether() throws Exception {
+        SubscriptionManager subscriptions = new SubscriptionManager(client, router, SubscriptionManager.Mode.DEVICE,
+                Collections.singleton("tele/+/LWT"));
+        subscriptions.start();
+        final int before = client.getSubscribeCount();
+
+        subscriptions.addDevices(Arrays.asList("sonoff-1", "sonoff-2", "sonoff-3"));
+        assertEquals(before + 1, client.getSubscribeCount());
+        assertTrue(client.getSubscriptions().contains("stat/sonoff-3/RESULT"));
+
+        // Known devices are not subscribed again
+        subscriptions.addDevice("SONOFF-1");
+        assertEquals(before + 1, client.getSubscribeCount());
+        assertEquals(4, subscriptions.getSubscriptions().size());
+    }
+}
@@ -0,0 +1,49 @@
+package home.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TopicRouterTest {
+    private final List<String> handled = new ArrayList<>();
+    private final TopicRouter router = new TopicRouter();
+    private final MqttMessage message = new MqttMessage("{}".getBytes());
+
+    @Before
+    public void setUp() {
+        router.register("stat", "RESULT", (topic, m) -> handled.add("result:" + topic));
+        router.register("tele", "LWT", (topic, m) -> handled.add("lwt:" + topic));
+        router.register("tele", TopicRouter.ANY, (topic, m) -> handled.add("tele:" + topic));
+    }
+
+    @Test
+    public void routesCaseInsensitive() throws Exception {
+        assertTrue(router.route("STAT/sonoff-1/result", message));
+        assertTrue(router.route("tele/sonoff-2/LWT", message));
+        assertEquals("result:sonoff-1", handled.get(0));
+        assertEquals("lwt:sonoff-2", handled.get(1));
+    }
+
+    @Test
+    public void fallsBackToWildcardPostfix() throws Exception {
+        assertTrue(router.route("tele/sonoff-1/STATE", message));
+        assertTrue(router.route("tele/sonoff-1/LWTX", message));
+        assertEquals("tele:sonoff-1", handled.get(0));
+        assertEquals("tele:sonoff-1", handled.get(1));
+    }
+
+    @Test
+    public void rejectsUnknownAndMalformedTopics() throws Exception {
+        assertFalse(router.route("stat/sonoff-1/POWER", message));
+        assertFalse(router.route("cmnd/sonoff-1/POWER", message));
+        assertFalse(router.route("stat/RESULT", message));
+        assertFalse(router.route("stat//RESULT", message));
+        assertFalse(router.route("/sonoff/RESULT", message));
+        assertTrue(handled.isEmpty());
+    }
+}
@@ -0,0 +1,81 @@
+package home.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.firebase.database.DatabaseReference;
+import org.junit.Test;
+
+import util.FirebaseWriter;
+import util.OfflineFirebase;
+
+import static org.junit.Assert.*;
+
+public class TimeSeriesTest {
+    private static final long MINUTE = 60_000;
+
+    private final List<String> closed = new ArrayList<>();
+
+    private TimeSeries create() {
+        return new TimeSeries("wifiSignal", "abc", new long[] {15 * MINUTE, 60 * MINUTE}, 4,
+                (series, resolution, start, min, max, avg, count) -> closed
+                        .add(resolution + "@" + start / MINUTE + " " + min + "/" + max + "/" + avg + "/" + count));
+    }
+
+    @Test
+    public void flushesEachBucketOnceWhenItCloses() {
+        TimeSeries series = create();
+        series.record(1 * MINUTE, -60);
+        series.record(2 * MINUTE, -70);
+        series.record(14 * MINUTE, -50);
+        assertTrue(closed.isEmpty());
+
+        series.record(16 * MINUTE, -40);
+        assertEquals(1, closed.size());
+        assertEquals("0@0 -70.0/-50.0/-60.0/3", closed.get(0));
+
+        series.closeExpired(60 * MINUTE);
+        assertEquals(3, closed.size());
+        assertEquals("0@15 -40.0/-40.0/-40.0/1", closed.get(1));
+        assertEquals("1@0 -70.0/-40.0/-55.0/4", closed.get(2));
+
+        series.closeExpired(120 * MINUTE);
+        assertEquals(3, closed.size());
+    }
+
+    @Test
+    public void retainsLastClosedBuckets() {
+        TimeSeries series = create();
+        for (int i = 0; i < 6; i++) {
+            series.record(i * 15 * MINUTE, i);
+        }
+        assertEquals(4, series.getRetainedCount(0));
+        assertEquals(4.0, series.getRetainedAverage(0, 0), 0);
+        assertEquals(1.0, series.getRetainedAverage(0, 3), 0);
+        assertEquals(1, series.getRetainedCount(1));
+        assertEquals(1.5, series.getRetainedAverage(1, 0), 0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void writesBucketsAndRollups() throws Exception {
+        DatabaseReference stats = OfflineFirebase.create().getReference("/stats");
+        TimeSeriesAggregator aggregator = new TimeSeriesAggregator(new String[] {null, "hourly"},
+                new long[] {15 * MINUTE, 60 * MINUTE}, 4, 0);
+        TimeSeries series = aggregator.series(stats, "wifiSignal", "abc");
+        assertSame(series, aggregator.series(stats, "wifiSignal", "abc"));
+
+        series.record(1 * MINUTE, -60);
+        series.record(2 * MINUTE, -70);
+        aggregator.closeExpired(60 * MINUTE);
+        FirebaseWriter.getInstance().flush();
+
+        assertEquals(2, aggregator.getBucketsWritten());
+        assertEquals(-65.0, ((Number) OfflineFirebase.read(stats.child("wifiSignal/abc/0"))).doubleValue(), 0);
+        Map<String, Object> hourly = (Map<String, Object>) OfflineFirebase.read(stats.child("hourly/wifiSignal/abc/0"));
+        assertEquals(-70.0, ((Number) hourly.get("min")).doubleValue(), 0);
+        assertEquals(-60.0, ((Number) hourly.get("max")).doubleValue(), 0);
+        assertEquals(2L, ((Number) hourly.get("count")).longValue());
+    }
+}
@@ -0,0 +1,38 @@
+package util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FirebaseTest {
+
+    @Test
+    public void readsValuesAsync() throws Exception {
+        FirebaseDatabase database = OfflineFirebase.create();
+        DatabaseReference ref = database.getReference("/devices/lookup/SONOFF");
+        ref.setValueAsync("abc");
+
+        DataSnapshot snapshot = Firebase.readAsync(ref).get(5, TimeUnit.SECONDS);
+        assertEquals("abc", snapshot.getValue());
+        assertFalse(Firebase.readAsync(ref.getParent().child("OTHER")).get(5, TimeUnit.SECONDS).exists());
+        assertNull(Firebase.readObject(ref.getParent().child("OTHER")));
+    }
+
+    @Test
+    public void failsAfterTimeout() throws Exception {
+        DatabaseReference ref = OfflineFirebase.createDisconnected().getReference("/devices");
+        try {
+            Firebase.readAsync(ref, 100, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+            fail("Read should time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package util;
+
+import java.util.Collections;
+
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FirebaseWriterTest {
+
+    @Test
+    public void coalescesWritesPerPath() throws Exception {
+        FirebaseDatabase database = OfflineFirebase.create();
+        DatabaseReference device = database.getReference("/devices/list/abc");
+
+        try (FirebaseWriter writer = new FirebaseWriter(60_000)) {
+            for (int i = 0; i < 100; i++) {
+                writer.set(device.child("wifi").child("signal"), i);
+            }
+            writer.set(device.child("connected"), "ONLINE");
+            assertEquals(2, writer.getQueueDepth());
+
+            writer.flush();
+
+            assertEquals(101, writer.getWritesRequested());
+            assertEquals(2, writer.getWritesFlushed());
+            assertEquals(99, writer.getWritesSaved());
+            assertEquals(1, writer.getFlushCount());
+            assertEquals(2, writer.getLastFlushSize());
+            assertEquals(0, writer.getQueueDepth());
+        }
+
+        assertEquals(99L, OfflineFirebase.read(device.child("wifi").child("signal")));
+        assertEquals("ONLINE", OfflineFirebase.read(device.child("connected")));
+    }
+
+    @Test
+    public void removesNullValuesAndWritesParentsBeforeChildren() throws Exception {
+        FirebaseDatabase database = OfflineFirebase.create();
+        DatabaseReference device = database.getReference("/devices/list/abc");
+
+        try (FirebaseWriter writer = new FirebaseWriter(60_000)) {
+            writer.set(device.child("connected"), "ONLINE");
+            writer.flush();
+            writer.set(device.child("connected"), null);
+            // Overlapping paths, the child was written after the parent
+            writer.set(device.child("wifi"), Collections.singletonMap("signal", 10));
+            writer.set(device.child("wifi").child("signal"), 20);
+            writer.flush();
+        }
+
+        assertNull(OfflineFirebase.read(device.child("connected")));
+        assertEquals(20L, OfflineFirebase.read(device.child("wifi").child("signal")));
+    }
+}
@@ -0,0 +1,61 @@
+package util;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.FirebaseOptions;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+/**
+ * A Firebase database that never connects. The root is seeded locally so reads
+ * and listeners are answered from the local cache, which makes the SDK behave
+ * like an in-memory tree.
+ */
+public final class OfflineFirebase {
+
+    private OfflineFirebase() {
+    }
+
+    public static FirebaseDatabase create() {
+        return Firebase.createOffline();
+    }
+
+    /**
+     * A database without any local data, reads on it are never answered.
+     */
+    public static FirebaseDatabase createDisconnected() {
+        FirebaseOptions options = new FirebaseOptions.Builder()
+                .setCredentials(GoogleCredentials.create(new AccessToken("offline", new Date(Long.MAX_VALUE))))
+                .setDatabaseUrl("https://offline.firebaseio.com")
+                .build();
+        FirebaseApp app = FirebaseApp.initializeApp(options, "offline-" + UUID.randomUUID());
+        FirebaseDatabase database = FirebaseDatabase.getInstance(app);
+        database.goOffline();
+        return database;
+    }
+
+    public static Object read(final DatabaseReference ref) throws Exception {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        ref.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot snapshot) {
+                result.complete(snapshot.getValue());
+            }
+
+            @Override
+            public void onCancelled(DatabaseError error) {
+                result.completeExceptionally(error.toException());
+            }
+        });
+        return result.get(5, TimeUnit.SECONDS);
+    }
+}
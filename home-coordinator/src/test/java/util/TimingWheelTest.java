@@ -0,0 +1,85 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import util.metrics.Histogram;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final Histogram lag = new Histogram();
+    private final TimingWheel wheel = new TimingWheel(10, 8, now::get, lag);
+    private final List<Long> fired = new ArrayList<>();
+
+    private void schedule(final long deadline) {
+        wheel.schedule(deadline, () -> fired.add(deadline));
+    }
+
+    private void advanceTo(final long time) {
+        now.set(time);
+        wheel.advance(time);
+    }
+
+    @Test
+    public void firesInOrderWithinATick() {
+        schedule(1_000_055);
+        schedule(1_000_012);
+        schedule(1_000_030);
+
+        advanceTo(1_000_029);
+        assertEquals(Collections.singletonList(1_000_012L), fired);
+        advanceTo(1_000_070);
+        assertEquals(3, fired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancelledTimersDoNotFire() {
+        final TimingWheel.Timeout timeout = wheel.schedule(1_000_050, () -> fired.add(0L));
+        schedule(1_000_060);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(1, wheel.size());
+
+        advanceTo(1_000_100);
+        assertEquals(Collections.singletonList(1_000_060L), fired);
+    }
+
+    @Test
+    public void dueTimersRunAtOnce() {
+        schedule(999_000);
+        assertEquals(Collections.singletonList(999_000L), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void farTimersMoveDownTheWheels() {
+        // Six wheels, the largest with buckets of 5.5 minutes
+        final Random random = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            schedule(now.get() + random.nextInt(600_000));
+        }
+        assertEquals(20_000, wheel.size());
+
+        int count = 0;
+        for (long time = now.get(); time <= 1_000_000 + 600_000 + 10; time += 7) {
+            advanceTo(time);
+            for (Long deadline : fired) {
+                assertTrue("fired " + deadline + " at " + time, deadline <= time && time - deadline < 10 + 7);
+            }
+            count += fired.size();
+            fired.clear();
+        }
+        assertEquals(20_000, count);
+        assertEquals(0, wheel.size());
+        assertEquals(20_000, lag.getCount());
+        assertTrue(lag.getMax() < 20_000_000);
+    }
+}
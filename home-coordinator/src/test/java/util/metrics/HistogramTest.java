@@ -0,0 +1,34 @@
+package util.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void bucketsCoverValuesInOrder() {
+        long previous = -1;
+        for (long value : new long[] {0, 1, 31, 32, 33, 63, 64, 1000, 1_000_000, Long.MAX_VALUE}) {
+            final int index = Histogram.index(value);
+            assertTrue(value + " fits its bucket", Histogram.highestEquivalent(index) >= value);
+            assertTrue(value + " is in a later bucket", Histogram.highestEquivalent(index) > previous);
+            previous = value;
+        }
+        assertEquals(31, Histogram.highestEquivalent(Histogram.index(31)));
+    }
+
+    @Test
+    public void reportsPercentilesWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_500, histogram.getMean());
+        assertEquals(500_000, histogram.getValueAtPercentile(50), 500_000 * 0.07);
+        assertEquals(990_000, histogram.getValueAtPercentile(99), 990_000 * 0.07);
+        assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+    }
+}
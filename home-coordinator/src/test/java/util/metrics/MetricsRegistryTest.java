@@ -0,0 +1,66 @@
+package util.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void reportsCountersGaugesAndHistograms() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("mqtt_messages_total{route=\"stat/+/RESULT\"}").add(3);
+        registry.counterFamily("device_messages_total", "device").get("SONOFF").increment();
+        registry.gauge("devices", () -> 7);
+        registry.histogram("device_status_parse_nanos{type=\"RESULT\"}").record(40);
+
+        Map<String, Long> snapshot = registry.snapshot();
+        assertEquals(Long.valueOf(3), snapshot.get("mqtt_messages_total{route=\"stat/+/RESULT\"}"));
+        assertEquals(Long.valueOf(1), snapshot.get("device_messages_total{device=\"SONOFF\"}"));
+        assertEquals(Long.valueOf(7), snapshot.get("devices"));
+        assertEquals(Long.valueOf(1), snapshot.get("device_status_parse_nanos{type=\"RESULT\"}_count"));
+        assertEquals(Long.valueOf(40),
+                snapshot.get("device_status_parse_nanos{quantile=\"0.99\",type=\"RESULT\"}"));
+    }
+
+    @Test
+    public void servesTextOverHttp() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("mqtt_published_total").add(12);
+
+        try (MetricsServer server = new MetricsServer(registry, new InetSocketAddress("127.0.0.1", 0))) {
+            URL url = new URL("http://127.0.0.1:" + server.getPort() + "/metrics");
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = url.openStream()) {
+                byte[] buffer = new byte[1024];
+                for (int n; (n = in.read(buffer)) > 0;) {
+                    body.write(buffer, 0, n);
+                }
+            }
+            assertTrue(new String(body.toByteArray(), StandardCharsets.UTF_8).contains("mqtt_published_total 12\n"));
+        }
+    }
+
+    @Test
+    public void exposesMetricsOverJmx() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("mqtt_delivered_total").add(5);
+        ObjectName name = new ObjectName("home.coordinator.test:type=Metrics");
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(registry), name);
+        try {
+            assertEquals(5L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "mqtt_delivered_total"));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+}